@@ -2,6 +2,19 @@ package com.zwitserloot.json;
 
 import static com.zwitserloot.json.JSONParser.*;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -15,12 +28,15 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 public final class JSON {
 	private Object[] path;
 	private final Object object;
 	private final Object self;
 	private static final Object UNDEFINED = new Object();
+	private static final long MAP_CHUNK_SIZE = 1L << 30;
+	private static final JSONParseOption[] NO_OPTIONS = {};
 	
 	private static String typeOf(Object o) {
 		if (o == NULL) return "null";
@@ -34,7 +50,7 @@ public final class JSON {
 		return "?" + o.getClass() + "?";
 	}
 	
-	private JSON(Object o) {
+	JSON(Object o) {
 		this.object = o;
 		this.self = o;
 		this.path = new Object[0];
@@ -46,6 +62,13 @@ public final class JSON {
 		this.path = path;
 	}
 	
+	/**
+	 * @return What this element points at, as stored: {@code JSONParser.NULL} for {@code null}; non-existent elements become {@code null} too.
+	 */
+	Object value() {
+		return self == UNDEFINED ? NULL : self;
+	}
+	
 	private Object dig(int depth) {
 		if (depth == path.length) return self;
 		Object out = object;
@@ -89,6 +112,17 @@ public final class JSON {
 		return new JSON(new ArrayList<Object>());
 	}
 	
+	/**
+	 * Parses the input of {@code parser}, then returns the parser's buffers to {@link JSONRecycler}, for the next parse to use.
+	 */
+	private static JSON parseWith(JSONParser parser, JSONParseOption[] options) {
+		try {
+			return new JSON(parser.configure(options).parseObject());
+		} finally {
+			parser.release();
+		}
+	}
+	
 	/**
 	 * Parses JSON formatted strings into a new {@code JSON} object.
 	 * 
@@ -96,7 +130,524 @@ public final class JSON {
 	 * @return Creates a new JSON object by parsing JSON and returns it.
 	 */
 	public static JSON parse(String s) {
-		return new JSON(new JSONParser(s).parseObject());
+		return parse(s, NO_OPTIONS);
+	}
+	
+	/**
+	 * As {@link #parse(String)}, with options that change how the input is turned into a {@code JSON} object.
+	 * 
+	 * @param s JSON formatted input.
+	 * @param options Changes how the input is turned into a {@code JSON} object; see {@link JSONParseOption}.
+	 * @return Creates a new JSON object by parsing JSON and returns it.
+	 */
+	public static JSON parse(String s, JSONParseOption... options) {
+		return parseWith(new JSONCharParser(s), options);
+	}
+	
+	/**
+	 * Parses JSON formatted characters into a new {@code JSON} object.
+	 * 
+	 * @param s JSON formatted input.
+	 * @return Creates a new JSON object by parsing JSON and returns it.
+	 */
+	public static JSON parse(CharSequence s) {
+		return parse(s, NO_OPTIONS);
+	}
+	
+	/**
+	 * As {@link #parse(CharSequence)}, with options that change how the input is turned into a {@code JSON} object.
+	 * 
+	 * @param s JSON formatted input.
+	 * @param options Changes how the input is turned into a {@code JSON} object; see {@link JSONParseOption}.
+	 * @return Creates a new JSON object by parsing JSON and returns it.
+	 */
+	public static JSON parse(CharSequence s, JSONParseOption... options) {
+		return parseWith(new JSONCharParser(s), options);
+	}
+	
+	/**
+	 * Parses JSON formatted characters into a new {@code JSON} object.
+	 * 
+	 * The array is parsed in place and is not copied; do not modify it while this method runs.
+	 * 
+	 * @param chars Array containing JSON formatted input.
+	 * @param offset Index of the first character of the input in {@code chars}.
+	 * @param length Number of characters of input.
+	 * @return Creates a new JSON object by parsing JSON and returns it.
+	 */
+	public static JSON parse(char[] chars, int offset, int length) {
+		return parse(chars, offset, length, NO_OPTIONS);
+	}
+	
+	/**
+	 * As {@link #parse(char[], int, int)}, with options that change how the input is turned into a {@code JSON} object.
+	 * 
+	 * @param chars Array containing JSON formatted input.
+	 * @param offset Index of the first character of the input in {@code chars}.
+	 * @param length Number of characters of input.
+	 * @param options Changes how the input is turned into a {@code JSON} object; see {@link JSONParseOption}.
+	 * @return Creates a new JSON object by parsing JSON and returns it.
+	 */
+	public static JSON parse(char[] chars, int offset, int length, JSONParseOption... options) {
+		if (offset < 0 || length < 0 || offset + length > chars.length) throw new IndexOutOfBoundsException();
+		return parseWith(new JSONCharParser(chars, offset, length), options);
+	}
+	
+	/**
+	 * Parses JSON read from a character stream into a new {@code JSON} object.
+	 * 
+	 * The input is read through a fixed-size buffer, so the document is never held in memory as a whole; only the resulting structure is.
+	 * The reader is not closed.
+	 * 
+	 * @param in Source of JSON formatted input.
+	 * @return Creates a new JSON object by parsing JSON and returns it.
+	 * @throws JSONException If the input is not valid JSON, or reading from {@code in} fails.
+	 */
+	public static JSON parse(Reader in) {
+		return parse(in, NO_OPTIONS);
+	}
+	
+	/**
+	 * As {@link #parse(Reader)}, with options that change how the input is turned into a {@code JSON} object.
+	 * 
+	 * @param in Source of JSON formatted input.
+	 * @param options Changes how the input is turned into a {@code JSON} object; see {@link JSONParseOption}.
+	 * @return Creates a new JSON object by parsing JSON and returns it.
+	 * @throws JSONException If the input is not valid JSON, or reading from {@code in} fails.
+	 */
+	public static JSON parse(Reader in, JSONParseOption... options) {
+		return parseWith(new JSONCharParser(in), options);
+	}
+	
+	/**
+	 * Parses JSON read from a byte stream into a new {@code JSON} object.
+	 * 
+	 * The input is decoded and read through a fixed-size buffer, so the document is never held in memory as a whole; only the resulting structure is.
+	 * The stream is not closed.
+	 * 
+	 * @param in Source of JSON formatted input.
+	 * @param charset The encoding of the bytes in {@code in}.
+	 * @return Creates a new JSON object by parsing JSON and returns it.
+	 * @throws JSONException If the input is not valid JSON, or reading from {@code in} fails.
+	 */
+	public static JSON parse(InputStream in, Charset charset) {
+		return parse(in, charset, NO_OPTIONS);
+	}
+	
+	/**
+	 * As {@link #parse(InputStream, Charset)}, with options that change how the input is turned into a {@code JSON} object.
+	 * 
+	 * @param in Source of JSON formatted input.
+	 * @param charset The encoding of the bytes in {@code in}.
+	 * @param options Changes how the input is turned into a {@code JSON} object; see {@link JSONParseOption}.
+	 * @return Creates a new JSON object by parsing JSON and returns it.
+	 * @throws JSONException If the input is not valid JSON, or reading from {@code in} fails.
+	 */
+	public static JSON parse(InputStream in, Charset charset, JSONParseOption... options) {
+		if (charset.name().equals("UTF-8")) return parseWith(new JSONUtf8Parser(in), options);
+		return parse(new InputStreamReader(in, charset), options);
+	}
+	
+	/**
+	 * Parses UTF-8 encoded JSON into a new {@code JSON} object.
+	 * 
+	 * The bytes are tokenized directly; only the contents of strings that contain non-ASCII characters are ever decoded.
+	 * The array is not copied; do not modify it while this method runs.
+	 * 
+	 * @param bytes Array containing UTF-8 encoded JSON.
+	 * @param offset Index of the first byte of the input in {@code bytes}.
+	 * @param length Number of bytes of input.
+	 * @return Creates a new JSON object by parsing JSON and returns it.
+	 */
+	public static JSON parse(byte[] bytes, int offset, int length) {
+		return parse(bytes, offset, length, NO_OPTIONS);
+	}
+	
+	/**
+	 * As {@link #parse(byte[], int, int)}, with options that change how the input is turned into a {@code JSON} object.
+	 * 
+	 * @param bytes Array containing UTF-8 encoded JSON.
+	 * @param offset Index of the first byte of the input in {@code bytes}.
+	 * @param length Number of bytes of input.
+	 * @param options Changes how the input is turned into a {@code JSON} object; see {@link JSONParseOption}.
+	 * @return Creates a new JSON object by parsing JSON and returns it.
+	 */
+	public static JSON parse(byte[] bytes, int offset, int length, JSONParseOption... options) {
+		if (offset < 0 || length < 0 || offset + length > bytes.length) throw new IndexOutOfBoundsException();
+		return parseWith(new JSONUtf8Parser(bytes, offset, length), options);
+	}
+	
+	/**
+	 * Parses UTF-8 encoded JSON into a new {@code JSON} object.
+	 * 
+	 * The bytes between the buffer's position and its limit are tokenized directly; only the contents of strings that contain non-ASCII characters
+	 * are ever decoded. The buffer's position is not changed.
+	 * 
+	 * @param bytes Buffer containing UTF-8 encoded JSON.
+	 * @return Creates a new JSON object by parsing JSON and returns it.
+	 */
+	public static JSON parse(ByteBuffer bytes) {
+		return parse(bytes, NO_OPTIONS);
+	}
+	
+	/**
+	 * As {@link #parse(ByteBuffer)}, with options that change how the input is turned into a {@code JSON} object.
+	 * 
+	 * @param bytes Buffer containing UTF-8 encoded JSON.
+	 * @param options Changes how the input is turned into a {@code JSON} object; see {@link JSONParseOption}.
+	 * @return Creates a new JSON object by parsing JSON and returns it.
+	 */
+	public static JSON parse(ByteBuffer bytes, JSONParseOption... options) {
+		return parseWith(new JSONUtf8Parser(bytes), options);
+	}
+	
+	/**
+	 * Parses JSON formatted characters, reporting the contents to {@code visitor} instead of building a {@code JSON} object.
+	 * 
+	 * This follows the same grammar as {@link #parse(String, JSONParseOption...)}, except that duplicate keys are not detected. Strings are passed to the visitor
+	 * as reusable views, so nothing is allocated for the document's contents unless the visitor does so itself.
+	 * 
+	 * @param s JSON formatted input.
+	 * @param visitor Receives the contents of the document.
+	 * @see JSONReader#visitValue(JSONVisitor)
+	 */
+	public static void parse(CharSequence s, JSONVisitor visitor) {
+		JSONReader reader = new JSONReader(s);
+		try {
+			reader.visitValue(visitor);
+		} finally {
+			reader.close();
+		}
+	}
+	
+	/**
+	 * Parses JSON read from a character stream, reporting the contents to {@code visitor} instead of building a {@code JSON} object.
+	 * 
+	 * See {@link #parse(CharSequence, JSONVisitor)}. The reader is not closed.
+	 * 
+	 * @param in Source of JSON formatted input.
+	 * @param visitor Receives the contents of the document.
+	 */
+	public static void parse(Reader in, JSONVisitor visitor) {
+		JSONReader reader = new JSONReader(in);
+		try {
+			reader.visitValue(visitor);
+		} finally {
+			reader.close();
+		}
+	}
+	
+	/**
+	 * Parses UTF-8 encoded JSON, reporting the contents to {@code visitor} instead of building a {@code JSON} object.
+	 * 
+	 * See {@link #parse(CharSequence, JSONVisitor)}. The array is not copied; do not modify it while this method runs.
+	 * 
+	 * @param bytes Array containing UTF-8 encoded JSON.
+	 * @param offset Index of the first byte of the input in {@code bytes}.
+	 * @param length Number of bytes of input.
+	 * @param visitor Receives the contents of the document.
+	 */
+	public static void parse(byte[] bytes, int offset, int length, JSONVisitor visitor) {
+		JSONReader reader = new JSONReader(bytes, offset, length);
+		try {
+			reader.visitValue(visitor);
+		} finally {
+			reader.close();
+		}
+	}
+	
+	/**
+	 * Parses a UTF-8 encoded JSON file into a new {@code JSON} object.
+	 * 
+	 * The file is memory mapped rather than read onto the heap, and tokenized straight from the mapping (see {@link #parse(ByteBuffer, JSONParseOption...)}), so only
+	 * the resulting structure takes up heap space, and repeated loads of the same file are served from the OS page cache.
+	 * Files larger than 2GB are mapped one chunk at a time.
+	 * 
+	 * @param file Path to a file containing UTF-8 encoded JSON.
+	 * @return Creates a new JSON object by parsing JSON and returns it.
+	 * @throws JSONException If the file is not valid JSON, or cannot be read.
+	 */
+	public static JSON parseFile(Path file) {
+		return parseFile(file, NO_OPTIONS);
+	}
+	
+	/**
+	 * As {@link #parseFile(Path)}, with options that change how the input is turned into a {@code JSON} object.
+	 * 
+	 * @param file Path to a file containing UTF-8 encoded JSON.
+	 * @param options Changes how the input is turned into a {@code JSON} object; see {@link JSONParseOption}.
+	 * @return Creates a new JSON object by parsing JSON and returns it.
+	 * @throws JSONException If the file is not valid JSON, or cannot be read.
+	 */
+	public static JSON parseFile(Path file, JSONParseOption... options) {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(file, StandardOpenOption.READ);
+		} catch (IOException e) {
+			throw new JSONException("Cannot open " + file, e);
+		}
+		
+		try {
+			return parseWith(new JSONUtf8Parser(channel, MAP_CHUNK_SIZE), options);
+		} finally {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// The file was only read; nothing is lost.
+			}
+		}
+	}
+	
+	/**
+	 * Parses UTF-8 encoded JSON that consists of a single large array, such as a data dump, using all cores.
+	 * 
+	 * The array is split into segments at guessed boundaries between its elements, the segments are parsed in parallel on the common
+	 * {@code ForkJoinPool}, and the elements are put into a single list in order. A guess that turns out not to be a boundary is detected
+	 * once the segment before it has been parsed, and that part of the array is then parsed again; if a segment can't be parsed at all, the
+	 * whole input is. The result, or the error, is thus always the same as that of {@link #parse(byte[], int, int, JSONParseOption...)}. Input
+	 * that is not an array, or is too small to be worth splitting, or options that include a {@link JSONSelection}, are parsed on the calling
+	 * thread. The array is not copied; do not modify it while this method runs.
+	 * 
+	 * @param bytes Array containing UTF-8 encoded JSON.
+	 * @param offset Index of the first byte of the input in {@code bytes}.
+	 * @param length Number of bytes of input.
+	 * @param options Changes how the input is turned into a {@code JSON} object; see {@link JSONParseOption}.
+	 * @return Creates a new JSON object by parsing JSON and returns it.
+	 */
+	public static JSON parseParallel(byte[] bytes, int offset, int length, JSONParseOption... options) {
+		if (offset < 0 || length < 0 || offset + length > bytes.length) throw new IndexOutOfBoundsException();
+		return new JSON(JSONParallelArray.parse(bytes, offset, length, JSONParallelArray.SEGMENT_SIZE, options));
+	}
+	
+	/**
+	 * Parses a UTF-8 encoded JSON file that consists of a single large array, using all cores; see {@link #parseParallel(byte[], int, int, JSONParseOption...)}.
+	 * 
+	 * Like {@link #parseFile(Path, JSONParseOption...)}, the file is memory mapped rather than read onto the heap.
+	 * 
+	 * @param file Path to a file containing UTF-8 encoded JSON.
+	 * @param options Changes how the input is turned into a {@code JSON} object; see {@link JSONParseOption}.
+	 * @return Creates a new JSON object by parsing JSON and returns it.
+	 * @throws JSONException If the file is not valid JSON, or cannot be read.
+	 */
+	public static JSON parseFileParallel(Path file, JSONParseOption... options) {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(file, StandardOpenOption.READ);
+		} catch (IOException e) {
+			throw new JSONException("Cannot open " + file, e);
+		}
+		
+		try {
+			return new JSON(JSONParallelArray.parse(channel, MAP_CHUNK_SIZE, JSONParallelArray.SEGMENT_SIZE, options));
+		} catch (IOException e) {
+			throw new JSONException("Cannot read " + file, e);
+		} finally {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// The file was only read; nothing is lost.
+			}
+		}
+	}
+	
+	/**
+	 * Parses UTF-8 encoded JSON up to the array at {@code path}, and returns an iterator that parses its elements one at a time.
+	 * 
+	 * For a response like <code>{"meta": {...}, "results": [...]}</code>, {@code streamArray(in, "results")} hands out each row as soon as it
+	 * has been read, without ever holding all of them in memory. Everything in the document other than the elements of the array is kept,
+	 * and available from {@link JSONArrayStream#metadata()}; the entries after the array are read once the iterator has run out.
+	 * The stream is not closed; {@link JSONArrayStream#close()} the result if you stop iterating early.
+	 * 
+	 * @param in Source of UTF-8 encoded JSON.
+	 * @param path The map keys and list indices leading to the array, separated by slashes, such as {@code "data/results"}; the empty path
+	 *     for a document that is itself an array.
+	 * @param options Changes how the input is turned into {@code JSON} objects; see {@link JSONParseOption}. A {@link JSONSelection} has no effect.
+	 * @return An iterator over the elements of the array.
+	 * @throws JSONException If the document is not valid JSON up to the array, or has no array at {@code path}.
+	 * @throws IllegalArgumentException If {@code path} contains an empty key.
+	 */
+	public static JSONArrayStream streamArray(InputStream in, String path, JSONParseOption... options) {
+		return new JSONArrayStream(new JSONUtf8Parser(in).configure(options), path);
+	}
+	
+	/**
+	 * Parses JSON read from a character stream up to the array at {@code path}, and returns an iterator that parses its elements one at a time;
+	 * see {@link #streamArray(InputStream, String, JSONParseOption...)}.
+	 * 
+	 * @param in Source of JSON formatted input.
+	 * @param path The map keys and list indices leading to the array, separated by slashes.
+	 * @param options Changes how the input is turned into {@code JSON} objects; see {@link JSONParseOption}. A {@link JSONSelection} has no effect.
+	 * @return An iterator over the elements of the array.
+	 * @throws JSONException If the document is not valid JSON up to the array, or has no array at {@code path}.
+	 * @throws IllegalArgumentException If {@code path} contains an empty key.
+	 */
+	public static JSONArrayStream streamArray(Reader in, String path, JSONParseOption... options) {
+		return new JSONArrayStream(new JSONCharParser(in).configure(options), path);
+	}
+	
+	/**
+	 * Parses UTF-8 encoded JSON Lines (also known as NDJSON): a stream with one JSON value on each line, such as a log or an export.
+	 * 
+	 * Lines are read in batches, and the batches are parsed in parallel on the common {@code ForkJoinPool}, so throughput scales with the number
+	 * of cores. The returned iterator hands out the values in the order of the lines, blank lines excepted. Only a few batches per core are read
+	 * ahead of the value the iterator is at, so memory use does not grow with the size of the input. An invalid line causes the iterator to throw
+	 * a {@code JSONException} with the line number, once it gets to that line. The stream is not closed; {@link JSONLines#close()} the result
+	 * to stop parsing early.
+	 * 
+	 * @param in Source of JSON Lines.
+	 * @param options Changes how each line is turned into a {@code JSON} object; see {@link JSONParseOption}.
+	 * @return An iterator over the values, one for each line that isn't blank.
+	 */
+	public static JSONLines parseLines(InputStream in, JSONParseOption... options) {
+		return new JSONLines(in, false, null, options);
+	}
+	
+	/**
+	 * Parses UTF-8 encoded JSON Lines, with each batch of lines parsed by a task on {@code executor}; see {@link #parseLines(InputStream, JSONParseOption...)}.
+	 * 
+	 * @param in Source of JSON Lines.
+	 * @param executor Runs the tasks that parse the batches of lines.
+	 * @param options Changes how each line is turned into a {@code JSON} object; see {@link JSONParseOption}.
+	 * @return An iterator over the values, one for each line that isn't blank.
+	 */
+	public static JSONLines parseLines(InputStream in, Executor executor, JSONParseOption... options) {
+		return new JSONLines(in, false, executor, options);
+	}
+	
+	/**
+	 * Parses a UTF-8 encoded JSON Lines file; see {@link #parseLines(InputStream, JSONParseOption...)}.
+	 * 
+	 * The file is closed once the iterator has run out, has thrown an exception, or has been {@link JSONLines#close() closed}.
+	 * 
+	 * @param file Path to a file containing JSON Lines.
+	 * @param options Changes how each line is turned into a {@code JSON} object; see {@link JSONParseOption}.
+	 * @return An iterator over the values, one for each line that isn't blank.
+	 * @throws JSONException If the file cannot be opened.
+	 */
+	public static JSONLines parseLines(Path file, JSONParseOption... options) {
+		InputStream in;
+		try {
+			in = Files.newInputStream(file);
+		} catch (IOException e) {
+			throw new JSONException("Cannot open " + file, e);
+		}
+		return new JSONLines(in, true, null, options);
+	}
+	
+	/**
+	 * Indexes JSON formatted input into a new {@code JSON} object whose contents are decoded only when they are accessed.
+	 * 
+	 * Parsing makes a single pass over the input that records where each object, array, key and value starts, without decoding or allocating
+	 * anything for them. Reading a value decodes (and caches) just that value, and looking up a key in an object compares it against the input in place.
+	 * This makes it cheap to parse a large document and read only a few fields out of it. The resulting object supports the entire {@code JSON} API,
+	 * including modification; objects and arrays are turned into regular maps and lists the first time they are modified.
+	 * 
+	 * Malformed numbers are only reported when they are read, and duplicate keys are not detected (the first occurrence wins).
+	 * Lazily parsed objects hold on to the input, and are not safe for use by multiple threads, not even for reading.
+	 * 
+	 * @param s JSON formatted input.
+	 * @return Creates a new JSON object by indexing JSON and returns it.
+	 */
+	public static JSON parseLazy(String s) {
+		char[] chars = s.toCharArray();
+		return new JSON(JSONLazy.index(chars, 0, chars.length));
+	}
+	
+	/**
+	 * Indexes JSON formatted characters into a new {@code JSON} object whose contents are decoded only when they are accessed; see {@link #parseLazy(String)}.
+	 * 
+	 * The array is not copied; the returned object reads from it, so do not modify it for as long as the returned object is in use.
+	 * 
+	 * @param chars Array containing JSON formatted input.
+	 * @param offset Index of the first character of the input in {@code chars}.
+	 * @param length Number of characters of input.
+	 * @return Creates a new JSON object by indexing JSON and returns it.
+	 */
+	public static JSON parseLazy(char[] chars, int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > chars.length) throw new IndexOutOfBoundsException();
+		return new JSON(JSONLazy.index(chars, offset, length));
+	}
+	
+	/**
+	 * Indexes UTF-8 encoded JSON into a new {@code JSON} object whose contents are decoded only when they are accessed; see {@link #parseLazy(String)}.
+	 * 
+	 * The array is not copied; the returned object reads from it, so do not modify it for as long as the returned object is in use.
+	 * 
+	 * @param bytes Array containing UTF-8 encoded JSON.
+	 * @param offset Index of the first byte of the input in {@code bytes}.
+	 * @param length Number of bytes of input.
+	 * @return Creates a new JSON object by indexing JSON and returns it.
+	 */
+	public static JSON parseLazy(byte[] bytes, int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > bytes.length) throw new IndexOutOfBoundsException();
+		return new JSON(JSONLazy.index(bytes, offset, length));
+	}
+	
+	/**
+	 * Parses UTF-8 encoded JSON into a {@link JSONOffHeapDocument}: a compact binary copy of the document in off-heap memory.
+	 * 
+	 * Use this for large documents that are kept around and only read from: the heap holds nothing but small views that decode values from
+	 * the off-heap copy as they are read, so such documents neither take up heap space nor add to the work of the garbage collector.
+	 * {@link JSONOffHeapDocument#json()} supports the read-only part of the {@code JSON} API, from any number of threads.
+	 * 
+	 * @param bytes Array containing UTF-8 encoded JSON.
+	 * @param offset Index of the first byte of the input in {@code bytes}.
+	 * @param length Number of bytes of input.
+	 * @return A new document; close it when it is no longer needed.
+	 * @throws JSONException If the input is not valid JSON.
+	 */
+	public static JSONOffHeapDocument parseOffHeap(byte[] bytes, int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > bytes.length) throw new IndexOutOfBoundsException();
+		return buildOffHeap(new JSONUtf8Parser(bytes, offset, length), length);
+	}
+	
+	/**
+	 * Parses UTF-8 encoded JSON from a stream into a {@link JSONOffHeapDocument}; see {@link #parseOffHeap(byte[], int, int)}.
+	 * 
+	 * @param in Stream of UTF-8 encoded JSON; it is read up to the end of the first value, and not closed.
+	 * @return A new document; close it when it is no longer needed.
+	 * @throws JSONException If the input is not valid JSON, or cannot be read.
+	 */
+	public static JSONOffHeapDocument parseOffHeap(InputStream in) {
+		return buildOffHeap(new JSONUtf8Parser(in), 0);
+	}
+	
+	/**
+	 * Parses a UTF-8 encoded JSON file into a {@link JSONOffHeapDocument}; see {@link #parseOffHeap(byte[], int, int)}.
+	 * 
+	 * Like {@link #parseFile(Path, JSONParseOption...)}, the file is memory mapped rather than read onto the heap.
+	 * 
+	 * @param file Path to a file containing UTF-8 encoded JSON.
+	 * @return A new document; close it when it is no longer needed.
+	 * @throws JSONException If the file is not valid JSON, or cannot be read.
+	 */
+	public static JSONOffHeapDocument parseFileOffHeap(Path file) {
+		FileChannel channel;
+		long size;
+		try {
+			channel = FileChannel.open(file, StandardOpenOption.READ);
+			size = channel.size();
+		} catch (IOException e) {
+			throw new JSONException("Cannot open " + file, e);
+		}
+		
+		try {
+			return buildOffHeap(new JSONUtf8Parser(channel, MAP_CHUNK_SIZE), size);
+		} finally {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// The file was only read; nothing is lost.
+			}
+		}
+	}
+	
+	private static JSONOffHeapDocument buildOffHeap(JSONParser parser, long sizeHint) {
+		try {
+			return JSONOffHeapDocument.build(new JSONReader(parser), sizeHint);
+		} finally {
+			parser.release();
+		}
 	}
 	
 	/**
@@ -134,19 +685,250 @@ public final class JSON {
 	 * @return Converts the this element to minified JSON representation and returns it.
 	 */
 	public String toJSON() {
-		StringBuilder sb = new StringBuilder();
-		JSONWriter.toJSON(sb, self, Integer.MIN_VALUE);
-		return sb.toString();
+		return toJSON(JSONEscapePolicy.ASCII);
+	}
+	
+	/**
+	 * @param policy Which characters to write as <code>&#92;u</code> escapes in strings and keys.
+	 * @return Converts the this element to minified JSON representation and returns it.
+	 */
+	public String toJSON(JSONEscapePolicy policy) {
+		StringBuilder sb = JSONRecycler.STRING_BUILDERS.acquire();
+		try {
+			JSONWriter.toJSON(sb, self, Integer.MIN_VALUE, policy);
+			return sb.toString();
+		} finally {
+			JSONRecycler.STRING_BUILDERS.release(sb);
+		}
 	}
 	
 	/**
 	 * @return Converts the this element to pretty-printed JSON representation and returns it.
 	 */
 	public String prettyPrint() {
-		StringBuilder sb = new StringBuilder();
-		JSONWriter.toJSON(sb, self, 0);
-		if (self instanceof Map<?, ?> || self instanceof List<?>) sb.append("\n");
-		return sb.toString();
+		return prettyPrint(JSONEscapePolicy.ASCII);
+	}
+	
+	/**
+	 * @param policy Which characters to write as <code>&#92;u</code> escapes in strings and keys.
+	 * @return Converts the this element to pretty-printed JSON representation and returns it.
+	 */
+	public String prettyPrint(JSONEscapePolicy policy) {
+		StringBuilder sb = JSONRecycler.STRING_BUILDERS.acquire();
+		try {
+			JSONWriter.toJSON(sb, self, 0, policy);
+			if (self instanceof Map<?, ?> || self instanceof List<?>) sb.append("\n");
+			return sb.toString();
+		} finally {
+			JSONRecycler.STRING_BUILDERS.release(sb);
+		}
+	}
+	
+	/**
+	 * @return This element as minified, UTF-8 encoded JSON; the same as {@code toJSON().getBytes("UTF-8")}, but encoded straight from the elements.
+	 */
+	public byte[] toJSONBytes() {
+		return toJSONBytes(JSONEscapePolicy.ASCII);
+	}
+	
+	/**
+	 * @param policy Which characters to write as <code>&#92;u</code> escapes in strings and keys; {@link JSONEscapePolicy#UNICODE} makes most non-English text much smaller.
+	 * @return This element as minified, UTF-8 encoded JSON; the same as {@code toJSON(policy).getBytes("UTF-8")}, but encoded straight from the elements.
+	 */
+	public byte[] toJSONBytes(JSONEscapePolicy policy) {
+		return JSONWriter.toBytes(self, Integer.MIN_VALUE, policy);
+	}
+	
+	/**
+	 * Converts this element to canonical JSON, as described by RFC 8785 (the JSON Canonicalization Scheme): equal documents always produce the
+	 * same string, no matter in which order their maps were filled, so it can be used as a cache key, or be hashed or signed.
+	 * 
+	 * There is no whitespace, map keys are sorted by their UTF-16 code units, numbers are written as ECMAScript writes them (the shortest form
+	 * that reads back as the same double: {@code 1}, {@code 0.1}, {@code 1e+21}), and strings only escape what JSON requires to be escaped.
+	 * Numbers are first turned into what parsing {@link #toJSON()} would give, so for example integers too large for a double, which this library
+	 * writes as strings, are strings here too.
+	 * 
+	 * @return This element as canonical JSON.
+	 * @throws JSONException If this element contains a number that is NaN or infinite, which JSON can't represent.
+	 */
+	public String toCanonicalJSON() {
+		StringBuilder sb = JSONRecycler.STRING_BUILDERS.acquire();
+		try {
+			JSONWriter.toCanonicalJSON(sb, self);
+			return sb.toString();
+		} finally {
+			JSONRecycler.STRING_BUILDERS.release(sb);
+		}
+	}
+	
+	/**
+	 * Feeds this element as UTF-8 encoded canonical JSON (see {@link #toCanonicalJSON()}) to {@code digest}, without building it in memory
+	 * first: the bytes are passed on a few kilobytes at a time. Equal documents always produce the same hash:
+	 * 
+	 * <pre>
+	 * MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+	 * json.digestCanonicalJSON(sha256);
+	 * byte[] key = sha256.digest();
+	 * </pre>
+	 * 
+	 * @param digest Is updated with the canonical JSON; it is not reset or completed.
+	 * @throws JSONException If this element contains a number that is NaN or infinite, which JSON can't represent.
+	 */
+	public void digestCanonicalJSON(MessageDigest digest) {
+		JSONWriter.digestCanonicalJSON(digest, self);
+	}
+	
+	/**
+	 * Writes this element as minified JSON to {@code out}, as {@link #toJSON()} would return it.
+	 * 
+	 * The JSON is passed on to {@code out} in chunks of a few kilobytes as it is generated, rather than built up as a single string first, so
+	 * neither the memory used nor the time until the first chunk arrives depends on the size of the document.
+	 * 
+	 * @param out Receives the JSON; it is not flushed or closed.
+	 * @throws IOException If {@code out} throws it; part of the JSON may already have been written.
+	 */
+	public void writeTo(Appendable out) throws IOException {
+		writeTo(out, JSONEscapePolicy.ASCII);
+	}
+	
+	/**
+	 * Writes this element as minified JSON to {@code out}; see {@link #writeTo(Appendable)}.
+	 * 
+	 * @param out Receives the JSON; it is not flushed or closed.
+	 * @param policy Which characters to write as <code>&#92;u</code> escapes in strings and keys.
+	 * @throws IOException If {@code out} throws it; part of the JSON may already have been written.
+	 */
+	public void writeTo(Appendable out, JSONEscapePolicy policy) throws IOException {
+		JSONWriter.writeTo(out, self, Integer.MIN_VALUE, policy);
+	}
+	
+	/**
+	 * Writes this element as minified JSON to {@code out}; see {@link #writeTo(Appendable)}.
+	 * 
+	 * @param out Receives the JSON; it is not flushed or closed.
+	 * @throws IOException If {@code out} throws it; part of the JSON may already have been written.
+	 */
+	public void writeTo(Writer out) throws IOException {
+		writeTo(out, JSONEscapePolicy.ASCII);
+	}
+	
+	/**
+	 * Writes this element as minified, UTF-8 encoded JSON to {@code out}; see {@link #writeTo(Appendable)}.
+	 * 
+	 * The bytes are encoded straight from the elements, in chunks of a few kilobytes, without going through a {@code String} or {@code Writer}.
+	 * 
+	 * @param out Receives the JSON; it is not flushed or closed.
+	 * @throws IOException If {@code out} throws it; part of the JSON may already have been written.
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		writeTo(out, JSONEscapePolicy.ASCII);
+	}
+	
+	/**
+	 * Writes this element as minified, UTF-8 encoded JSON to {@code out}; see {@link #writeTo(OutputStream)}.
+	 * 
+	 * @param out Receives the JSON; it is not flushed or closed.
+	 * @param policy Which characters to write as <code>&#92;u</code> escapes in strings and keys.
+	 * @throws IOException If {@code out} throws it; part of the JSON may already have been written.
+	 */
+	public void writeTo(OutputStream out, JSONEscapePolicy policy) throws IOException {
+		JSONWriter.writeTo(out, self, Integer.MIN_VALUE, policy);
+	}
+	
+	/**
+	 * Writes this element as minified, UTF-8 encoded JSON into {@code out}, from its position onwards; see {@link #writeTo(OutputStream)}.
+	 * 
+	 * @param out Receives the JSON; its position is advanced past it.
+	 * @throws java.nio.BufferOverflowException If the JSON does not fit in the remaining space of {@code out}; part of the JSON may already have been written.
+	 */
+	public void writeTo(ByteBuffer out) {
+		writeTo(out, JSONEscapePolicy.ASCII);
+	}
+	
+	/**
+	 * Writes this element as minified, UTF-8 encoded JSON into {@code out}, from its position onwards; see {@link #writeTo(OutputStream)}.
+	 * 
+	 * @param out Receives the JSON; its position is advanced past it.
+	 * @param policy Which characters to write as <code>&#92;u</code> escapes in strings and keys.
+	 * @throws java.nio.BufferOverflowException If the JSON does not fit in the remaining space of {@code out}; part of the JSON may already have been written.
+	 */
+	public void writeTo(ByteBuffer out, JSONEscapePolicy policy) {
+		JSONWriter.writeTo(out, self, Integer.MIN_VALUE, policy);
+	}
+	
+	/**
+	 * Writes this element as pretty-printed JSON to {@code out}, as {@link #prettyPrint()} would return it; see {@link #writeTo(Appendable)}.
+	 * 
+	 * @param out Receives the JSON; it is not flushed or closed.
+	 * @throws IOException If {@code out} throws it; part of the JSON may already have been written.
+	 */
+	public void prettyPrintTo(Appendable out) throws IOException {
+		prettyPrintTo(out, JSONEscapePolicy.ASCII);
+	}
+	
+	/**
+	 * Writes this element as pretty-printed JSON to {@code out}; see {@link #prettyPrintTo(Appendable)}.
+	 * 
+	 * @param out Receives the JSON; it is not flushed or closed.
+	 * @param policy Which characters to write as <code>&#92;u</code> escapes in strings and keys.
+	 * @throws IOException If {@code out} throws it; part of the JSON may already have been written.
+	 */
+	public void prettyPrintTo(Appendable out, JSONEscapePolicy policy) throws IOException {
+		JSONWriter.writeTo(out, self, 0, policy);
+	}
+	
+	/**
+	 * Writes this element as pretty-printed JSON to {@code out}; see {@link #prettyPrintTo(Appendable)}.
+	 * 
+	 * @param out Receives the JSON; it is not flushed or closed.
+	 * @throws IOException If {@code out} throws it; part of the JSON may already have been written.
+	 */
+	public void prettyPrintTo(Writer out) throws IOException {
+		prettyPrintTo(out, JSONEscapePolicy.ASCII);
+	}
+	
+	/**
+	 * Writes this element as pretty-printed, UTF-8 encoded JSON to {@code out}; see {@link #prettyPrintTo(Appendable)}.
+	 * 
+	 * The bytes are encoded straight from the elements, in chunks of a few kilobytes, without going through a {@code String} or {@code Writer}.
+	 * 
+	 * @param out Receives the JSON; it is not flushed or closed.
+	 * @throws IOException If {@code out} throws it; part of the JSON may already have been written.
+	 */
+	public void prettyPrintTo(OutputStream out) throws IOException {
+		prettyPrintTo(out, JSONEscapePolicy.ASCII);
+	}
+	
+	/**
+	 * Writes this element as pretty-printed, UTF-8 encoded JSON to {@code out}; see {@link #prettyPrintTo(OutputStream)}.
+	 * 
+	 * @param out Receives the JSON; it is not flushed or closed.
+	 * @param policy Which characters to write as <code>&#92;u</code> escapes in strings and keys.
+	 * @throws IOException If {@code out} throws it; part of the JSON may already have been written.
+	 */
+	public void prettyPrintTo(OutputStream out, JSONEscapePolicy policy) throws IOException {
+		JSONWriter.writeTo(out, self, 0, policy);
+	}
+	
+	/**
+	 * Writes this element as pretty-printed, UTF-8 encoded JSON into {@code out}, from its position onwards; see {@link #prettyPrintTo(OutputStream)}.
+	 * 
+	 * @param out Receives the JSON; its position is advanced past it.
+	 * @throws java.nio.BufferOverflowException If the JSON does not fit in the remaining space of {@code out}; part of the JSON may already have been written.
+	 */
+	public void prettyPrintTo(ByteBuffer out) {
+		prettyPrintTo(out, JSONEscapePolicy.ASCII);
+	}
+	
+	/**
+	 * Writes this element as pretty-printed, UTF-8 encoded JSON into {@code out}, from its position onwards; see {@link #prettyPrintTo(OutputStream)}.
+	 * 
+	 * @param out Receives the JSON; its position is advanced past it.
+	 * @param policy Which characters to write as <code>&#92;u</code> escapes in strings and keys.
+	 * @throws java.nio.BufferOverflowException If the JSON does not fit in the remaining space of {@code out}; part of the JSON may already have been written.
+	 */
+	public void prettyPrintTo(ByteBuffer out, JSONEscapePolicy policy) {
+		JSONWriter.writeTo(out, self, 0, policy);
 	}
 	
 	/**
@@ -156,7 +938,7 @@ public final class JSON {
 		StringBuilder sb = new StringBuilder();
 		sb.append(getPath()).append(": ");
 		if (self == UNDEFINED) return sb.append("UNDEFINED").toString();
-		JSONWriter.toJSON(sb, self, 0);
+		JSONWriter.toJSON(sb, self, 0, JSONEscapePolicy.ASCII);
 		if (self instanceof Map<?, ?> || self instanceof List<?>) sb.append("\n");
 		return sb.toString();
 	}
@@ -266,7 +1048,7 @@ public final class JSON {
 	public String asString() {
 		if (self == NULL) return null;
 		if (self instanceof String) return (String) self;
-		if (self instanceof Boolean) return String.valueOf(self);
+		if (self instanceof Boolean || self instanceof JSONRawNumber) return String.valueOf(self);
 		if (self instanceof Number) {
 			double d = ((Number) self).doubleValue();
 			long v = (long) d;
@@ -902,7 +1684,7 @@ public final class JSON {
 	public void setObject(Object value) {
 		if (value == null) setNull();
 		else if (value instanceof Short || value instanceof Byte || value instanceof Integer || value instanceof Float) createAndSet(((Number) value).doubleValue());
-		else if (value instanceof Double || value instanceof String || value instanceof Boolean) createAndSet(value);
+		else if (value instanceof Double || value instanceof String || value instanceof Boolean || value instanceof JSONRawNumber) createAndSet(value);
 		else if (value instanceof Long) setLong(((Long) value).longValue());
 		else if (value instanceof Character) setChar(((Character) value).charValue());
 		else if (value instanceof Enum<?>) setEnum((Enum<?>) value);
@@ -1016,6 +1798,27 @@ public final class JSON {
 		createAndSet(new ArrayList<Object>());
 	}
 	
+	/**
+	 * Sets the current element to a list whose elements are pulled from {@code values} each time the list is written, rather than stored.
+	 * 
+	 * Writing the document with {@link #toJSON()}, {@link #writeTo(OutputStream)} and the like iterates over {@code values} once, and writes
+	 * each element as it comes, so an export of millions of rows, read from a database cursor, never holds more than one row at a time; combined
+	 * with {@code writeTo}, the memory used does not depend on the number of rows. Elements may be anything {@code JSON} can hold, including
+	 * {@code JSON} objects (for example, a row built with {@code JSON.newMap()}) and {@code null}.
+	 * <p>
+	 * A stream can be passed as {@code stream::iterator}, or {@code () -> openCursor().iterator()} to get a fresh stream each time. A source that
+	 * can only be iterated once can only be written once. Reading the list in any other way than iterating over it, for example with
+	 * {@code asList().size()} or {@code get(0)}, or modifying it, copies all elements into a regular list first.
+	 * <p>
+	 * See {@link #setObject(Object)} for details on how {@code setX()} methods work.
+	 * 
+	 * @param values The source of the elements of the list.
+	 */
+	public void setLazyList(Iterable<?> values) {
+		if (values == null) throw new NullPointerException("values");
+		createAndSet(new JSONLazyList(values));
+	}
+	
 	/**
 	 * Sets this element to be a list if it currently is {@code null} or non-existent.
 	 * <p>
@@ -0,0 +1,200 @@
+package com.zwitserloot.json;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the elements of one array in a document while it is being parsed, such as the rows in <code>{"meta": {...}, "results": [...]}</code>;
+ * see {@link JSON#streamArray(java.io.InputStream, String, JSONParseOption...)}.
+ * 
+ * Each element is parsed when {@link #next()} is called, and is not kept, so memory use depends on the size of a single element rather than
+ * the size of the document, and the first element is available as soon as it has been read. Everything else in the document is kept, and
+ * available from {@link #metadata()}.
+ * <p>
+ * The stream borrows a buffer from {@link JSONRecycler}, which it gives back once {@link #hasNext()} returns {@code false} or an exception is
+ * thrown; if you stop iterating before that, call {@link #close()}.
+ */
+public final class JSONArrayStream implements Iterator<JSON>, Closeable {
+	private final JSONReader reader;
+	private final String path;
+	private Object root;
+	/** The maps and lists that contain the array, outermost first; they still have to be read to the end once the array has been. */
+	private final List<Object> open = new ArrayList<Object>();
+	private boolean done;
+	
+	/**
+	 * Reads the document up to the first element of the array at {@code path}.
+	 */
+	JSONArrayStream(JSONParser parser, String path) {
+		this.reader = new JSONReader(parser);
+		this.path = path;
+		boolean found = false;
+		try {
+			String[] segments = path.length() == 0 ? new String[0] : path.split("/", -1);
+			for (String segment : segments) if (segment.length() == 0) throw new IllegalArgumentException("Empty key in path: " + path);
+			found = descend(segments);
+			if (!found) finish();
+		} finally {
+			if (!found) close();
+		}
+		if (!found) throw new JSONException("No array at " + (path.length() == 0 ? "the top level" : path));
+	}
+	
+	/**
+	 * @return {@code true} if reading stopped at the start of the array; {@code false} if the document does not contain it.
+	 */
+	private boolean descend(String[] segments) {
+		Object parent = null;
+		String key = null;
+		outer:
+		for (int depth = 0; ; depth++) {
+			JSONReader.Token t = reader.peek();
+			if (depth == segments.length) {
+				if (t != JSONReader.Token.BEGIN_ARRAY) {
+					add(parent, key, reader.nextRawValue());
+					return false;
+				}
+				reader.beginArray();
+				add(parent, key, new ArrayList<Object>());
+				return true;
+			}
+			
+			String segment = segments[depth];
+			if (t == JSONReader.Token.BEGIN_OBJECT) {
+				Map<String, Object> map = new LinkedHashMap<String, Object>();
+				add(parent, key, map);
+				reader.beginObject();
+				open.add(map);
+				while (reader.hasNext()) {
+					String name = nextName(map);
+					if (name.equals(segment)) {
+						parent = map;
+						key = name;
+						continue outer;
+					}
+					map.put(name, reader.nextRawValue());
+				}
+				return false;
+			}
+			if (t == JSONReader.Token.BEGIN_ARRAY) {
+				List<Object> list = new ArrayList<Object>();
+				add(parent, key, list);
+				reader.beginArray();
+				open.add(list);
+				int index = segment.matches("0|[1-9][0-9]{0,8}") ? Integer.parseInt(segment) : -1;
+				while (reader.hasNext()) {
+					if (list.size() == index) {
+						parent = list;
+						key = null;
+						continue outer;
+					}
+					list.add(reader.nextRawValue());
+				}
+				return false;
+			}
+			add(parent, key, reader.nextRawValue());
+			return false;
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private void add(Object parent, String key, Object value) {
+		if (parent == null) root = value;
+		else if (parent instanceof Map<?, ?>) ((Map<String, Object>) parent).put(key, value);
+		else ((List<Object>) parent).add(value);
+	}
+	
+	private String nextName(Map<String, Object> map) {
+		String name = reader.nextName();
+		if (map.containsKey(name)) reader.parser.jsonError("JSON object contains key " + name + " twice");
+		return name;
+	}
+	
+	/**
+	 * Reads the rest of everything that contains the array.
+	 */
+	@SuppressWarnings("unchecked")
+	private void finish() {
+		for (int i = open.size() - 1; i >= 0; i--) {
+			Object container = open.get(i);
+			if (container instanceof Map<?, ?>) {
+				Map<String, Object> map = (Map<String, Object>) container;
+				while (reader.hasNext()) map.put(nextName(map), reader.nextRawValue());
+				reader.endObject();
+			} else {
+				List<Object> list = (List<Object>) container;
+				while (reader.hasNext()) list.add(reader.nextRawValue());
+				reader.endArray();
+			}
+		}
+		open.clear();
+	}
+	
+	/**
+	 * Once the last element has been read, this also reads the rest of the document.
+	 * 
+	 * @return {@code true} if the array has another element.
+	 */
+	public boolean hasNext() {
+		if (done) return false;
+		boolean more = false;
+		try {
+			more = reader.hasNext();
+			if (!more) {
+				reader.endArray();
+				finish();
+			}
+		} finally {
+			if (!more) close();
+		}
+		return more;
+	}
+	
+	/**
+	 * @return The next element of the array, as a root {@code JSON} object.
+	 */
+	public JSON next() {
+		if (!hasNext()) throw new NoSuchElementException();
+		boolean parsed = false;
+		try {
+			JSON element = reader.nextValue();
+			parsed = true;
+			return element;
+		} finally {
+			if (!parsed) close();
+		}
+	}
+	
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+	
+	/**
+	 * Stops reading, and gives the buffer back; the stream that is read from is not closed. Afterwards {@link #hasNext()} returns {@code false},
+	 * and {@link #metadata()} only has what was read so far. Closing more than once has no effect.
+	 */
+	public void close() {
+		done = true;
+		reader.close();
+	}
+	
+	/**
+	 * Returns the document without the elements of the array; the array itself is there, but empty.
+	 * 
+	 * Until {@link #hasNext()} has returned {@code false}, this only contains what comes before the array in the document.
+	 * 
+	 * @return The rest of the document, as a root {@code JSON} object.
+	 */
+	public JSON metadata() {
+		return new JSON(root);
+	}
+	
+	@Override public String toString() {
+		return "JSONArrayStream[" + path + "]";
+	}
+}
@@ -0,0 +1,240 @@
+package com.zwitserloot.json;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Tokenizes characters, read through a fixed-size buffer from a {@code CharSequence} or {@code Reader}, or straight out of a {@code char[]}.
+ */
+final class JSONCharParser extends JSONParser {
+	
+	private final Reader reader;
+	private final CharSequence chars;
+	private int charsPos = 0;
+	private final char[] buf;
+	private int pos = 0;
+	private int limit = 0;
+	private long offset = 0;
+	private StringBuilder scratch;
+	private boolean released;
+	private final Slice slice = new Slice();
+	
+	/**
+	 * The characters are copied into the parse buffer a chunk at a time, so the input is never duplicated as a whole.
+	 */
+	JSONCharParser(CharSequence chars) {
+		this.reader = null;
+		this.chars = chars;
+		this.buf = JSONRecycler.CHAR_BUFFERS.acquire();
+	}
+	
+	/**
+	 * The array is used as the parse buffer directly; it is not copied, and must not be modified while parsing.
+	 */
+	JSONCharParser(char[] chars, int offset, int length) {
+		this.reader = null;
+		this.chars = null;
+		this.buf = chars;
+		this.pos = offset;
+		this.limit = offset + length;
+		this.offset = -offset;
+	}
+	
+	/**
+	 * The reader is consumed in chunks of a fixed size; it is not closed by the parser.
+	 */
+	JSONCharParser(Reader reader) {
+		this.reader = reader;
+		this.chars = null;
+		this.buf = JSONRecycler.CHAR_BUFFERS.acquire();
+	}
+	
+	/**
+	 * Refills the buffer. Characters that were already consumed are discarded; a token that straddles the
+	 * end of the buffer must first save what it has so far into {@link #scratch()}.
+	 */
+	private boolean fill() {
+		offset += limit;
+		if (maxDocumentLength != Long.MAX_VALUE) checkDocumentLength(offset);
+		pos = 0;
+		limit = 0;
+		if (chars != null) {
+			int n = Math.min(buf.length, chars.length() - charsPos);
+			if (n <= 0) return false;
+			if (chars instanceof String) ((String) chars).getChars(charsPos, charsPos + n, buf, 0);
+			else if (chars instanceof StringBuilder) ((StringBuilder) chars).getChars(charsPos, charsPos + n, buf, 0);
+			else for (int i = 0; i < n; i++) buf[i] = chars.charAt(charsPos + i);
+			charsPos += n;
+			limit = n;
+			return true;
+		}
+		
+		if (reader == null) return false;
+		int r;
+		try {
+			do {
+				r = reader.read(buf, 0, buf.length);
+			} while (r == 0);
+		} catch (IOException e) {
+			throw new JSONException("I/O error while reading json input(" + offset + ")", e);
+		}
+		if (r == -1) return false;
+		limit = r;
+		return true;
+	}
+	
+	int peek() {
+		if (pos == limit && !fill()) return -1;
+		return buf[pos];
+	}
+	
+	int read() {
+		if (pos == limit && !fill()) return -1;
+		return buf[pos++];
+	}
+	
+	private StringBuilder scratch() {
+		if (scratch == null) scratch = JSONRecycler.STRING_BUILDERS.acquire();
+		else scratch.setLength(0);
+		return scratch;
+	}
+	
+	@Override void release() {
+		if (released) return;
+		released = true;
+		if (reader != null || chars != null) JSONRecycler.CHAR_BUFFERS.release(buf);
+		if (scratch != null) JSONRecycler.STRING_BUILDERS.release(scratch);
+		scratch = null;
+	}
+	
+	int nextSignificant() {
+		while (true) {
+			if (pos == limit && !fill()) return -1;
+			char c = buf[pos++];
+			if (c <= ' ' && isWhitespace(c)) continue;
+			if (c == '#' || (c == '/' && peek() == '/')) {
+				skipLine();
+				continue;
+			}
+			return c;
+		}
+	}
+	
+	private void skipLine() {
+		while (true) {
+			if (pos == limit && !fill()) return;
+			if (buf[pos++] == '\n') return;
+		}
+	}
+	
+	long position() {
+		return offset + pos;
+	}
+	
+	boolean readLiteral(String rest) {
+		int len = rest.length();
+		if (limit - pos >= len) {
+			for (int i = 0; i < len; i++) if (buf[pos + i] != rest.charAt(i)) return false;
+			pos += len;
+			return true;
+		}
+		
+		for (int i = 0; i < len; i++) {
+			if (read() != rest.charAt(i)) return false;
+		}
+		return true;
+	}
+	
+	CharSequence parseMapKeyView(int first) {
+		if (!isMapKeyChar(first)) return jsonError("Unexpected symbol in map key: " + (char) first);
+		int start = pos - 1;
+		
+		StringBuilder out = null;
+		while (true) {
+			if (pos == limit) {
+				if (out == null) out = scratch();
+				out.append(buf, start, pos - start);
+				if (!fill()) return jsonError("Expected colon instead of end-of-stream.");
+				start = pos;
+			}
+			char c = buf[pos];
+			if (c == ':' || isWhitespace(c)) {
+				if (out == null) return slice.of(start, pos);
+				return out.append(buf, start, pos - start);
+			}
+			pos++;
+			if (!isMapKeyChar(c)) return jsonError("Unexpected symbol in map key: " + c);
+		}
+	}
+	
+	boolean skipString() {
+		boolean verbatim = true;
+		while (true) {
+			if (pos == limit && !fill()) return jsonError("String not closed");
+			char c = buf[pos++];
+			if (c == '"') return verbatim;
+			if (c == '\\') {
+				verbatim = false;
+				if (read() == -1) jsonError("Dangling string escape");
+			}
+		}
+	}
+	
+	/**
+	 * Strings without escapes that fit in the buffer are returned as a view of it;
+	 * only escapes and strings that straddle a buffer refill go through the scratch buffer.
+	 */
+	CharSequence parseStringView() {
+		StringBuilder out = null;
+		int start = pos;
+		
+		while (true) {
+			if (pos == limit) {
+				if (out == null) out = scratch();
+				out.append(buf, start, pos - start);
+				if (!fill()) return jsonError("String not closed");
+				start = pos;
+			}
+			char c = buf[pos++];
+			if (c == '"') {
+				if (out == null) return slice.of(start, pos - 1);
+				return out.append(buf, start, pos - 1 - start);
+			}
+			if (c == '\\') {
+				if (out == null) out = scratch();
+				out.append(buf, start, pos - 1 - start);
+				parseEscape(out);
+				start = pos;
+			}
+		}
+	}
+	
+	/**
+	 * A view of part of the parse buffer.
+	 */
+	private final class Slice implements CharSequence {
+		private int start, end;
+		
+		Slice of(int start, int end) {
+			this.start = start;
+			this.end = end;
+			return this;
+		}
+		
+		public int length() {
+			return end - start;
+		}
+		
+		public char charAt(int index) {
+			return buf[start + index];
+		}
+		
+		public CharSequence subSequence(int from, int to) {
+			return new String(buf, start + from, to - from);
+		}
+		
+		@Override public String toString() {
+			return new String(buf, start, end - start);
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package com.zwitserloot.json;
+
+import java.math.BigInteger;
+
+/**
+ * Turns a decimal mantissa and exponent into the nearest double without going through a {@code String}.
+ * 
+ * Small values are handled exactly with a single multiplication or division ('Clinger's fast path'); everything else goes through the
+ * Eisel-Lemire algorithm, which multiplies the mantissa by a 128-bit approximation of the power of 10 and only gives up in the rare cases where
+ * that approximation is not precise enough to decide the rounding. The caller then falls back to {@code Double.parseDouble}.
+ */
+final class JSONDoubles {
+	private JSONDoubles() {}
+	
+	private static final double[] EXACT_POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22,
+	};
+	
+	private static final int MIN_EXPONENT = -348;
+	private static final int MAX_EXPONENT = 347;
+	
+	/**
+	 * Holds the 128-bit approximations (rounded down) of the powers of 10 from {@code MIN_EXPONENT} to {@code MAX_EXPONENT}, normalized so the top bit is set;
+	 * high half at even indices, low half at odd ones. Only computed when a number first needs it.
+	 */
+	private static final class PowersOfTen {
+		static final long[] TABLE = new long[(MAX_EXPONENT - MIN_EXPONENT + 1) * 2];
+		
+		static {
+			BigInteger ten = BigInteger.valueOf(10);
+			for (int e = MIN_EXPONENT; e <= MAX_EXPONENT; e++) {
+				BigInteger m;
+				if (e >= 0) {
+					BigInteger p = ten.pow(e);
+					int shift = p.bitLength() - 128;
+					m = shift > 0 ? p.shiftRight(shift) : p.shiftLeft(-shift);
+				} else {
+					BigInteger p = ten.pow(-e);
+					m = BigInteger.ONE.shiftLeft(p.bitLength() + 127).divide(p);
+				}
+				int i = (e - MIN_EXPONENT) * 2;
+				TABLE[i] = m.shiftRight(64).longValue();
+				TABLE[i + 1] = m.longValue();
+			}
+		}
+	}
+	
+	/**
+	 * @param mantissa The decimal digits of the number as an unsigned long.
+	 * @param exponent The power of 10 to multiply {@code mantissa} by.
+	 * @param negative Whether the number has a minus sign.
+	 * @return The double closest to the number, or {@code NaN} if it could not be determined cheaply.
+	 */
+	static double toDouble(long mantissa, int exponent, boolean negative) {
+		if (mantissa == 0) return negative ? -0.0 : 0.0;
+		if (mantissa > 0 && mantissa <= 1L << 53 && exponent >= -22 && exponent <= 22) {
+			double d = exponent < 0 ? mantissa / EXACT_POWERS_OF_TEN[-exponent] : mantissa * EXACT_POWERS_OF_TEN[exponent];
+			return negative ? -d : d;
+		}
+		if (exponent < MIN_EXPONENT || exponent > MAX_EXPONENT) return Double.NaN;
+		return eiselLemire(mantissa, exponent, negative);
+	}
+	
+	private static double eiselLemire(long mantissa, int exponent, boolean negative) {
+		int lz = Long.numberOfLeadingZeros(mantissa);
+		long man = mantissa << lz;
+		long exp2 = ((217706L * exponent) >> 16) + 64 + 1023 - lz;
+		
+		int i = (exponent - MIN_EXPONENT) * 2;
+		long[] table = PowersOfTen.TABLE;
+		long hi = multiplyHigh(man, table[i]);
+		long lo = man * table[i];
+		
+		if ((hi & 0x1FF) == 0x1FF && unsignedLess(lo + man, man)) {
+			long yHi = multiplyHigh(man, table[i + 1]);
+			long yLo = man * table[i + 1];
+			long mergedHi = hi;
+			long mergedLo = lo + yHi;
+			if (unsignedLess(mergedLo, lo)) mergedHi++;
+			if ((mergedHi & 0x1FF) == 0x1FF && mergedLo + 1 == 0 && unsignedLess(yLo + man, man)) return Double.NaN;
+			hi = mergedHi;
+			lo = mergedLo;
+		}
+		
+		long msb = hi >>> 63;
+		long bits = hi >>> (msb + 9);
+		exp2 -= 1 ^ msb;
+		
+		if (lo == 0 && (hi & 0x1FF) == 0 && (bits & 3) == 1) return Double.NaN;
+		
+		bits += bits & 1;
+		bits >>>= 1;
+		if ((bits >>> 53) > 0) {
+			bits >>>= 1;
+			exp2++;
+		}
+		
+		// Subnormals, infinity and anything close to them are left to the slow path.
+		if (exp2 <= 0 || exp2 >= 0x7FF) return Double.NaN;
+		bits = (exp2 << 52) | (bits & 0x000FFFFFFFFFFFFFL);
+		if (negative) bits |= 0x8000000000000000L;
+		return Double.longBitsToDouble(bits);
+	}
+	
+	private static boolean unsignedLess(long a, long b) {
+		return a + Long.MIN_VALUE < b + Long.MIN_VALUE;
+	}
+	
+	/**
+	 * @return The high 64 bits of the unsigned 128-bit product of {@code a} and {@code b}.
+	 */
+	private static long multiplyHigh(long a, long b) {
+		long aLo = a & 0xFFFFFFFFL, aHi = a >>> 32;
+		long bLo = b & 0xFFFFFFFFL, bHi = b >>> 32;
+		long loLo = aLo * bLo;
+		long hiLo = aHi * bLo;
+		long loHi = aLo * bHi;
+		long hiHi = aHi * bHi;
+		long cross = (loLo >>> 32) + (hiLo & 0xFFFFFFFFL) + loHi;
+		return hiHi + (hiLo >>> 32) + (cross >>> 32);
+	}
+}
@@ -0,0 +1,21 @@
+package com.zwitserloot.json;
+
+/**
+ * Which characters in strings and map keys are written as <code>&#92;u</code> escapes; pass it to {@link JSON#toJSON(JSONEscapePolicy)} and the other
+ * methods that write JSON.
+ * 
+ * Either way, quotes, backslashes and control characters are escaped, as JSON requires, and so are {@code DEL} and unpaired surrogates,
+ * which can't be encoded.
+ */
+public enum JSONEscapePolicy {
+	/**
+	 * Escape every character outside of printable ASCII, so the output is plain ASCII and survives any transport encoding. This is the default.
+	 */
+	ASCII,
+	
+	/**
+	 * Write characters outside of ASCII as they are, which makes text in most languages much smaller and faster to write. Only use this when
+	 * the output is kept as characters, or encoded as UTF-8 (as the methods that write bytes do).
+	 */
+	UNICODE;
+}
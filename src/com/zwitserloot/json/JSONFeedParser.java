@@ -0,0 +1,483 @@
+package com.zwitserloot.json;
+
+import static com.zwitserloot.json.JSONParser.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+
+/**
+ * Parses UTF-8 encoded JSON that arrives in chunks, such as the body of a request read by a non-blocking server, without ever blocking and
+ * without needing the whole document up front.
+ * 
+ * Each chunk passed to {@link #feed(ByteBuffer)} is parsed as far as it goes, straight into the resulting maps and lists; the parser remembers
+ * where it was, even in the middle of a string, an escape, a multi-byte character or a number, and carries on when the next chunk arrives.
+ * The work of parsing a document is thus spread over the chunks, instead of all happening once the last one is in.
+ * <p>
+ * The input may contain any number of top-level values, optionally separated by whitespace. Each one becomes available from {@link #next()}
+ * as soon as it is complete; call {@link #endOfInput()} after the last chunk, which also completes a number at the very end of the input.
+ * The grammar is the same as that of {@link JSON#parse(String, JSONParseOption...)}, including comments and unquoted map keys.
+ * <p>
+ * For input from clients that can't be trusted, pass {@link JSONParseLimits}: a string, number or nesting that exceeds them is rejected
+ * as soon as it does, rather than once it is complete, so the parser never holds more of a hostile document than the limits allow.
+ * <p>
+ * Once a chunk turns out not to be valid JSON, {@code feed} throws a {@code JSONException}, and the parser can't be used any further.
+ * This class is not safe for use by multiple threads.
+ */
+public final class JSONFeedParser {
+	private static final int SIGNIFICANT = 0;
+	private static final int SLASH = 1;
+	private static final int COMMENT = 2;
+	private static final int STRING = 3;
+	private static final int ESCAPE = 4;
+	private static final int UNICODE_ESCAPE = 5;
+	private static final int UTF8 = 6;
+	private static final int WORD = 7;
+	private static final int DONE = 8;
+	private static final int FAILED = 9;
+	
+	private int state = SIGNIFICANT;
+	private long offset = 0;
+	private int chunkStart, pos;
+	private Frame top;
+	private final Queue<Object> completed = new ArrayDeque<Object>();
+	
+	private final StringBuilder text = new StringBuilder();
+	private boolean textIsKey;
+	private int codePoint, remaining, minimum, wordLimit;
+	private byte[] copyBuffer;
+	private int depth;
+	
+	private final boolean rawNumbers;
+	private final JSONStringCache stringCache;
+	private final int maxDepth;
+	private final long maxDocumentLength;
+	private final int maxStringLength;
+	private final int maxEntries;
+	private final NumberDecoder numbers = new NumberDecoder();
+	
+	/**
+	 * Creates a parser without any options.
+	 */
+	public JSONFeedParser() {
+		this(new JSONParseOption[0]);
+	}
+	
+	/**
+	 * @param options Changes how the input is turned into {@code JSON} objects; see {@link JSONParseOption}. A {@link JSONSelection} has no
+	 *     effect. The limits of a {@link JSONParseLimits} apply to each top-level value, except {@code maxDocumentLength}, which applies to
+	 *     all of the input.
+	 */
+	public JSONFeedParser(JSONParseOption... options) {
+		// Options configure a JSONParser; take the settings from one that never parses anything.
+		JSONParser settings = new JSONCharParser(new char[0], 0, 0).configure(options);
+		this.rawNumbers = settings.rawNumbers;
+		this.stringCache = settings.stringCache;
+		this.maxDepth = settings.maxDepth;
+		this.maxDocumentLength = settings.maxDocumentLength;
+		this.maxStringLength = settings.maxStringLength;
+		this.maxEntries = settings.maxEntries;
+		numbers.maxNumberLength = settings.maxNumberLength;
+	}
+	
+	/**
+	 * An object or array that is being parsed; its state is exactly that of a {@code JSONParser.Frame}.
+	 */
+	private static final class Frame {
+		final Frame parent;
+		final Map<String, Object> map;
+		final List<Object> list;
+		boolean commaNeeded, colonNeeded;
+		String key;
+		
+		Frame(Frame parent, boolean object) {
+			this.parent = parent;
+			this.map = object ? new LinkedHashMap<String, Object>() : null;
+			this.list = object ? null : new ArrayList<Object>();
+		}
+	}
+	
+	/**
+	 * Parses all remaining bytes of {@code chunk}, and moves its position to its limit.
+	 * 
+	 * @throws JSONException If the input so far is not valid JSON.
+	 * @throws IllegalStateException If {@link #endOfInput()} was already called, or an earlier chunk was not valid JSON.
+	 */
+	public void feed(ByteBuffer chunk) {
+		if (chunk.hasArray()) {
+			feed(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+			chunk.position(chunk.limit());
+			return;
+		}
+		
+		if (copyBuffer == null) copyBuffer = new byte[8192];
+		while (chunk.hasRemaining()) {
+			int len = Math.min(copyBuffer.length, chunk.remaining());
+			chunk.get(copyBuffer, 0, len);
+			feed(copyBuffer, 0, len);
+		}
+	}
+	
+	/**
+	 * Parses {@code length} bytes of {@code bytes}, starting at {@code offset}. The bytes are not referenced after this method returns.
+	 * 
+	 * @throws JSONException If the input so far is not valid JSON.
+	 * @throws IllegalStateException If {@link #endOfInput()} was already called, or an earlier chunk was not valid JSON.
+	 */
+	public void feed(byte[] bytes, int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > bytes.length) throw new IndexOutOfBoundsException();
+		checkUsable();
+		boolean tooLong = this.offset + length > maxDocumentLength;
+		int end = tooLong ? offset + (int) (maxDocumentLength - this.offset) : offset + length;
+		chunkStart = pos = offset;
+		try {
+			while (pos < end) {
+				switch (state) {
+				case SIGNIFICANT:
+					int c = bytes[pos++] & 0xFF;
+					if (c <= ' ' && isWhitespace(c)) continue;
+					if (c == '#') state = COMMENT;
+					else if (c == '/') state = SLASH;
+					else significant(c);
+					break;
+				case SLASH:
+					if (bytes[pos] != '/') significant('/');
+					pos++;
+					state = COMMENT;
+					break;
+				case COMMENT:
+					if (bytes[pos++] == '\n') state = SIGNIFICANT;
+					break;
+				case STRING:
+					string(bytes, end);
+					break;
+				case ESCAPE:
+					escape(bytes[pos++] & 0xFF);
+					break;
+				case UNICODE_ESCAPE:
+					codePoint = (codePoint << 4) | hexDigit(bytes[pos++] & 0xFF);
+					if (--remaining == 0) {
+						text.append((char) codePoint);
+						state = STRING;
+					}
+					break;
+				case UTF8:
+					utf8(bytes[pos++] & 0xFF);
+					break;
+				case WORD:
+					int w = bytes[pos];
+					if (isMapKeyChar(w) || w == '.' || w == '+') {
+						if (text.length() == wordLimit) wordTooLong();
+						text.append((char) w);
+						pos++;
+					} else {
+						state = SIGNIFICANT;
+						word();
+					}
+					break;
+				}
+			}
+			if (tooLong) error("Document longer than " + maxDocumentLength);
+			this.offset += length;
+		} catch (JSONException e) {
+			state = FAILED;
+			throw e;
+		}
+	}
+	
+	/**
+	 * Signals that there are no more chunks; a top-level number at the very end of the input is only complete once this is called.
+	 * 
+	 * @throws JSONException If the input ends in the middle of a value.
+	 * @throws IllegalStateException If this was already called, or an earlier chunk was not valid JSON.
+	 */
+	public void endOfInput() {
+		checkUsable();
+		chunkStart = pos = 0;
+		try {
+			if (state == WORD) word();
+			else if (state == SLASH) significant('/');
+			else if (state != SIGNIFICANT && state != COMMENT) error("String not closed");
+			if (top != null) error(top.map != null ? "Object not closed" : "Array not closed");
+			state = DONE;
+		} catch (JSONException e) {
+			state = FAILED;
+			throw e;
+		}
+	}
+	
+	/**
+	 * @return {@code true} if a top-level value has been parsed completely, and can be obtained from {@link #next()}.
+	 */
+	public boolean hasNext() {
+		return !completed.isEmpty();
+	}
+	
+	/**
+	 * @return The oldest top-level value that has been parsed completely and has not been returned yet.
+	 * @throws NoSuchElementException If there is no such value; see {@link #hasNext()}.
+	 */
+	public JSON next() {
+		if (completed.isEmpty()) throw new NoSuchElementException();
+		return new JSON(completed.remove());
+	}
+	
+	private void checkUsable() {
+		if (state == DONE) throw new IllegalStateException("endOfInput() has already been called");
+		if (state == FAILED) throw new IllegalStateException("The input is not valid JSON");
+	}
+	
+	private <T> T error(String msg) {
+		throw new JSONException(msg + "(" + (offset + pos - chunkStart) + ")");
+	}
+	
+	/**
+	 * Handles the next significant character, the way {@code JSONParser.parseContainer} and {@code parseValue} would.
+	 */
+	private void significant(int c) {
+		Frame f = top;
+		if (f == null) {
+			startValue(c);
+		} else if (f.map != null) {
+			if (f.colonNeeded && c != ':') error("Colon expected here");
+			if (c == '}') {
+				if (f.key != null) error("value expected here");
+				close();
+				return;
+			}
+			if (f.commaNeeded && c != ',') error("Comma expected here");
+			
+			if (c == ',') f.commaNeeded = false;
+			else if (c == ':') f.colonNeeded = false;
+			else if (f.key != null) startValue(c);
+			else if (c == '"') startString(true);
+			else if (isMapKeyChar(c)) startWord(c, true);
+			else error("Unexpected symbol in map key: " + (char) c);
+		} else {
+			if (c == ']') {
+				close();
+			} else if (c == ',') {
+				if (f.commaNeeded) f.commaNeeded = false;
+				else error("Comma not expected here");
+			} else {
+				if (f.commaNeeded) error("Comma expected here");
+				startValue(c);
+			}
+		}
+	}
+	
+	private void startValue(int c) {
+		if (c == '"') startString(false);
+		else if (c == '{' || c == '[') open(c == '{');
+		else if (c == '-' || (c >= '0' && c <= '9') || c == 't' || c == 'f' || c == 'n') startWord(c, false);
+		else error("Invalid character - expected a string, array, object, 'true', 'false', 'null', or number.");
+	}
+	
+	private void open(boolean object) {
+		if (depth >= maxDepth) error("Nested more than " + maxDepth + " levels deep");
+		top = new Frame(top, object);
+		depth++;
+	}
+	
+	private void close() {
+		Frame f = top;
+		top = f.parent;
+		depth--;
+		value(f.map != null ? f.map : f.list);
+	}
+	
+	private void key(String key) {
+		Frame f = top;
+		if (f.map.size() == maxEntries) error("More than " + maxEntries + " entries in a map");
+		if (f.map.containsKey(key)) error("JSON object contains key " + key + " twice");
+		f.key = key;
+		f.colonNeeded = true;
+	}
+	
+	private void value(Object value) {
+		Frame f = top;
+		if (f == null) {
+			completed.add(value);
+		} else if (f.map != null) {
+			f.map.put(f.key, value);
+			f.key = null;
+			f.commaNeeded = true;
+		} else {
+			if (f.list.size() == maxEntries) error("More than " + maxEntries + " elements in a list");
+			f.list.add(value);
+			f.commaNeeded = true;
+		}
+	}
+	
+	private void startString(boolean key) {
+		textIsKey = key;
+		text.setLength(0);
+		state = STRING;
+	}
+	
+	/**
+	 * Copies the plain ASCII run at {@code pos} in one go, then handles the byte that ends it, if it is in this chunk.
+	 */
+	private void string(byte[] bytes, int end) {
+		int start = pos;
+		while (pos < end) {
+			byte c = bytes[pos];
+			if (c == '"' || c == '\\' || c < 0) break;
+			pos++;
+		}
+		for (int i = start; i < pos; i++) text.append((char) bytes[i]);
+		// Escapes and multi-byte characters always return here, so this keeps the string from growing much past the limit.
+		if (text.length() > maxStringLength) error("String longer than " + maxStringLength + " characters");
+		if (pos == end) return;
+		
+		int c = bytes[pos++] & 0xFF;
+		if (c == '"') {
+			state = SIGNIFICANT;
+			if (textIsKey) key(stringCache != null ? stringCache.get(text) : text.toString());
+			else value(stringCache != null && stringCache.cachesValue(text.length()) ? stringCache.get(text) : text.toString());
+		} else if (c == '\\') {
+			state = ESCAPE;
+		} else {
+			startUtf8(c);
+		}
+	}
+	
+	private void escape(int d) {
+		state = STRING;
+		switch (d) {
+		case '"':
+		case '\\':
+		case '/':
+			text.append((char) d); break;
+		case 'b': text.append('\b'); break;
+		case 'f': text.append('\f'); break;
+		case 'n': text.append('\n'); break;
+		case 'r': text.append('\r'); break;
+		case 't': text.append('\t'); break;
+		case 'u':
+			codePoint = 0;
+			remaining = 4;
+			state = UNICODE_ESCAPE;
+			break;
+		default: error("Unknown json string escape: \\" + (char) d);
+		}
+	}
+	
+	private int hexDigit(int c) {
+		if (c >= '0' && c <= '9') return c - '0';
+		if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+		if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+		return error("Not a hex digit: " + (char) c);
+	}
+	
+	/**
+	 * Starts a multi-byte sequence, with the same checks as {@code JSONUtf8Parser}: no overlong encodings, surrogates, or anything beyond U+10FFFF.
+	 */
+	private void startUtf8(int lead) {
+		if (lead >= 0xC2 && lead <= 0xDF) {
+			codePoint = lead & 0x1F;
+			remaining = 1;
+			minimum = 0x80;
+		} else if (lead >= 0xE0 && lead <= 0xEF) {
+			codePoint = lead & 0x0F;
+			remaining = 2;
+			minimum = 0x800;
+		} else if (lead >= 0xF0 && lead <= 0xF4) {
+			codePoint = lead & 0x07;
+			remaining = 3;
+			minimum = 0x10000;
+		} else {
+			error("Invalid UTF-8 byte: 0x" + Integer.toHexString(lead));
+		}
+		state = UTF8;
+	}
+	
+	private void utf8(int c) {
+		if ((c & 0xC0) != 0x80) error("Truncated UTF-8 sequence");
+		codePoint = (codePoint << 6) | (c & 0x3F);
+		if (--remaining > 0) return;
+		if (codePoint < minimum || codePoint > 0x10FFFF || (codePoint >= 0xD800 && codePoint <= 0xDFFF)) error("Invalid UTF-8 sequence");
+		text.appendCodePoint(codePoint);
+		state = STRING;
+	}
+	
+	/**
+	 * Starts an unquoted map key, a number, or {@code true}, {@code false} or {@code null}; they all end at the first character that can't
+	 * be part of any of them.
+	 */
+	private void startWord(int first, boolean key) {
+		textIsKey = key;
+		text.setLength(0);
+		text.append((char) first);
+		if (key) wordLimit = maxStringLength;
+		else if (first == 't' || first == 'f' || first == 'n') wordLimit = 5;
+		else wordLimit = numbers.maxNumberLength;
+		state = WORD;
+	}
+	
+	private void wordTooLong() {
+		if (textIsKey) error("String longer than " + maxStringLength + " characters");
+		char first = text.charAt(0);
+		if (first == 't' || first == 'f' || first == 'n') error("Invalid character - expected a string, array, object, 'true', 'false', 'null', or number.");
+		error("Number longer than " + numbers.maxNumberLength + " characters");
+	}
+	
+	private void word() {
+		if (textIsKey) {
+			for (int i = 0; i < text.length(); i++) {
+				if (!isMapKeyChar(text.charAt(i))) error("Unexpected symbol in map key: " + text.charAt(i));
+			}
+			key(stringCache != null ? stringCache.get(text) : text.toString());
+			return;
+		}
+		
+		char first = text.charAt(0);
+		if (first == 't' || first == 'f' || first == 'n') {
+			String literal = text.toString();
+			if (literal.equals("true")) value(Boolean.TRUE);
+			else if (literal.equals("false")) value(Boolean.FALSE);
+			else if (literal.equals("null")) value(NULL);
+			else error("Invalid character - expected a string, array, object, 'true', 'false', 'null', or number.");
+			return;
+		}
+		
+		value(numbers.decode());
+	}
+	
+	/**
+	 * Decodes the number in {@code text} with the same code, and the same results, as {@code JSON.parse}.
+	 */
+	private final class NumberDecoder extends JSONNumberParser {
+		private int index;
+		
+		Number decode() {
+			index = 0;
+			Number n;
+			if (rawNumbers) {
+				readNumber(read(), false);
+				n = new JSONRawNumber(numberText());
+			} else {
+				n = parseNumber(read());
+			}
+			if (index < text.length()) error("Not a valid number: " + text);
+			return n;
+		}
+		
+		int peek() {
+			return index < text.length() ? text.charAt(index) : -1;
+		}
+		
+		int read() {
+			return index < text.length() ? text.charAt(index++) : -1;
+		}
+		
+		long position() {
+			return offset + pos - chunkStart;
+		}
+	}
+}
@@ -0,0 +1,261 @@
+package com.zwitserloot.json;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Writes JSON one token at a time, without building a tree; the write side counterpart of {@link JSONReader}.
+ * 
+ * The output is exactly what {@link JSON#toJSON()} would produce for the same values (same escaping, and the same rules for numbers), but
+ * nothing is allocated per value: no {@code JSON} objects, no maps or lists. For example:
+ * 
+ * <pre>
+ * JSONGenerator gen = new JSONGenerator(out);
+ * gen.beginObject();
+ * gen.name("id");
+ * gen.value(id);
+ * gen.name("tags");
+ * gen.beginArray();
+ * for (String tag : tags) gen.value(tag);
+ * gen.endArray();
+ * gen.endObject();
+ * gen.close();
+ * </pre>
+ * 
+ * The structure is checked as it is written: a value inside an object must be preceded by a {@link #name(String) name}, every
+ * {@code begin} must be matched by the right {@code end}, and a document holds a single value. Any violation results in an
+ * {@code IllegalStateException}, before anything is written for it. Output is buffered, and passed on to the target a few kilobytes at a
+ * time; call {@link #close()} (or {@link #flush()}) to pass on the rest. A generator does not close the target it writes to.
+ */
+public final class JSONGenerator implements Closeable, Flushable {
+	private static final int EMPTY_DOCUMENT = 0;
+	private static final int NONEMPTY_DOCUMENT = 1;
+	private static final int EMPTY_ARRAY = 2;
+	private static final int NONEMPTY_ARRAY = 3;
+	private static final int EMPTY_OBJECT = 4;
+	private static final int NONEMPTY_OBJECT = 5;
+	private static final int OBJECT_EXPECT_VALUE = 6;
+	
+	private JSONWriter writer;
+	private StringBuilder pooled;
+	private int[] stack = new int[32];
+	private int depth = 1;
+	
+	/**
+	 * @param out Receives the JSON, with everything outside of ASCII escaped.
+	 */
+	public JSONGenerator(Appendable out) {
+		this(out, JSONEscapePolicy.ASCII);
+	}
+	
+	/**
+	 * @param out Receives the JSON. If it is a {@code StringBuilder}, the JSON is appended to it directly.
+	 * @param policy Which characters to write as <code>&#92;u</code> escapes in strings and names.
+	 */
+	public JSONGenerator(Appendable out, JSONEscapePolicy policy) {
+		if (out instanceof StringBuilder) {
+			this.writer = new JSONWriter.Chars((StringBuilder) out, null, policy, false);
+		} else {
+			this.pooled = JSONRecycler.STRING_BUILDERS.acquire();
+			this.writer = new JSONWriter.Chars(pooled, out, policy, false);
+		}
+	}
+	
+	/**
+	 * @param out Receives the JSON, UTF-8 encoded, with everything outside of ASCII escaped.
+	 */
+	public JSONGenerator(OutputStream out) {
+		this(out, JSONEscapePolicy.ASCII);
+	}
+	
+	/**
+	 * @param out Receives the JSON, UTF-8 encoded.
+	 * @param policy Which characters to write as <code>&#92;u</code> escapes in strings and names.
+	 */
+	public JSONGenerator(OutputStream out, JSONEscapePolicy policy) {
+		this.writer = new JSONWriter.Utf8(out, null, policy, false);
+	}
+	
+	/**
+	 * @param out Receives the JSON, UTF-8 encoded, with everything outside of ASCII escaped, from its position onwards; a
+	 *     {@code java.nio.BufferOverflowException} is thrown when it is full.
+	 */
+	public JSONGenerator(ByteBuffer out) {
+		this(out, JSONEscapePolicy.ASCII);
+	}
+	
+	/**
+	 * @param out Receives the JSON, UTF-8 encoded, from its position onwards; a {@code java.nio.BufferOverflowException} is thrown
+	 *     when it is full.
+	 * @param policy Which characters to write as <code>&#92;u</code> escapes in strings and names.
+	 */
+	public JSONGenerator(ByteBuffer out, JSONEscapePolicy policy) {
+		this.writer = new JSONWriter.Utf8(null, out, policy, false);
+	}
+	
+	private JSONWriter writer() {
+		if (writer == null) throw new IllegalStateException("This generator has been closed");
+		return writer;
+	}
+	
+	/**
+	 * Checks that a value may be written here, and writes the separator before it.
+	 */
+	private JSONWriter beforeValue() throws IOException {
+		JSONWriter w = writer();
+		switch (stack[depth - 1]) {
+		case EMPTY_DOCUMENT:
+			stack[depth - 1] = NONEMPTY_DOCUMENT;
+			break;
+		case EMPTY_ARRAY:
+			stack[depth - 1] = NONEMPTY_ARRAY;
+			break;
+		case NONEMPTY_ARRAY:
+			w.raw(',');
+			break;
+		case OBJECT_EXPECT_VALUE:
+			stack[depth - 1] = NONEMPTY_OBJECT;
+			break;
+		case NONEMPTY_DOCUMENT:
+			throw new IllegalStateException("A JSON document holds a single value");
+		default:
+			throw new IllegalStateException("Expected a name() before a value in an object");
+		}
+		return w;
+	}
+	
+	private void push(int state) {
+		if (depth == stack.length) stack = Arrays.copyOf(stack, depth * 2);
+		stack[depth++] = state;
+	}
+	
+	private void pop(int empty, int nonEmpty, char c) throws IOException {
+		JSONWriter w = writer();
+		int state = stack[depth - 1];
+		if (state == OBJECT_EXPECT_VALUE) throw new IllegalStateException("Expected a value after name()");
+		if (state == EMPTY_DOCUMENT || state == NONEMPTY_DOCUMENT) throw new IllegalStateException("There is no object or array to end");
+		if (state != empty && state != nonEmpty) throw new IllegalStateException(c == '}' ? "Expected endArray()" : "Expected endObject()");
+		depth--;
+		w.raw(c);
+		w.flushIfFull();
+	}
+	
+	public void beginObject() throws IOException {
+		beforeValue().raw('{');
+		push(EMPTY_OBJECT);
+	}
+	
+	public void endObject() throws IOException {
+		pop(EMPTY_OBJECT, NONEMPTY_OBJECT, '}');
+	}
+	
+	public void beginArray() throws IOException {
+		beforeValue().raw('[');
+		push(EMPTY_ARRAY);
+	}
+	
+	public void endArray() throws IOException {
+		pop(EMPTY_ARRAY, NONEMPTY_ARRAY, ']');
+	}
+	
+	/**
+	 * Writes the name of the next entry in the current object; it must be followed by exactly one value.
+	 * 
+	 * Like map keys in {@link JSON#toJSONBytes()}, short names are encoded only once when writing bytes, so the same names in every element
+	 * of an array cost little more than a copy.
+	 */
+	public void name(String name) throws IOException {
+		if (name == null) throw new NullPointerException("name");
+		JSONWriter w = writer();
+		int state = stack[depth - 1];
+		if (state == NONEMPTY_OBJECT) w.raw(',');
+		else if (state != EMPTY_OBJECT) throw new IllegalStateException(state == OBJECT_EXPECT_VALUE ?
+				"Expected a value after name()" : "name() is only allowed directly inside an object");
+		stack[depth - 1] = OBJECT_EXPECT_VALUE;
+		w.key(name);
+		w.raw(':');
+	}
+	
+	/**
+	 * Writes a string, or {@code null} if {@code value} is {@code null}.
+	 */
+	public void value(String value) throws IOException {
+		if (value == null) {
+			nullValue();
+			return;
+		}
+		JSONWriter w = beforeValue();
+		w.string(value);
+		w.flushIfFull();
+	}
+	
+	/**
+	 * Writes a number; as with {@link JSON#setLong(long)}, numbers that a double can't hold exactly are written as strings.
+	 */
+	public void value(long value) throws IOException {
+		JSONWriter w = beforeValue();
+		w.number(value);
+		w.flushIfFull();
+	}
+	
+	/**
+	 * Writes a number.
+	 * 
+	 * @throws JSONException If {@code value} is NaN or infinite, which JSON can't represent.
+	 */
+	public void value(double value) throws IOException {
+		if (Double.isNaN(value) || Double.isInfinite(value)) throw new JSONException("Not a JSON number: " + value);
+		JSONWriter w = beforeValue();
+		w.number(value);
+		w.flushIfFull();
+	}
+	
+	public void value(boolean value) throws IOException {
+		beforeValue().raw(value ? "true" : "false");
+	}
+	
+	public void nullValue() throws IOException {
+		beforeValue().raw("null");
+	}
+	
+	/**
+	 * Writes the element {@code value} points at, however deeply nested, as {@link JSON#toJSON()} would; an element that doesn't exist is
+	 * written as {@code null}. Use this to mix parts of a {@code JSON} tree into generated output.
+	 */
+	public void value(JSON value) throws IOException {
+		JSONWriter w = beforeValue();
+		w.write(value.value(), Integer.MIN_VALUE);
+		w.flushIfFull();
+	}
+	
+	/**
+	 * Passes everything written so far on to the target; the target itself is not flushed.
+	 */
+	public void flush() throws IOException {
+		writer().flush();
+	}
+	
+	/**
+	 * Passes everything written so far on to the target, and releases this generator's buffers; the target is not closed. Closing a closed
+	 * generator has no effect.
+	 * 
+	 * @throws IllegalStateException If the document is not complete: nothing was written, or an object or array was not ended. The buffers
+	 *     are released regardless.
+	 */
+	public void close() throws IOException {
+		if (writer == null) return;
+		try {
+			if (depth > 1 || stack[0] != NONEMPTY_DOCUMENT) throw new IllegalStateException("Incomplete document");
+			writer.flush();
+		} finally {
+			writer.release();
+			writer = null;
+			if (pooled != null) JSONRecycler.STRING_BUILDERS.release(pooled);
+			pooled = null;
+		}
+	}
+}
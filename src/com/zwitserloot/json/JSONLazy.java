@@ -0,0 +1,424 @@
+package com.zwitserloot.json;
+
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Set;
+
+/**
+ * An index over an in-memory JSON document, for {@link JSON#parseLazy(String)}.
+ * 
+ * Indexing walks the document once, recording where every object, array, key and value starts on a tape of ints, 4 per record:
+ * <ul>
+ * <li>Objects and arrays: type, offset of the opening bracket, number of children, index of the first record after the container.</li>
+ * <li>Keys: type, offset of the first character of the key's contents, offset just past its last character, index of the next record.</li>
+ * <li>Strings, numbers, booleans and null: type, offset of the first character, unused, index of the next record.</li>
+ * </ul>
+ * Nothing is decoded while indexing. The objects and arrays of the document are exposed as {@code Map} and {@code List} implementations that
+ * decode keys and values from the source when they are first asked for, and cache them; the first modification of a container turns it into
+ * a regular {@code LinkedHashMap} or {@code ArrayList} (its children stay lazy).
+ */
+final class JSONLazy {
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	private static final int LINEAR_LOOKUP_LIMIT = 16;
+	
+	private static final int OBJECT = 0;
+	private static final int ARRAY = 1;
+	private static final int SCALAR = 2;
+	private static final int KEY = 3;
+	private static final int ESCAPED_KEY = 4;
+	
+	private static final int STRIDE = 4;
+	private static final int TYPE = 0;
+	private static final int START = 1;
+	private static final int END = 2;
+	private static final int COUNT = 2;
+	private static final int NEXT = 3;
+	
+	private final char[] chars;
+	private final byte[] bytes;
+	private final int base;
+	private final int length;
+	private int[] tape = new int[64 * STRIDE];
+	private int records = 0;
+	
+	private JSONLazy(char[] chars, byte[] bytes, int base, int length) {
+		this.chars = chars;
+		this.bytes = bytes;
+		this.base = base;
+		this.length = length;
+	}
+	
+	/**
+	 * Indexes the characters; the array is referenced, not copied, by the result.
+	 */
+	static Object index(char[] chars, int offset, int length) {
+		JSONParser tokenizer = new JSONCharParser(chars, offset, length);
+		try {
+			return new JSONLazy(chars, null, offset, length).index(tokenizer);
+		} finally {
+			tokenizer.release();
+		}
+	}
+	
+	/**
+	 * Indexes the UTF-8 encoded bytes; the array is referenced, not copied, by the result.
+	 */
+	static Object index(byte[] bytes, int offset, int length) {
+		JSONParser tokenizer = new JSONUtf8Parser(bytes, offset, length);
+		try {
+			return new JSONLazy(null, bytes, offset, length).index(tokenizer);
+		} finally {
+			tokenizer.release();
+		}
+	}
+	
+	private JSONParser parserAt(int start) {
+		if (chars != null) return new JSONCharParser(chars, base + start, length - start);
+		return new JSONUtf8Parser(bytes, base + start, length - start);
+	}
+	
+	/**
+	 * Parses the value at {@code start} the way {@code JSON.parse} would, and gives the parser's scratch buffer back.
+	 */
+	private Object parseAt(int start) {
+		JSONParser parser = parserAt(start);
+		try {
+			return parser.parseObject();
+		} finally {
+			parser.release();
+		}
+	}
+	
+	/**
+	 * Builds the tape with a {@code JSONReader}, so the grammar is exactly that of {@code JSON.parse}, except that duplicate keys are not detected
+	 * and numbers are only validated once they are read.
+	 */
+	private Object index(JSONParser tokenizer) {
+		JSONReader reader = new JSONReader(tokenizer);
+		JSONReader.Token first = reader.peek();
+		if (first != JSONReader.Token.BEGIN_OBJECT && first != JSONReader.Token.BEGIN_ARRAY) return parseAt(0);
+		
+		int[] open = new int[16];
+		int depth = 0;
+		do {
+			JSONReader.Token t = reader.peek();
+			int start = (int) tokenizer.position() - 1;
+			switch (t) {
+			case BEGIN_OBJECT:
+			case BEGIN_ARRAY:
+				if (depth > 0) tape[open[depth - 1] * STRIDE + COUNT]++;
+				if (depth == open.length) {
+					int[] newOpen = new int[depth * 2];
+					System.arraycopy(open, 0, newOpen, 0, depth);
+					open = newOpen;
+				}
+				open[depth++] = add(t == JSONReader.Token.BEGIN_OBJECT ? OBJECT : ARRAY, start, 0);
+				reader.nextToken();
+				break;
+			case END_OBJECT:
+			case END_ARRAY:
+				reader.nextToken();
+				tape[open[--depth] * STRIDE + NEXT] = records;
+				break;
+			case NAME:
+				reader.nextToken();
+				if (peekQuote(start)) {
+					add(reader.verbatim ? KEY : ESCAPED_KEY, start + 1, (int) tokenizer.position() - 1);
+				} else {
+					add(KEY, start, (int) tokenizer.position());
+				}
+				break;
+			default:
+				tape[open[depth - 1] * STRIDE + COUNT]++;
+				add(SCALAR, start, 0);
+				reader.nextToken();
+			}
+		} while (depth > 0);
+		
+		return value(0);
+	}
+	
+	private boolean peekQuote(int offset) {
+		return chars != null ? chars[base + offset] == '"' : bytes[base + offset] == '"';
+	}
+	
+	private int add(int type, int start, int end) {
+		if ((records + 1) * STRIDE > tape.length) {
+			int[] newTape = new int[tape.length * 2];
+			System.arraycopy(tape, 0, newTape, 0, records * STRIDE);
+			tape = newTape;
+		}
+		int r = records * STRIDE;
+		tape[r + TYPE] = type;
+		tape[r + START] = start;
+		tape[r + END] = end;
+		tape[r + NEXT] = records + 1;
+		return records++;
+	}
+	
+	private Object value(int record) {
+		switch (tape[record * STRIDE + TYPE]) {
+		case OBJECT: return new LazyMap(this, record);
+		case ARRAY: return new LazyList(this, record);
+		default: return parseAt(tape[record * STRIDE + START]);
+		}
+	}
+	
+	private String key(int record) {
+		int start = tape[record * STRIDE + START];
+		int end = tape[record * STRIDE + END];
+		if (tape[record * STRIDE + TYPE] == ESCAPED_KEY) {
+			JSONParser parser = parserAt(start);
+			try {
+				return parser.parseString();
+			} finally {
+				parser.release();
+			}
+		}
+		if (chars != null) return new String(chars, base + start, end - start);
+		return new String(bytes, base + start, end - start, ISO_8859_1);
+	}
+	
+	private boolean keyEquals(int record, String key) {
+		if (tape[record * STRIDE + TYPE] == ESCAPED_KEY) return key(record).equals(key);
+		int start = base + tape[record * STRIDE + START];
+		int len = base + tape[record * STRIDE + END] - start;
+		if (len != key.length()) return false;
+		if (chars != null) {
+			for (int i = 0; i < len; i++) if (chars[start + i] != key.charAt(i)) return false;
+		} else {
+			for (int i = 0; i < len; i++) if (bytes[start + i] != key.charAt(i)) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * @return {@code true} if the two key records hold the same key.
+	 */
+	private boolean keysEqual(int a, int b) {
+		if (tape[a * STRIDE + TYPE] == ESCAPED_KEY || tape[b * STRIDE + TYPE] == ESCAPED_KEY) return key(a).equals(key(b));
+		int startA = base + tape[a * STRIDE + START];
+		int startB = base + tape[b * STRIDE + START];
+		int len = tape[a * STRIDE + END] - tape[a * STRIDE + START];
+		if (len != tape[b * STRIDE + END] - tape[b * STRIDE + START]) return false;
+		if (chars != null) {
+			for (int i = 0; i < len; i++) if (chars[startA + i] != chars[startB + i]) return false;
+		} else {
+			for (int i = 0; i < len; i++) if (bytes[startA + i] != bytes[startB + i]) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * @return The records of the container's children; for objects, the records of the values (each key is the record before its value).
+	 */
+	private int[] children(int record) {
+		int[] out = new int[tape[record * STRIDE + COUNT]];
+		boolean object = tape[record * STRIDE + TYPE] == OBJECT;
+		int r = record + 1;
+		for (int i = 0; i < out.length; i++) {
+			if (object) r++;
+			out[i] = r;
+			r = tape[r * STRIDE + NEXT];
+		}
+		return out;
+	}
+	
+	private static final class LazyMap extends AbstractMap<Object, Object> {
+		private final JSONLazy doc;
+		private int[] children;
+		private Object[] values;
+		private Map<String, Integer> lookup;
+		private boolean deduplicated;
+		private Map<Object, Object> materialized;
+		
+		LazyMap(JSONLazy doc, int record) {
+			this.doc = doc;
+			this.children = doc.children(record);
+			this.values = new Object[children.length];
+		}
+		
+		private Object valueAt(int i) {
+			Object v = values[i];
+			if (v == null) v = values[i] = doc.value(children[i]);
+			return v;
+		}
+		
+		private int find(Object key) {
+			if (!(key instanceof String)) return -1;
+			String k = (String) key;
+			if (children.length <= LINEAR_LOOKUP_LIMIT) {
+				for (int i = 0; i < children.length; i++) if (doc.keyEquals(children[i] - 1, k)) return i;
+				return -1;
+			}
+			
+			dedupe();
+			Integer i = lookup.get(k);
+			return i == null ? -1 : i;
+		}
+		
+		/**
+		 * Drops the entries whose key occurred earlier in the object, keeping the first, as {@code get} does, so that the map holds each key
+		 * once. Small objects compare their keys in the source; larger ones decode them into {@code lookup}, which {@code find} needs anyway.
+		 */
+		private void dedupe() {
+			if (deduplicated) return;
+			deduplicated = true;
+			int kept = 0;
+			if (children.length <= LINEAR_LOOKUP_LIMIT) {
+				outer:
+				for (int i = 0; i < children.length; i++) {
+					for (int j = 0; j < kept; j++) if (doc.keysEqual(children[j] - 1, children[i] - 1)) continue outer;
+					children[kept] = children[i];
+					values[kept++] = values[i];
+				}
+			} else {
+				lookup = new HashMap<String, Integer>();
+				for (int i = 0; i < children.length; i++) {
+					String name = doc.key(children[i] - 1);
+					if (lookup.containsKey(name)) continue;
+					lookup.put(name, kept);
+					children[kept] = children[i];
+					values[kept++] = values[i];
+				}
+			}
+			if (kept < children.length) {
+				children = Arrays.copyOf(children, kept);
+				values = Arrays.copyOf(values, kept);
+			}
+		}
+		
+		private Map<Object, Object> materialize() {
+			if (materialized == null) {
+				Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+				for (int i = 0; i < children.length; i++) {
+					String name = doc.key(children[i] - 1);
+					if (!map.containsKey(name)) map.put(name, valueAt(i));
+				}
+				materialized = map;
+				children = null;
+				values = null;
+				lookup = null;
+			}
+			return materialized;
+		}
+		
+		@Override public int size() {
+			if (materialized != null) return materialized.size();
+			dedupe();
+			return children.length;
+		}
+		
+		@Override public boolean containsKey(Object key) {
+			return materialized != null ? materialized.containsKey(key) : find(key) != -1;
+		}
+		
+		@Override public Object get(Object key) {
+			if (materialized != null) return materialized.get(key);
+			int i = find(key);
+			return i == -1 ? null : valueAt(i);
+		}
+		
+		@Override public Object put(Object key, Object value) {
+			return materialize().put(key, value);
+		}
+		
+		@Override public Object remove(Object key) {
+			return materialize().remove(key);
+		}
+		
+		@Override public void clear() {
+			materialize().clear();
+		}
+		
+		@Override public Set<Map.Entry<Object, Object>> entrySet() {
+			if (materialized != null) return materialized.entrySet();
+			dedupe();
+			return new AbstractSet<Map.Entry<Object, Object>>() {
+				@Override public int size() {
+					return LazyMap.this.size();
+				}
+				
+				@Override public Iterator<Map.Entry<Object, Object>> iterator() {
+					return new Iterator<Map.Entry<Object, Object>>() {
+						private int i = 0;
+						
+						public boolean hasNext() {
+							return i < children.length;
+						}
+						
+						public Map.Entry<Object, Object> next() {
+							if (!hasNext()) throw new NoSuchElementException();
+							Map.Entry<Object, Object> e = new AbstractMap.SimpleImmutableEntry<Object, Object>(doc.key(children[i] - 1), valueAt(i));
+							i++;
+							return e;
+						}
+						
+						public void remove() {
+							throw new UnsupportedOperationException();
+						}
+					};
+				}
+			};
+		}
+	}
+	
+	private static final class LazyList extends AbstractList<Object> implements RandomAccess {
+		private final JSONLazy doc;
+		private int[] children;
+		private Object[] values;
+		private List<Object> materialized;
+		
+		LazyList(JSONLazy doc, int record) {
+			this.doc = doc;
+			this.children = doc.children(record);
+			this.values = new Object[children.length];
+		}
+		
+		private List<Object> materialize() {
+			if (materialized == null) {
+				List<Object> list = new ArrayList<Object>(children.length);
+				for (int i = 0; i < children.length; i++) list.add(get(i));
+				materialized = list;
+				children = null;
+				values = null;
+			}
+			return materialized;
+		}
+		
+		@Override public int size() {
+			return materialized != null ? materialized.size() : children.length;
+		}
+		
+		@Override public Object get(int index) {
+			if (materialized != null) return materialized.get(index);
+			if (index < 0 || index >= children.length) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + children.length);
+			Object v = values[index];
+			if (v == null) v = values[index] = doc.value(children[index]);
+			return v;
+		}
+		
+		@Override public Object set(int index, Object element) {
+			return materialize().set(index, element);
+		}
+		
+		@Override public void add(int index, Object element) {
+			materialize().add(index, element);
+		}
+		
+		@Override public Object remove(int index) {
+			return materialize().remove(index);
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package com.zwitserloot.json;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A list whose elements are pulled from an {@code Iterable} whenever it is iterated, for {@link JSON#setLazyList(Iterable)}.
+ * 
+ * Writing a list only iterates over it, so a lazy list is written straight from its source, without its elements ever being held in memory
+ * together. Anything else that needs the list as a whole (its size, an element by index, a modification) copies the elements into a regular
+ * {@code ArrayList} first, which from then on is the list. Elements are converted as {@code JSON.setObject} would store them: {@code null}
+ * becomes JSON {@code null}, and {@code JSON} objects are replaced by what they point at.
+ */
+final class JSONLazyList extends AbstractList<Object> {
+	private final Iterable<?> source;
+	private List<Object> materialized;
+	
+	JSONLazyList(Iterable<?> source) {
+		this.source = source;
+	}
+	
+	private static Object convert(Object o) {
+		if (o == null) return JSONParser.NULL;
+		if (o instanceof JSON) return ((JSON) o).value();
+		return o;
+	}
+	
+	private List<Object> materialize() {
+		if (materialized == null) {
+			List<Object> list = new ArrayList<Object>();
+			for (Object o : source) list.add(convert(o));
+			materialized = list;
+		}
+		return materialized;
+	}
+	
+	@Override public Iterator<Object> iterator() {
+		if (materialized != null) return materialized.iterator();
+		final Iterator<?> it = source.iterator();
+		return new Iterator<Object>() {
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+			
+			public Object next() {
+				return convert(it.next());
+			}
+			
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+	
+	@Override public int size() {
+		return materialize().size();
+	}
+	
+	@Override public Object get(int index) {
+		return materialize().get(index);
+	}
+	
+	@Override public Object set(int index, Object element) {
+		return materialize().set(index, element);
+	}
+	
+	@Override public void add(int index, Object element) {
+		materialize().add(index, element);
+	}
+	
+	@Override public Object remove(int index) {
+		return materialize().remove(index);
+	}
+}
@@ -0,0 +1,236 @@
+package com.zwitserloot.json;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Parses JSON Lines (also known as NDJSON; one JSON value per line) for {@link JSON#parseLines(InputStream, JSONParseOption...)}.
+ * 
+ * The input is read on the caller's thread, in batches of whole lines; each batch is parsed by a task on an {@code Executor}, so batches
+ * are parsed in parallel. Lines are tokenized straight out of the batch's bytes. The iterator hands out the values in input order, and
+ * keeps a fixed number of batches in flight: it only reads another batch once the values of an earlier one have been handed out.
+ * 
+ * If you stop iterating before the end, call {@link #close()}, so that the batches in flight are cancelled and a file opened by
+ * {@link JSON#parseLines(java.nio.file.Path, JSONParseOption...)} is closed.
+ */
+public final class JSONLines implements Iterator<JSON>, Closeable {
+	private static final int BATCH_SIZE = 256 * 1024;
+	
+	private final InputStream in;
+	private final boolean close;
+	private final Executor executor;
+	private final JSONParseOption[] options;
+	private final int maxInFlight;
+	private final Queue<FutureTask<Batch>> inFlight = new ArrayDeque<FutureTask<Batch>>();
+	private byte[] leftover = new byte[0];
+	private boolean eof;
+	private long linesBefore = 0;
+	private Batch current;
+	private int index;
+	
+	/**
+	 * The result of parsing a batch: a value for each line that isn't blank, or the first error and the line it is on.
+	 */
+	private static final class Batch {
+		Object[] values;
+		int count, lines;
+		JSONException error;
+		int errorLine;
+	}
+	
+	JSONLines(InputStream in, boolean close, Executor executor, JSONParseOption[] options) {
+		this.in = in;
+		this.close = close;
+		this.executor = executor != null ? executor : ForkJoinPool.commonPool();
+		this.options = options;
+		this.maxInFlight = 2 * Runtime.getRuntime().availableProcessors();
+	}
+	
+	public boolean hasNext() {
+		while (current == null || index == current.count) {
+			if (current != null) {
+				JSONException error = current.error;
+				if (error != null) {
+					long line = linesBefore + current.errorLine;
+					current = null;
+					cancelInFlight();
+					closeInput();
+					throw new JSONException("Line " + line + ": " + error.getMessage(), error);
+				}
+				linesBefore += current.lines;
+				current = null;
+			}
+			while (inFlight.size() < maxInFlight && submit()) {}
+			if (inFlight.isEmpty()) {
+				closeInput();
+				return false;
+			}
+			current = await(inFlight.remove());
+			index = 0;
+		}
+		return true;
+	}
+	
+	public JSON next() {
+		if (!hasNext()) throw new NoSuchElementException();
+		Object value = current.values[index];
+		current.values[index++] = null;
+		return new JSON(value);
+	}
+	
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+	
+	/**
+	 * Stops parsing: batches that are still in flight are cancelled, and a file opened by {@code parseLines} is closed; a stream that was passed
+	 * in is not. Afterwards {@link #hasNext()} returns {@code false}. Closing more than once has no effect.
+	 */
+	public void close() {
+		cancelInFlight();
+		current = null;
+		closeInput();
+	}
+	
+	private void cancelInFlight() {
+		for (FutureTask<Batch> task : inFlight) task.cancel(false);
+		inFlight.clear();
+	}
+	
+	private Batch await(FutureTask<Batch> task) {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			cancelInFlight();
+			closeInput();
+			throw new JSONException("Interrupted while parsing json lines", e);
+		} catch (ExecutionException e) {
+			cancelInFlight();
+			closeInput();
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			if (e.getCause() instanceof Error) throw (Error) e.getCause();
+			throw new JSONException(e.getCause());
+		}
+	}
+	
+	/**
+	 * Reads the next batch of whole lines and hands it to the executor.
+	 * 
+	 * @return {@code false} if the input has run out.
+	 */
+	private boolean submit() {
+		if (eof && leftover.length == 0) return false;
+		
+		byte[] buf = new byte[Math.max(BATCH_SIZE, leftover.length * 2)];
+		System.arraycopy(leftover, 0, buf, 0, leftover.length);
+		int len = leftover.length;
+		int searchFrom = len;
+		int end;
+		while (true) {
+			while (!eof && len < buf.length) {
+				int r;
+				try {
+					r = in.read(buf, len, buf.length - len);
+				} catch (IOException e) {
+					closeInput();
+					throw new JSONException("I/O error while reading json input", e);
+				}
+				if (r == -1) eof = true;
+				else len += r;
+			}
+			
+			end = lastNewline(buf, searchFrom, len);
+			if (end != -1 || eof) break;
+			
+			// A single line is longer than the buffer.
+			byte[] newBuf = new byte[buf.length * 2];
+			System.arraycopy(buf, 0, newBuf, 0, len);
+			searchFrom = len;
+			buf = newBuf;
+		}
+		if (end == -1) end = len;
+		
+		leftover = new byte[len - end];
+		System.arraycopy(buf, end, leftover, 0, leftover.length);
+		if (end == 0) return false;
+		
+		final byte[] bytes = buf;
+		final int length = end;
+		FutureTask<Batch> task = new FutureTask<Batch>(new Callable<Batch>() {
+			public Batch call() {
+				return parse(bytes, length, options);
+			}
+		});
+		executor.execute(task);
+		inFlight.add(task);
+		return true;
+	}
+	
+	/**
+	 * @return The index just past the last {@code '\n'} in {@code buf} from {@code from} up to {@code to}, or {@code -1} if there is none.
+	 */
+	private static int lastNewline(byte[] buf, int from, int to) {
+		for (int i = to - 1; i >= from; i--) if (buf[i] == '\n') return i + 1;
+		return -1;
+	}
+	
+	private static Batch parse(byte[] bytes, int length, JSONParseOption[] options) {
+		Batch batch = new Batch();
+		batch.values = new Object[64];
+		int start = 0;
+		while (start < length) {
+			int end = start;
+			while (end < length && bytes[end] != '\n') end++;
+			batch.lines++;
+			if (!isBlank(bytes, start, end)) {
+				JSONParser parser = new JSONUtf8Parser(bytes, start, end - start);
+				Object value;
+				try {
+					value = parser.configure(options).parseObject();
+					if (parser.nextSignificant() != -1) parser.jsonError("Only one json value per line allowed");
+				} catch (JSONException e) {
+					batch.error = e;
+					batch.errorLine = batch.lines;
+					return batch;
+				} finally {
+					parser.release();
+				}
+				if (batch.count == batch.values.length) {
+					Object[] newValues = new Object[batch.count * 2];
+					System.arraycopy(batch.values, 0, newValues, 0, batch.count);
+					batch.values = newValues;
+				}
+				batch.values[batch.count++] = value;
+			}
+			start = end + 1;
+		}
+		return batch;
+	}
+	
+	private static boolean isBlank(byte[] bytes, int from, int to) {
+		for (int i = from; i < to; i++) if (!JSONParser.isWhitespace(bytes[i])) return false;
+		return true;
+	}
+	
+	private void closeInput() {
+		eof = true;
+		leftover = new byte[0];
+		if (!close) return;
+		try {
+			in.close();
+		} catch (IOException e) {
+			// The input was only read; nothing is lost.
+		}
+	}
+}
@@ -0,0 +1,201 @@
+package com.zwitserloot.json;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ * Decodes JSON numbers from characters supplied by a subclass. This is the part of {@link JSONParser} that {@link JSONFeedParser} needs as
+ * well, to decode numbers with the same code, and so the same results, as {@code JSON.parse}.
+ */
+abstract class JSONNumberParser {
+	static final long MAXIMUM_PRECISION_DOUBLE = 1L << 52 -1;
+	
+	static final int LONG_NUMBER = 0;
+	static final int DOUBLE_NUMBER = 1;
+	static final int BIG_NUMBER = 2;
+	
+	long numberLong;
+	double numberDouble;
+	Number numberBig;
+	private char[] numberChars = new char[32];
+	private int numberLength;
+	int maxNumberLength = Integer.MAX_VALUE;
+	
+	/**
+	 * @return The next character without consuming it, or -1 if the input has run out.
+	 */
+	abstract int peek();
+	
+	/**
+	 * @return The next character, or -1 if the input has run out.
+	 */
+	abstract int read();
+	
+	/**
+	 * @return The offset of the next unread character (or byte) within the input, for error messages.
+	 */
+	abstract long position();
+	
+	/**
+	 * Reads a number whose first character, {@code first}, was just consumed, and boxes it the way the {@code JSON} tree stores numbers:
+	 * integers a double can represent exactly as {@code Double}, larger ones as {@code Long} or {@code BigInteger}.
+	 */
+	Number parseNumber(int first) {
+		switch (readNumber(first)) {
+		case LONG_NUMBER:
+			if (numberLong > MAXIMUM_PRECISION_DOUBLE || numberLong < -MAXIMUM_PRECISION_DOUBLE) return Long.valueOf(numberLong);
+			return Double.valueOf(numberLong);
+		case DOUBLE_NUMBER:
+			return Double.valueOf(numberDouble);
+		default:
+			return numberBig;
+		}
+	}
+	
+	/**
+	 * @return The text of the number that was read last, as it was written.
+	 */
+	String numberText() {
+		return new String(numberChars, 0, numberLength);
+	}
+	
+	/**
+	 * Reads a number whose first character, {@code first}, was just consumed, without boxing it.
+	 * 
+	 * Digits are accumulated straight into a long; only numbers with more significant digits than a long can hold, and the rare doubles that
+	 * {@link JSONDoubles} cannot decide, are turned into a {@code String} and parsed the slow way.
+	 * 
+	 * @return {@code LONG_NUMBER} if it was written without fraction or exponent and fits in a long (see {@code numberLong}),
+	 *     {@code DOUBLE_NUMBER} for other numbers that a double can hold (see {@code numberDouble}), or {@code BIG_NUMBER} (see {@code numberBig}).
+	 */
+	int readNumber(int first) {
+		return readNumber(first, true);
+	}
+	
+	/**
+	 * With {@code decode} unset, the number is only validated and -1 is returned; its text is left in {@code numberChars} either way.
+	 */
+	int readNumber(int first, boolean decode) {
+		boolean negative = first == '-';
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		boolean truncated = false;
+		int explicitExponent = 0;
+		boolean exponentNegative = false;
+		numberLength = 0;
+		
+		//0: first digit
+		//1: potential further digits after first
+		//2: first digit after period
+		//3: potential further digits after period
+		//4: just read e, or E
+		//5: first digit after e/E
+		//6: potential further digits after e/E
+		int state = 0;
+		if (negative) appendNumberChar(first);
+		int c = negative ? read() : first;
+		while (true) {
+			if (c == '.') {
+				if (state == 0) return jsonError("Expected a digit");
+				else if (state == 1) state = 2;
+				else return jsonError("not a valid number - fractional separator (.) not expected here");
+			} else if (c == 'E' || c == 'e') {
+				if (state == 0 || state == 2) return jsonError("Expected a digit");
+				else if (state == 1 || state == 3) state = 4;
+				else return jsonError("not a valid number - exponential separator (E) not expected here");
+			} else if (c == '+') {
+				if (state == 4) state = 5;
+				else return jsonError("not a valid number - '+' not expected here");
+			} else if (c == '-') {
+				if (state == 4) {
+					exponentNegative = true;
+					state = 5;
+				} else return jsonError("not a valid number - '-' not expected here");
+			} else if (c < '0' || c > '9') {
+				break;
+			} else {
+				int d = c - '0';
+				if (state == 4 || state == 5 || state == 6) {
+					state = 6;
+					if (explicitExponent < 100000000) explicitExponent = explicitExponent * 10 + d;
+				} else {
+					boolean fraction = state == 2 || state == 3;
+					state = fraction ? 3 : 1;
+					if (digits < 19) {
+						mantissa = mantissa * 10 + d;
+						if (mantissa != 0) digits++;
+						if (fraction) exponent--;
+					} else {
+						if (!fraction) exponent++;
+						if (d != 0) truncated = true;
+					}
+				}
+			}
+			
+			appendNumberChar(c);
+			int n = peek();
+			if (n != '.' && n != 'E' && n != 'e' && n != '+' && n != '-' && (n < '0' || n > '9')) break;
+			c = read();
+		}
+		
+		if (state == 0 || state == 2 || state == 4 || state == 5) return jsonError("digit expected");
+		if (!decode) return -1;
+		
+		if (state == 1) {
+			if (exponent == 0 && digits <= 18) {
+				numberLong = negative ? -mantissa : mantissa;
+				return LONG_NUMBER;
+			}
+			return makeNumber(false);
+		}
+		
+		if (!truncated) {
+			double d = JSONDoubles.toDouble(mantissa, exponent + (exponentNegative ? -explicitExponent : explicitExponent), negative);
+			if (d == d) {
+				numberDouble = d;
+				return DOUBLE_NUMBER;
+			}
+		}
+		return makeNumber(true);
+	}
+	
+	private void appendNumberChar(int c) {
+		if (numberLength == maxNumberLength) jsonError("Number longer than " + maxNumberLength + " characters");
+		if (numberLength == numberChars.length) {
+			char[] newChars = new char[numberLength * 2];
+			System.arraycopy(numberChars, 0, newChars, 0, numberLength);
+			numberChars = newChars;
+		}
+		numberChars[numberLength++] = (char) c;
+	}
+	
+	/**
+	 * The slow path: parses the number as it was written. Doubles too large for a double to hold become a {@code BigDecimal}.
+	 */
+	private int makeNumber(boolean decimal) {
+		String nr = new String(numberChars, 0, numberLength);
+		if (decimal) {
+			numberDouble = Double.parseDouble(nr);
+			if (!Double.isInfinite(numberDouble)) return DOUBLE_NUMBER;
+			try {
+				numberBig = new BigDecimal(nr);
+				return BIG_NUMBER;
+			} catch (NumberFormatException f) {
+				return jsonError("Not a number: " + nr);
+			}
+		} else {
+			try {
+				numberLong = Long.parseLong(nr);
+				return LONG_NUMBER;
+			} catch (NumberFormatException e) {
+				numberBig = new BigInteger(nr);
+				return BIG_NUMBER;
+			}
+		}
+	}
+	
+	<T> T jsonError(String msg) {
+		throw new JSONException(msg + "(" + position() + ")");
+	}
+}
@@ -0,0 +1,518 @@
+package com.zwitserloot.json;
+
+import java.io.Closeable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Set;
+
+/**
+ * A parsed JSON document stored in a compact binary form in off-heap memory (a direct {@code ByteBuffer}), rather than as a tree of maps,
+ * lists, strings and boxed numbers on the heap; see {@link JSON#parseOffHeap(byte[], int, int)}.
+ * 
+ * The document is read through {@link #json()}, which supports the read-only part of the {@code JSON} API: {@code get}, the {@code asX}
+ * methods, {@code keySet}, {@code asList}, {@code toJSON} and so on. The objects and arrays behind it are {@code Map} and {@code List} views
+ * that decode keys and values from the buffer each time they are read; nothing is cached, so a document that is kept around for a long time
+ * adds nothing to the heap for the garbage collector to trace, however large it is. The views are unmodifiable, and safe for use by
+ * multiple threads.
+ * <p>
+ * The layout, little-endian, starting with the offset of the root value at offset 0; every value starts with a tag byte:
+ * <ul>
+ * <li>{@code null}, {@code false} and {@code true}: just the tag.</li>
+ * <li>Numbers: an int or a double (which is how the tree stores most numbers), a long, or a {@code BigInteger} or {@code BigDecimal} in the form of a string.</li>
+ * <li>Strings: the length in bytes, then the UTF-8 encoded contents; an unpaired surrogate is encoded as if it were a character.</li>
+ * <li>Arrays: the number of elements, then the offset of each element.</li>
+ * <li>Objects: the number of entries, then the offset of the key (a string) and of the value of each entry, in order; objects with more than a
+ *     few entries are followed by an open-addressed hash table of entry indices, so that looking up a key takes constant time.</li>
+ * </ul>
+ * Children are written before their parent, so the document is built in a single pass over the input. Keys that occur more than once in the
+ * document are stored only once.
+ * <p>
+ * {@link #close()} makes the document unusable; reading from it afterwards throws an {@code IllegalStateException}. The memory is freed once
+ * the buffer has been garbage collected, which no longer depends on the views that are still around. A document is limited to 2GB.
+ */
+public final class JSONOffHeapDocument implements Closeable {
+	private static final int LINEAR_LOOKUP_LIMIT = 8;
+	private static final int MAX_INTERNED_KEY_LENGTH = 64;
+	private static final int MAX_INTERNED_KEYS = 1 << 16;
+	
+	private static final byte NULL = 0;
+	private static final byte FALSE = 1;
+	private static final byte TRUE = 2;
+	private static final byte INT = 3;
+	private static final byte DOUBLE = 4;
+	private static final byte LONG = 5;
+	private static final byte BIG_INTEGER = 6;
+	private static final byte STRING = 7;
+	private static final byte ARRAY = 8;
+	private static final byte OBJECT = 9;
+	private static final byte BIG_DECIMAL = 10;
+	
+	private volatile ByteBuffer buffer;
+	private final int root;
+	
+	private JSONOffHeapDocument(ByteBuffer buffer, int root) {
+		this.buffer = buffer;
+		this.root = root;
+	}
+	
+	/**
+	 * Reads one value from {@code reader} into a new document.
+	 * 
+	 * @param sizeHint The expected size of the document; the buffer starts out this large, and is trimmed when it is done.
+	 */
+	static JSONOffHeapDocument build(JSONReader reader, long sizeHint) {
+		Builder builder = new Builder(reader.parser, (int) Math.min(Integer.MAX_VALUE - 8, Math.max(4096, sizeHint)));
+		reader.visitValue(builder);
+		return builder.finish();
+	}
+	
+	/**
+	 * @return The document; it reads from this document's buffer, and stops working once the document is closed.
+	 */
+	public JSON json() {
+		return new JSON(value(root));
+	}
+	
+	/**
+	 * @return The number of bytes of off-heap memory the document takes up.
+	 */
+	public long size() {
+		return buffer().capacity();
+	}
+	
+	/**
+	 * Makes the document and everything read from it unusable. Closing a document more than once has no effect.
+	 */
+	public void close() {
+		buffer = null;
+	}
+	
+	@Override public String toString() {
+		ByteBuffer b = buffer;
+		return b == null ? "JSONOffHeapDocument[closed]" : "JSONOffHeapDocument[" + b.capacity() + " bytes]";
+	}
+	
+	private ByteBuffer buffer() {
+		ByteBuffer b = buffer;
+		if (b == null) throw new IllegalStateException("JSONOffHeapDocument has been closed");
+		return b;
+	}
+	
+	private Object value(int offset) {
+		ByteBuffer b = buffer();
+		switch (b.get(offset)) {
+		case NULL: return JSONParser.NULL;
+		case FALSE: return Boolean.FALSE;
+		case TRUE: return Boolean.TRUE;
+		case INT: return Double.valueOf(b.getInt(offset + 1));
+		case DOUBLE: return Double.valueOf(b.getDouble(offset + 1));
+		case LONG: return Long.valueOf(b.getLong(offset + 1));
+		case BIG_INTEGER: return new BigInteger(string(b, offset));
+		case BIG_DECIMAL: return new BigDecimal(string(b, offset));
+		case STRING: return string(b, offset);
+		case ARRAY: return new OffHeapList(this, offset, b.getInt(offset + 1));
+		case OBJECT: return new OffHeapMap(this, offset, b.getInt(offset + 1));
+		default: throw new IllegalStateException("Corrupt JSONOffHeapDocument at " + offset);
+		}
+	}
+	
+	/**
+	 * Decodes the string at {@code offset}; the reverse of {@code Builder.writeString}, which encodes an unpaired surrogate in 3 bytes like any
+	 * other char. The UTF-8 charset would turn those into U+FFFD.
+	 */
+	private static String string(ByteBuffer b, int offset) {
+		int len = b.getInt(offset + 1);
+		int end = offset + 5 + len;
+		char[] chars = new char[len];
+		int n = 0;
+		for (int i = offset + 5; i < end; ) {
+			int c = b.get(i++);
+			if (c >= 0) {
+				chars[n++] = (char) c;
+			} else if ((c & 0xE0) == 0xC0) {
+				chars[n++] = (char) ((c & 0x1F) << 6 | (b.get(i++) & 0x3F));
+			} else if ((c & 0xF0) == 0xE0) {
+				chars[n++] = (char) ((c & 0x0F) << 12 | (b.get(i++) & 0x3F) << 6 | (b.get(i++) & 0x3F));
+			} else {
+				int cp = (c & 0x07) << 18 | (b.get(i++) & 0x3F) << 12 | (b.get(i++) & 0x3F) << 6 | (b.get(i++) & 0x3F);
+				n += Character.toChars(cp, chars, n);
+			}
+		}
+		return new String(chars, 0, n);
+	}
+	
+	/**
+	 * @return {@code true} if the string at {@code offset} is {@code key}.
+	 */
+	private static boolean stringEquals(ByteBuffer b, int offset, String key) {
+		int len = b.getInt(offset + 1);
+		int n = key.length();
+		if (len < n) return false;
+		int start = offset + 5;
+		for (int i = 0; i < n; i++) {
+			char c = key.charAt(i);
+			if (c >= 0x80) return string(b, offset).equals(key);
+			if (i >= len || b.get(start + i) != c) return false;
+		}
+		return len == n;
+	}
+	
+	private static int tableSize(int count) {
+		return count <= LINEAR_LOOKUP_LIMIT ? 0 : Integer.highestOneBit(count) << 2;
+	}
+	
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+	
+	private static final class OffHeapList extends AbstractList<Object> implements RandomAccess {
+		private final JSONOffHeapDocument doc;
+		private final int offset, size;
+		
+		OffHeapList(JSONOffHeapDocument doc, int offset, int size) {
+			this.doc = doc;
+			this.offset = offset;
+			this.size = size;
+		}
+		
+		@Override public int size() {
+			return size;
+		}
+		
+		@Override public Object get(int index) {
+			if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+			return doc.value(doc.buffer().getInt(offset + 5 + 4 * index));
+		}
+	}
+	
+	private static final class OffHeapMap extends AbstractMap<Object, Object> {
+		private final JSONOffHeapDocument doc;
+		private final int offset, size;
+		
+		OffHeapMap(JSONOffHeapDocument doc, int offset, int size) {
+			this.doc = doc;
+			this.offset = offset;
+			this.size = size;
+		}
+		
+		private int keyAt(ByteBuffer b, int i) {
+			return b.getInt(offset + 5 + 8 * i);
+		}
+		
+		private int valueAt(ByteBuffer b, int i) {
+			return b.getInt(offset + 9 + 8 * i);
+		}
+		
+		/**
+		 * @return The index of the entry with this key, or -1.
+		 */
+		private int find(ByteBuffer b, Object key) {
+			if (!(key instanceof String)) return -1;
+			String k = (String) key;
+			int tableSize = tableSize(size);
+			if (tableSize == 0) {
+				for (int i = 0; i < size; i++) if (stringEquals(b, keyAt(b, i), k)) return i;
+				return -1;
+			}
+			
+			int table = offset + 5 + 8 * size;
+			for (int slot = spread(k.hashCode()) & (tableSize - 1); ; slot = (slot + 1) & (tableSize - 1)) {
+				int i = b.getInt(table + 4 * slot) - 1;
+				if (i == -1) return -1;
+				if (stringEquals(b, keyAt(b, i), k)) return i;
+			}
+		}
+		
+		@Override public int size() {
+			return size;
+		}
+		
+		@Override public boolean containsKey(Object key) {
+			return find(doc.buffer(), key) != -1;
+		}
+		
+		@Override public Object get(Object key) {
+			ByteBuffer b = doc.buffer();
+			int i = find(b, key);
+			return i == -1 ? null : doc.value(valueAt(b, i));
+		}
+		
+		@Override public Set<Map.Entry<Object, Object>> entrySet() {
+			return new AbstractSet<Map.Entry<Object, Object>>() {
+				@Override public int size() {
+					return size;
+				}
+				
+				@Override public Iterator<Map.Entry<Object, Object>> iterator() {
+					return new Iterator<Map.Entry<Object, Object>>() {
+						private int i = 0;
+						
+						public boolean hasNext() {
+							return i < size;
+						}
+						
+						public Map.Entry<Object, Object> next() {
+							if (!hasNext()) throw new NoSuchElementException();
+							ByteBuffer b = doc.buffer();
+							Map.Entry<Object, Object> e = new AbstractMap.SimpleImmutableEntry<Object, Object>(string(b, keyAt(b, i)), doc.value(valueAt(b, i)));
+							i++;
+							return e;
+						}
+						
+						public void remove() {
+							throw new UnsupportedOperationException();
+						}
+					};
+				}
+			};
+		}
+	}
+	
+	/**
+	 * Writes the document as the visitor is called. The offsets of the children of each open object or array are kept on the heap until it ends,
+	 * and the object or array is written after them.
+	 */
+	private static final class Builder implements JSONVisitor {
+		private final JSONParser parser;
+		private ByteBuffer out;
+		private int root = -1;
+		private int[][] children = new int[16][];
+		private int[] counts = new int[16];
+		private int depth = 0;
+		private final Map<String, Integer> keys = new HashMap<String, Integer>();
+		
+		Builder(JSONParser parser, int capacity) {
+			this.parser = parser;
+			this.out = ByteBuffer.allocateDirect(capacity).order(ByteOrder.LITTLE_ENDIAN);
+			out.putInt(0);
+		}
+		
+		JSONOffHeapDocument finish() {
+			out.putInt(0, root);
+			ByteBuffer result = out;
+			if (out.capacity() - out.position() > out.position() / 8) {
+				result = ByteBuffer.allocateDirect(out.position()).order(ByteOrder.LITTLE_ENDIAN);
+				out.flip();
+				result.put(out);
+			}
+			out = null;
+			return new JSONOffHeapDocument(result, root);
+		}
+		
+		private void ensure(long bytes) {
+			long needed = out.position() + bytes;
+			if (needed <= out.capacity()) return;
+			if (needed > Integer.MAX_VALUE - 8) parser.jsonError("Document too large for a JSONOffHeapDocument");
+			int capacity = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(needed, 2L * out.capacity()));
+			ByteBuffer bigger = ByteBuffer.allocateDirect(capacity).order(ByteOrder.LITTLE_ENDIAN);
+			out.flip();
+			bigger.put(out);
+			out = bigger;
+		}
+		
+		/**
+		 * Records a value that was just written at {@code offset} as the next child of the innermost open object or array.
+		 */
+		private void added(int offset) {
+			if (depth == 0) {
+				root = offset;
+				return;
+			}
+			int[] c = children[depth - 1];
+			int n = counts[depth - 1];
+			if (n == c.length) c = children[depth - 1] = Arrays.copyOf(c, n * 2);
+			c[n] = offset;
+			counts[depth - 1] = n + 1;
+		}
+		
+		private int writeString(byte tag, CharSequence s) {
+			int len = s.length();
+			ensure(5 + 3L * len);
+			int offset = out.position();
+			out.put(tag);
+			out.putInt(0);
+			for (int i = 0; i < len; i++) {
+				char c = s.charAt(i);
+				if (c < 0x80) {
+					out.put((byte) c);
+				} else if (c < 0x800) {
+					out.put((byte) (0xC0 | (c >> 6)));
+					out.put((byte) (0x80 | (c & 0x3F)));
+				} else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, s.charAt(++i));
+					out.put((byte) (0xF0 | (cp >> 18)));
+					out.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+					out.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+					out.put((byte) (0x80 | (cp & 0x3F)));
+				} else {
+					out.put((byte) (0xE0 | (c >> 12)));
+					out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+					out.put((byte) (0x80 | (c & 0x3F)));
+				}
+			}
+			out.putInt(offset + 1, out.position() - offset - 5);
+			return offset;
+		}
+		
+		private void open() {
+			if (depth == counts.length) {
+				children = Arrays.copyOf(children, depth * 2);
+				counts = Arrays.copyOf(counts, depth * 2);
+			}
+			if (children[depth] == null) children[depth] = new int[16];
+			counts[depth] = 0;
+			depth++;
+		}
+		
+		public void startObject() {
+			open();
+		}
+		
+		public void startArray() {
+			open();
+		}
+		
+		public void endArray() {
+			int[] c = children[--depth];
+			int n = counts[depth];
+			ensure(5 + 4L * n);
+			int offset = out.position();
+			out.put(ARRAY);
+			out.putInt(n);
+			for (int i = 0; i < n; i++) out.putInt(c[i]);
+			added(offset);
+		}
+		
+		public void endObject() {
+			int[] c = children[--depth];
+			int n = counts[depth] / 2;
+			int tableSize = tableSize(n);
+			ensure(5 + 8L * n + 4L * tableSize);
+			int offset = out.position();
+			out.put(OBJECT);
+			out.putInt(n);
+			for (int i = 0; i < 2 * n; i++) out.putInt(c[i]);
+			
+			if (tableSize == 0) {
+				for (int i = 1; i < n; i++) {
+					for (int j = 0; j < i; j++) if (keysEqual(c[2 * i], c[2 * j])) duplicateKey(c[2 * i]);
+				}
+			} else {
+				int table = out.position();
+				for (int i = 0; i < tableSize; i++) out.putInt(0);
+				for (int i = 0; i < n; i++) {
+					int slot = spread(hash(c[2 * i])) & (tableSize - 1);
+					while (true) {
+						int j = out.getInt(table + 4 * slot) - 1;
+						if (j == -1) break;
+						if (keysEqual(c[2 * i], c[2 * j])) duplicateKey(c[2 * i]);
+						slot = (slot + 1) & (tableSize - 1);
+					}
+					out.putInt(table + 4 * slot, i + 1);
+				}
+			}
+			added(offset);
+		}
+		
+		private void duplicateKey(int key) {
+			parser.jsonError("JSON object contains key " + string(out, key) + " twice");
+		}
+		
+		private boolean keysEqual(int a, int b) {
+			if (a == b) return true;
+			int len = out.getInt(a + 1);
+			if (out.getInt(b + 1) != len) return false;
+			for (int i = 0; i < len; i++) if (out.get(a + 5 + i) != out.get(b + 5 + i)) return false;
+			return true;
+		}
+		
+		/**
+		 * @return The {@code hashCode()} of the key at {@code offset} as a {@code String}.
+		 */
+		private int hash(int offset) {
+			int len = out.getInt(offset + 1);
+			int h = 0;
+			for (int i = 0; i < len; i++) {
+				byte c = out.get(offset + 5 + i);
+				if (c < 0) return string(out, offset).hashCode();
+				h = 31 * h + c;
+			}
+			return h;
+		}
+		
+		public void key(CharSequence key) {
+			if (key.length() > MAX_INTERNED_KEY_LENGTH) {
+				added(writeString(STRING, key));
+				return;
+			}
+			String k = key.toString();
+			Integer offset = keys.get(k);
+			if (offset == null) {
+				offset = writeString(STRING, k);
+				if (keys.size() < MAX_INTERNED_KEYS) keys.put(k, offset);
+			}
+			added(offset);
+		}
+		
+		public void value(CharSequence value) {
+			added(writeString(STRING, value));
+		}
+		
+		public void value(long value) {
+			if (value > JSONParser.MAXIMUM_PRECISION_DOUBLE || value < -JSONParser.MAXIMUM_PRECISION_DOUBLE) {
+				ensure(9);
+				added(out.position());
+				out.put(LONG);
+				out.putLong(value);
+			} else {
+				value((double) value);
+			}
+		}
+		
+		public void value(double value) {
+			int i = (int) value;
+			if (i == value && (i != 0 || Double.doubleToRawLongBits(value) == 0)) {
+				ensure(5);
+				added(out.position());
+				out.put(INT);
+				out.putInt(i);
+			} else {
+				ensure(9);
+				added(out.position());
+				out.put(DOUBLE);
+				out.putDouble(value);
+			}
+		}
+		
+		public void value(BigInteger value) {
+			added(writeString(BIG_INTEGER, value.toString()));
+		}
+		
+		public void value(BigDecimal value) {
+			added(writeString(BIG_DECIMAL, value.toString()));
+		}
+		
+		public void value(boolean value) {
+			ensure(1);
+			added(out.position());
+			out.put(value ? TRUE : FALSE);
+		}
+		
+		public void nullValue() {
+			ensure(1);
+			added(out.position());
+			out.put(NULL);
+		}
+	}
+}
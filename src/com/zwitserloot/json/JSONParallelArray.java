@@ -0,0 +1,279 @@
+package com.zwitserloot.json;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Parses a document that consists of a single large array on multiple threads, for {@link JSON#parseParallel(byte[], int, int, JSONParseOption...)}.
+ * 
+ * Finding the boundaries between the elements of the array exactly takes a scan of the entire document, which would itself be sequential.
+ * Instead, the array is split speculatively: near each of a number of evenly spaced offsets, the first comma that is followed by the same kind of
+ * token that the first element starts with (such as a <code>{</code>) is taken to be the start of an element. Each segment is then parsed
+ * by a fork/join task, from the start of its first element up to and including the element that ends at or past the start of the next segment.
+ * <p>
+ * A guess can be wrong, for instance if it is inside a string. That is caught when the results are stitched together in order: the segments
+ * before it are parsed from a known boundary, so they visit every real boundary, and must end exactly where the next segment starts. If they
+ * don't, that segment's result is thrown away, and the elements from where the previous one ended are parsed again, on the calling thread.
+ * A wrong guess thus costs time, but never changes the result.
+ * <p>
+ * The array is assumed to end at the last <code>]</code> in the document. If a segment fails to parse, because the input is not valid or the
+ * array actually ends earlier, the whole document is parsed again on the calling thread, so that the result, or the error, is that of
+ * {@code JSON.parse}.
+ */
+final class JSONParallelArray {
+	static final int SEGMENT_SIZE = 4 << 20;
+	private static final int WINDOW_SIZE = 64 << 10;
+	
+	private final Source source;
+	private final JSONParseOption[] options;
+	private int maxEntries = Integer.MAX_VALUE;
+	private long contentEnd;
+	
+	private JSONParallelArray(Source source, JSONParseOption[] options) {
+		this.source = source;
+		this.options = options;
+	}
+	
+	/**
+	 * The document; bytes are only read one at a time to find the boundaries of the array and guess those of its elements.
+	 */
+	private abstract static class Source {
+		final long length;
+		
+		Source(long length) {
+			this.length = length;
+		}
+		
+		abstract int byteAt(long index);
+		
+		/**
+		 * @return A parser for the bytes from {@code from} up to {@code to}, with {@code position()} counting from the start of the document.
+		 */
+		abstract JSONUtf8Parser parser(long from, long to);
+	}
+	
+	private static final class ArraySource extends Source {
+		private final byte[] bytes;
+		private final int base;
+		
+		ArraySource(byte[] bytes, int base, int length) {
+			super(length);
+			this.bytes = bytes;
+			this.base = base;
+		}
+		
+		int byteAt(long index) {
+			return bytes[base + (int) index] & 0xFF;
+		}
+		
+		JSONUtf8Parser parser(long from, long to) {
+			return new JSONUtf8Parser(bytes, base + (int) from, (int) (to - from)).countingFrom(from);
+		}
+	}
+	
+	private static final class FileSource extends Source {
+		private final FileChannel channel;
+		private final long chunkSize;
+		private MappedByteBuffer window;
+		private long windowStart;
+		
+		FileSource(FileChannel channel, long chunkSize) throws IOException {
+			super(channel.size());
+			this.channel = channel;
+			this.chunkSize = chunkSize;
+		}
+		
+		int byteAt(long index) {
+			if (window == null || index < windowStart || index >= windowStart + window.limit()) {
+				windowStart = index / WINDOW_SIZE * WINDOW_SIZE;
+				try {
+					window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(WINDOW_SIZE, length - windowStart));
+				} catch (IOException e) {
+					throw new JSONException("I/O error while mapping json input(" + index + ")", e);
+				}
+			}
+			return window.get((int) (index - windowStart)) & 0xFF;
+		}
+		
+		JSONUtf8Parser parser(long from, long to) {
+			return new JSONUtf8Parser(channel, from, to, chunkSize);
+		}
+	}
+	
+	/**
+	 * @param segmentSize The smallest amount of input worth a task of its own; {@link #SEGMENT_SIZE} except in tests.
+	 */
+	static Object parse(byte[] bytes, int offset, int length, int segmentSize, JSONParseOption[] options) {
+		return new JSONParallelArray(new ArraySource(bytes, offset, length), options).parse(segmentSize);
+	}
+	
+	/**
+	 * The channel is not closed.
+	 * 
+	 * @param segmentSize The smallest amount of input worth a task of its own; {@link #SEGMENT_SIZE} except in tests.
+	 */
+	static Object parse(FileChannel channel, long chunkSize, int segmentSize, JSONParseOption[] options) throws IOException {
+		return new JSONParallelArray(new FileSource(channel, chunkSize), options).parse(segmentSize);
+	}
+	
+	private Object parse(int segmentSize) {
+		for (JSONParseOption option : options) {
+			if (option instanceof JSONSelection) return parseSequentially();
+			if (option instanceof JSONParseLimits) {
+				// Limits the document as a whole breaks are found, and reported in the right place, by the sequential parser.
+				JSONParseLimits limits = (JSONParseLimits) option;
+				if (limits.maxDepth < 1 || source.length > limits.maxDocumentLength) return parseSequentially();
+				maxEntries = limits.maxEntries;
+			}
+		}
+		
+		long start = skipWhitespace(0, source.length);
+		long end = source.length - 1;
+		while (end > start && JSONParser.isWhitespace(source.byteAt(end))) end--;
+		if (start >= end || source.byteAt(start) != '[' || source.byteAt(end) != ']') return parseSequentially();
+		long contentStart = start + 1;
+		contentEnd = end;
+		
+		long first = skipWhitespace(contentStart, contentEnd);
+		int kind = first < contentEnd ? source.byteAt(first) : ']';
+		if (kind != '{' && kind != '[' && kind != '"' && kind != '-' && (kind < '0' || kind > '9')) return parseSequentially();
+		
+		long range = contentEnd - contentStart;
+		int segments = (int) Math.min(ForkJoinPool.getCommonPoolParallelism() * 4L, range / segmentSize);
+		if (segments < 2) return parseSequentially();
+		
+		List<Segment> tasks = new ArrayList<Segment>();
+		long previous = contentStart;
+		for (int i = 1; i <= segments; i++) {
+			long next = i == segments ? contentEnd : guessBoundary(contentStart + range * i / segments, contentStart + range * (i + 1) / segments, kind);
+			if (next == -1) continue;
+			tasks.add(new Segment(previous, next));
+			previous = next;
+		}
+		for (Segment task : tasks) task.fork();
+		
+		List<Object> out = new ArrayList<Object>();
+		boolean stitched = false;
+		try {
+			stitched = stitch(tasks, contentStart, out);
+		} finally {
+			for (Segment task : tasks) task.cancel(false);
+		}
+		return stitched ? out : parseSequentially();
+	}
+	
+	/**
+	 * Adds the elements of the segments to {@code out} in order, parsing again wherever a segment did not start at a boundary.
+	 * 
+	 * @return {@code false} if a segment failed, or there are too many elements; the sequential parser then reports the error in the right
+	 *     place, or finds the array ends before the last <code>]</code>.
+	 */
+	private boolean stitch(List<Segment> tasks, long contentStart, List<Object> out) {
+		long pos = contentStart;
+		for (Segment task : tasks) {
+			if (pos < task.from) pos = parseUntil(pos, task.from, out);
+			if (pos == -1 || out.size() > maxEntries) return false;
+			if (pos > task.from) continue;
+			
+			task.join();
+			if (task.error != null) return false;
+			out.addAll(task.values);
+			if (out.size() > maxEntries) return false;
+			pos = task.end;
+		}
+		// The last task was a wrong guess, or skipped over by one.
+		if (pos < contentEnd) pos = parseUntil(pos, contentEnd, out);
+		return pos != -1 && out.size() <= maxEntries;
+	}
+	
+	private Object parseSequentially() {
+		JSONParser parser = source.parser(0, source.length).configure(options);
+		try {
+			return parser.parseObject();
+		} finally {
+			parser.release();
+		}
+	}
+	
+	/**
+	 * Parses the elements from {@code from} onwards on this thread, as a {@code Segment}, and adds them to {@code out}.
+	 * 
+	 * @return The end of the segment, or -1 if it failed to parse.
+	 */
+	private long parseUntil(long from, long until, List<Object> out) {
+		Segment segment = new Segment(from, until);
+		segment.compute();
+		if (segment.error != null) return -1;
+		out.addAll(segment.values);
+		return segment.end;
+	}
+	
+	private long skipWhitespace(long from, long to) {
+		long i = from;
+		while (i < to && JSONParser.isWhitespace(source.byteAt(i))) i++;
+		return i;
+	}
+	
+	/**
+	 * @return The offset of the first token after a comma between {@code from} and {@code to} that is of the same kind as {@code kind}, or -1 if there is none.
+	 */
+	private long guessBoundary(long from, long to, int kind) {
+		for (long i = from; i < to; i++) {
+			if (source.byteAt(i) != ',') continue;
+			long j = skipWhitespace(i + 1, contentEnd);
+			if (j >= contentEnd) return -1;
+			int c = source.byteAt(j);
+			if (c == kind || (kind == '-' || (kind >= '0' && kind <= '9')) && (c == '-' || (c >= '0' && c <= '9'))) return j;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Parses the elements that start from {@code from} (which must be the start of an element, or the start of the array's contents) up to,
+	 * and including, the one that ends at or past {@code until}. Stops early once it has more elements than the array may have in total.
+	 */
+	private final class Segment extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		final long from, until;
+		final List<Object> values = new ArrayList<Object>();
+		long end;
+		JSONException error;
+		
+		Segment(long from, long until) {
+			this.from = from;
+			this.until = until;
+		}
+		
+		@Override protected void compute() {
+			JSONParser parser = source.parser(from, contentEnd).configure(options);
+			parser.outerDepth = 1;
+			try {
+				int c = parser.nextSignificant();
+				while (c != -1) {
+					values.add(parser.parseValue(c));
+					if (values.size() > maxEntries) return;
+					c = parser.nextSignificant();
+					if (c == -1) break;
+					if (c != ',') parser.jsonError("Comma expected here");
+					c = parser.nextSignificant();
+					if (c == ',') parser.jsonError("Comma not expected here");
+					if (c != -1 && parser.position() - 1 >= until) {
+						end = parser.position() - 1;
+						return;
+					}
+				}
+				end = contentEnd;
+			} catch (JSONException e) {
+				error = e;
+			} finally {
+				parser.release();
+			}
+		}
+	}
+}
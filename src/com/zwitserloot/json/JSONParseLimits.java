@@ -0,0 +1,101 @@
+package com.zwitserloot.json;
+
+/**
+ * Limits on the size and shape of the documents that {@code JSON.parse} accepts, for parsing input that can't be trusted. Pass it as an option:
+ * {@code JSON.parse(input, limits)}.
+ * 
+ * A document that exceeds any of the limits is rejected with a {@code JSONException} as soon as the parser gets to the point where it does,
+ * so a hostile document can't make the parser hold a thread or build a tree for much longer than a document at the limits would.
+ * <p>
+ * The parser never recurses into nested lists and maps, so even without a depth limit, deep nesting can't overflow the stack; a depth limit
+ * only bounds the work done for such documents. Instances are immutable; the {@code with} methods return a copy with one limit changed:
+ * 
+ * <pre>
+ * JSONParseLimits limits = JSONParseLimits.NONE.withMaxDepth(64).withMaxDocumentLength(1 &lt;&lt; 20);
+ * </pre>
+ */
+public final class JSONParseLimits extends JSONParseOption {
+	/**
+	 * No limits at all; the starting point for building limits with the {@code with} methods.
+	 */
+	public static final JSONParseLimits NONE = new JSONParseLimits(Integer.MAX_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+	
+	final int maxDepth;
+	final long maxDocumentLength;
+	final int maxStringLength;
+	final int maxNumberLength;
+	final int maxEntries;
+	
+	private JSONParseLimits(int maxDepth, long maxDocumentLength, int maxStringLength, int maxNumberLength, int maxEntries) {
+		this.maxDepth = maxDepth;
+		this.maxDocumentLength = maxDocumentLength;
+		this.maxStringLength = maxStringLength;
+		this.maxNumberLength = maxNumberLength;
+		this.maxEntries = maxEntries;
+	}
+	
+	/**
+	 * @param maxDepth How many lists and maps may be nested inside each other; a document that is a list of scalars has depth 1.
+	 * @return A copy of these limits with the given maximum depth.
+	 */
+	public JSONParseLimits withMaxDepth(int maxDepth) {
+		if (maxDepth < 0) throw new IllegalArgumentException("maxDepth: " + maxDepth);
+		return new JSONParseLimits(maxDepth, maxDocumentLength, maxStringLength, maxNumberLength, maxEntries);
+	}
+	
+	/**
+	 * @param maxDocumentLength The length of the entire input, in characters (or, for byte input, bytes), whitespace and comments included.
+	 * @return A copy of these limits with the given maximum document length.
+	 */
+	public JSONParseLimits withMaxDocumentLength(long maxDocumentLength) {
+		if (maxDocumentLength < 0) throw new IllegalArgumentException("maxDocumentLength: " + maxDocumentLength);
+		return new JSONParseLimits(maxDepth, maxDocumentLength, maxStringLength, maxNumberLength, maxEntries);
+	}
+	
+	/**
+	 * @param maxStringLength The length, in characters, of any string or map key, after escapes have been decoded.
+	 * @return A copy of these limits with the given maximum string length.
+	 */
+	public JSONParseLimits withMaxStringLength(int maxStringLength) {
+		if (maxStringLength < 0) throw new IllegalArgumentException("maxStringLength: " + maxStringLength);
+		return new JSONParseLimits(maxDepth, maxDocumentLength, maxStringLength, maxNumberLength, maxEntries);
+	}
+	
+	/**
+	 * @param maxNumberLength The length, in characters, of any number as it is written. Long numbers are the slow ones to decode.
+	 * @return A copy of these limits with the given maximum number length.
+	 */
+	public JSONParseLimits withMaxNumberLength(int maxNumberLength) {
+		if (maxNumberLength < 0) throw new IllegalArgumentException("maxNumberLength: " + maxNumberLength);
+		return new JSONParseLimits(maxDepth, maxDocumentLength, maxStringLength, maxNumberLength, maxEntries);
+	}
+	
+	/**
+	 * @param maxEntries The number of elements in any one list, or entries in any one map.
+	 * @return A copy of these limits with the given maximum number of entries.
+	 */
+	public JSONParseLimits withMaxEntries(int maxEntries) {
+		if (maxEntries < 0) throw new IllegalArgumentException("maxEntries: " + maxEntries);
+		return new JSONParseLimits(maxDepth, maxDocumentLength, maxStringLength, maxNumberLength, maxEntries);
+	}
+	
+	@Override void applyTo(JSONParser parser) {
+		parser.maxDepth = maxDepth;
+		parser.maxDocumentLength = maxDocumentLength;
+		parser.maxStringLength = maxStringLength;
+		parser.maxNumberLength = maxNumberLength;
+		parser.maxEntries = maxEntries;
+	}
+	
+	@Override public String toString() {
+		StringBuilder sb = new StringBuilder("JSONParseLimits[");
+		if (maxDepth != Integer.MAX_VALUE) sb.append("depth ").append(maxDepth).append(", ");
+		if (maxDocumentLength != Long.MAX_VALUE) sb.append("document ").append(maxDocumentLength).append(", ");
+		if (maxStringLength != Integer.MAX_VALUE) sb.append("string ").append(maxStringLength).append(", ");
+		if (maxNumberLength != Integer.MAX_VALUE) sb.append("number ").append(maxNumberLength).append(", ");
+		if (maxEntries != Integer.MAX_VALUE) sb.append("entries ").append(maxEntries).append(", ");
+		if (sb.charAt(sb.length() - 1) == ' ') sb.setLength(sb.length() - 2);
+		else sb.append("none");
+		return sb.append(']').toString();
+	}
+}
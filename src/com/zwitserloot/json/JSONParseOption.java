@@ -0,0 +1,36 @@
+package com.zwitserloot.json;
+
+/**
+ * Options that change how {@code JSON.parse} builds its result; pass any number of them after the input, e.g. {@code JSON.parse(input, JSONParseOption.RAW_NUMBERS)}.
+ * 
+ * Besides the constants in this class, a {@link JSONStringCache}, a {@link JSONSelection} and {@link JSONParseLimits} are options too.
+ */
+public abstract class JSONParseOption {
+	/**
+	 * Numbers are not decoded while parsing; instead, each is stored as a {@code Number} that holds the number exactly as it was written, and decodes
+	 * it the first time its value is asked for (via {@code asInt()}, {@code asDouble()} and the like).
+	 * <p>
+	 * {@code asString()} returns the number as it was written, and the number is written out again exactly as it was read, digit for digit.
+	 * This makes parsing a document, changing a few values and writing it back out both faster and lossless: numbers nobody looks at are never
+	 * decoded or formatted, and integers too large for a double, or decimals with more precision than one, pass through untouched.
+	 * Malformed numbers are still reported while parsing.
+	 */
+	public static final JSONParseOption RAW_NUMBERS = new JSONParseOption() {
+		@Override void applyTo(JSONParser parser) {
+			parser.rawNumbers = true;
+		}
+		
+		@Override public String toString() {
+			return "RAW_NUMBERS";
+		}
+	};
+	
+	JSONParseOption() {
+		// Only this package defines options.
+	}
+	
+	/**
+	 * Configures the parser; called before it parses anything.
+	 */
+	abstract void applyTo(JSONParser parser);
+}
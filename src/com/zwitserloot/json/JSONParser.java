@@ -1,304 +1,364 @@
 package com.zwitserloot.json;
 
-import java.math.BigDecimal;
-import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
-class JSONParser {
-	private final String string;
-	private final int len;
-	private int pos = 0;
-	
+/**
+ * The JSON grammar. Subclasses supply the tokens: they own the input buffer and know how to skip whitespace and comments,
+ * and how to read strings, map keys and literals out of it.
+ */
+abstract class JSONParser extends JSONNumberParser {
 	static final Object NULL = new Object();
-	static final long MAXIMUM_PRECISION_DOUBLE = 1L << 52 -1;
 	
-	JSONParser(String string) {
-		this.string = stripComments(string);
-		this.len = this.string.length();
+	private long[] skipObjects;
+	boolean rawNumbers;
+	JSONStringCache stringCache;
+	JSONSelection.Node selection;
+	int maxDepth = Integer.MAX_VALUE;
+	/** How deeply the values parsed are nested already, for {@code maxDepth}: 1 for the elements of an array parsed in parts. */
+	int outerDepth;
+	long maxDocumentLength = Long.MAX_VALUE;
+	int maxStringLength = Integer.MAX_VALUE;
+	int maxEntries = Integer.MAX_VALUE;
+	
+	/**
+	 * Returned in place of a value that was skipped because it is not in the selection.
+	 */
+	private static final Object SKIPPED = new Object();
+	
+	/**
+	 * Skips whitespace as well as comments (from {@code #} or {@code //} to the end of the line),
+	 * then consumes and returns the next character, or -1 if the input has run out.
+	 */
+	abstract int nextSignificant();
+	
+	/**
+	 * Consumes {@code rest} if the input continues with it.
+	 */
+	abstract boolean readLiteral(String rest);
+	
+	/**
+	 * Reads an unquoted map key whose first character, {@code first}, was just consumed; the whitespace and colon that follow it are left for the caller.
+	 * 
+	 * The returned view is reused, and only valid until the next call into this parser.
+	 */
+	abstract CharSequence parseMapKeyView(int first);
+	
+	/**
+	 * Reads a string whose opening quote was just consumed.
+	 * 
+	 * The returned view is reused, and only valid until the next call into this parser.
+	 */
+	abstract CharSequence parseStringView();
+	
+	/**
+	 * Reads a map key, quoted or not, whose first character, {@code first}, was just consumed.
+	 */
+	String parseMapKey(int first) {
+		CharSequence key = checkStringLength(first == '"' ? parseStringView() : parseMapKeyView(first));
+		return stringCache != null ? stringCache.get(key) : key.toString();
 	}
 	
-	private static String stripComments(String in) {
-		StringBuilder out = new StringBuilder();
-		int start = 0;
-		int end = 0;
+	String parseString() {
+		CharSequence s = checkStringLength(parseStringView());
+		return stringCache != null && stringCache.cachesValue(s.length()) ? stringCache.get(s) : s.toString();
+	}
+	
+	/**
+	 * Skips past the closing quote of a string whose opening quote was just consumed, without decoding it.
+	 * 
+	 * @return {@code true} if the string's contents contain no escapes (nor, for byte input, non-ASCII characters), i.e. the raw input is exactly the string's value.
+	 */
+	abstract boolean skipString();
+	
+	/**
+	 * Skips the rest of a number whose first character was just consumed, without decoding or validating it.
+	 */
+	void skipNumber() {
 		while (true) {
-			start = end;
-			if (start >= in.length()) break;
-			end = in.indexOf('\n', start);
-			if (end == -1) end = in.length();
-			else end++;
-			String line = in.substring(start, end).trim();
-			if (line.startsWith("#") || line.startsWith("//")) continue;
-			out.append(line);
+			int c = peek();
+			if ((c >= '0' && c <= '9') || c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-') read();
+			else return;
 		}
-		return out.toString();
+	}
+	
+	/**
+	 * Only the 4 whitespace characters that the JSON spec allows; {@code Character.isWhitespace} is both slower and more lenient.
+	 */
+	static boolean isWhitespace(int c) {
+		return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+	}
+	
+	/**
+	 * Returns the buffers this parser took from {@link JSONRecycler}; call once parsing is done, and nothing refers to the views it handed out.
+	 * The parser must not be used afterwards.
+	 */
+	void release() {
+		// Only subclasses that read through a buffer have anything to return.
+	}
+	
+	/**
+	 * Applies the options to this parser; call before parsing anything.
+	 */
+	JSONParser configure(JSONParseOption... options) {
+		for (JSONParseOption option : options) option.applyTo(this);
+		return this;
 	}
 	
 	Object parseObject() {
-		while (pos < len) {
-			char c = string.charAt(pos++);
-			if (Character.isWhitespace(c)) continue;
-			if (c == '"') return parseString();
-			if (c == '[') return parseList();
-			if (c == '{') return parseMap();
-			if (pos + 2 < len && string.substring(pos -1, pos +3).equals("true")) {
-				pos += 3;
-				return true;
-			}
-			if (pos + 3 < len && string.substring(pos -1, pos +4).equals("false")) {
-				pos += 4;
-				return false;
-			}
-			if (pos + 2 < len && string.substring(pos -1, pos +3).equals("null")) {
-				pos += 3;
-				return NULL;
-			}
-			if (c == '-' || c == '0' || (c >= '1' && c <= '9')) return parseNumber();
-			return jsonError("Invalid character - expected a string, array, object, 'true', 'false', 'null', or number.");
-		}
-		
-		return jsonError("Incomplete json object");
+		int c = nextSignificant();
+		Object value = selection == null || selection.all || (c != '{' && c != '[') ? parseValue(c) : parseContainer(c, selection);
+		if (maxDocumentLength != Long.MAX_VALUE) checkDocumentLength(position());
+		return value;
 	}
 	
-	private <T> T jsonError(String msg) {
-		throw new JSONException(msg + "(" + pos + ")");
+	Object parseValue(int c) {
+		if (c == '[' || c == '{') return parseContainer(c, null);
+		return parseScalar(c);
 	}
 	
-	private Number parseNumber() {
-		StringBuilder number = new StringBuilder();
-		StringBuilder fraction = new StringBuilder();
-		StringBuilder exponent = new StringBuilder();
-		boolean exponentSign = true;
-		
-		boolean numberSign = string.charAt(pos -1) != '-';
-		if (numberSign && string.charAt(pos -1) != '+') pos--;
-		
-		//0: first digit
-		//1: potential further digits after first
-		//2: first digit after period
-		//3: potential further digits after period
-		//4: just read e, or E
-		//5: first digit after e/E
-		//6: potential further digits after e/E
-		int state = 0;
-		while (pos < len) {
-			char c = string.charAt(pos++);
-			if (c == '.') {
-				if (state == 0) return jsonError("Expected a digit");
-				else if (state == 1) state = 2;
-				else return jsonError("not a valid number - fractional separator (.) not expected here");
-				continue;
-			} else if (c == 'E' || c == 'e') {
-				if (state == 0 || state == 2) return jsonError("Expected a digit");
-				else if (state == 1 || state == 3) state = 4;
-				else return jsonError("not a valid number - exponential separator (E) not expected here");
-			} else if (c == '+') {
-				if (state == 4) state = 5;
-				else return jsonError("not a valid number - '+' not expected here");
-			} else if (c == '-') {
-				if (state == 4) {
-					exponentSign = false;
-					state = 5;
-				} else return jsonError("not a valid number - '-' not expected here");
-			} else if (c < '0' || c > '9') {
-				pos--;
-				break;
-			} else {
-				if (state == 4 || state == 5 || state == 6) {
-					state = 6;
-					exponent.append(c);
-				} else if (state == 0 || state == 1) {
-					state = 1;
-					number.append(c);
-				} else if (state == 2 || state == 3) {
-					state = 3;
-					fraction.append(c);
-				}
-			}
-		}
-		
-		if (state == 0 || state == 2 || state == 4 || state == 5) return jsonError("digit expected");
-		else {
-			return makeNumber(numberSign, number.toString(), fraction.toString(), exponentSign, exponent.toString());
-		}
+	private Object parseScalar(int c) {
+		if (c == -1) return jsonError("Incomplete json object");
+		if (c == '"') return parseString();
+		if (c == 't' && readLiteral("rue")) return true;
+		if (c == 'f' && readLiteral("alse")) return false;
+		if (c == 'n' && readLiteral("ull")) return NULL;
+		if (c == '-' || c == '0' || (c >= '1' && c <= '9')) return rawNumbers ? parseRawNumber(c) : parseNumber(c);
+		return jsonError("Invalid character - expected a string, array, object, 'true', 'false', 'null', or number.");
 	}
 	
-	private Number makeNumber(boolean numberSign, String number, String fraction, boolean exponentSign, String exponent) {
-		String nr = String.format("%s%s%s%s%s%s%s",
-				numberSign ? "" : "-", number, fraction.length() > 0 ? "." : "",
-				fraction, exponent.length() > 0 ? "E" : "", exponentSign ? "" : "-",
-				exponent);
-		
-		if (fraction.length() != 0 || exponent.length() != 0) {
-			try {
-				return Double.parseDouble(nr);
-			} catch (Exception e) {
-				try {
-					return new BigDecimal(nr);
-				} catch (Exception f) {
-					return jsonError("Not a number: " + nr);
-				}
-			}
-		} else {
-			long val;
-			try {
-				val = Long.parseLong(nr);
-			} catch (Exception e) {
-				try {
-					return new BigInteger(nr);
-				} catch (Exception f) {
-					return jsonError("Not a number: " + nr);
-				}
-			}
+	/**
+	 * Skips a value whose first character, {@code first}, was just consumed, without decoding anything in it. Only checks that its brackets
+	 * balance and match, that its strings end, and that it contains no characters that can't occur in JSON.
+	 */
+	private void skipValue(int first) {
+		// Bit n is set if the bracket open at depth n is a brace.
+		if (skipObjects == null) skipObjects = new long[1];
+		long[] objects = skipObjects;
+		int depth = 0;
+		int c = first;
+		while (true) {
+			if (c == '"') skipString();
+			else if (c == '{' || c == '[') {
+				if (depth == objects.length * 64) objects = skipObjects = Arrays.copyOf(objects, objects.length * 2);
+				if (c == '{') objects[depth >> 6] |= 1L << depth;
+				else objects[depth >> 6] &= ~(1L << depth);
+				depth++;
+			} else if (c == '}' || c == ']') {
+				if (--depth < 0) jsonError("Invalid character - expected a string, array, object, 'true', 'false', 'null', or number.");
+				if (((objects[depth >> 6] & (1L << depth)) != 0) != (c == '}')) jsonError(c == '}' ? "Array not closed" : "Object not closed");
+			} else if (c == '-' || (c >= '0' && c <= '9')) skipNumber();
+			else if (c == -1) jsonError("Incomplete json object");
+			else if (isMapKeyChar(c)) {
+				while (isMapKeyChar(peek())) read();
+			} else if ((c != ',' && c != ':') || depth == 0) jsonError("Invalid character - expected a string, array, object, 'true', 'false', 'null', or number.");
 			
-			if (val > MAXIMUM_PRECISION_DOUBLE || val < -MAXIMUM_PRECISION_DOUBLE) return Long.valueOf(val);
-			return Double.valueOf(val);
+			if (depth == 0) return;
+			c = nextSignificant();
 		}
 	}
 	
-	private List<?> parseList() {
-		List<Object> list = new ArrayList<Object>();
-		
-		boolean commaNeeded = false;
-		while (pos < len) {
-			char c = string.charAt(pos++);
-			if (Character.isWhitespace(c)) continue;
-			else if (c == ']') return list;
-			else if (c == ',') {
-				if (commaNeeded) commaNeeded = false;
-				else return jsonError("Comma not expected here");
+	CharSequence checkStringLength(CharSequence s) {
+		if (s.length() > maxStringLength) jsonError("String longer than " + maxStringLength + " characters");
+		return s;
+	}
+	
+	/**
+	 * Called with the amount of input read so far; subclasses that read the input a buffer at a time call this after each refill as well.
+	 */
+	void checkDocumentLength(long length) {
+		if (length > maxDocumentLength) jsonError("Document longer than " + maxDocumentLength);
+	}
+	
+	/**
+	 * Reads a number whose first character, {@code first}, was just consumed, and validates it without decoding it.
+	 */
+	private Number parseRawNumber(int first) {
+		readNumber(first, false);
+		return new JSONRawNumber(numberText());
+	}
+	
+	/**
+	 * A list or map that is being parsed.
+	 */
+	private static final class Frame {
+		List<Object> list;
+		Map<String, Object> map;
+		/** The parts of the container to parse, or {@code null} for all of it. */
+		JSONSelection.Node selection;
+		/** For maps: the key of the entry whose value comes next, and the part of that value to parse. */
+		String key;
+		JSONSelection.Node child;
+		boolean commaNeeded, colonNeeded;
+	}
+	
+	private Frame[] frames = new Frame[8];
+	
+	/**
+	 * Parses a list or map whose opening bracket, {@code first}, was just consumed, including everything nested in it.
+	 * 
+	 * Nested lists and maps are kept on an explicit stack of {@link Frame}s rather than parsed by recursive calls, so a deeply nested document
+	 * can't overflow the thread's stack; {@link JSONParseLimits} can limit the depth instead.
+	 * 
+	 * @param selection The parts of the container to parse, or {@code null} for all of it. Skipped elements of a list are replaced by {@code null},
+	 *     skipped entries of a map are left out.
+	 */
+	private Object parseContainer(int first, JSONSelection.Node selection) {
+		int depth = 0;
+		Frame top = push(depth++, first, selection);
+		while (true) {
+			int c = nextSignificant();
+			if (maxDocumentLength != Long.MAX_VALUE) checkDocumentLength(position());
+			JSONSelection.Node child = null;
+			if (top.map == null) {
+				if (c == -1) return jsonError("Array not closed");
+				if (c == ',') {
+					if (!top.commaNeeded) return jsonError("Comma not expected here");
+					top.commaNeeded = false;
+					continue;
+				}
+				if (c != ']') {
+					if (top.commaNeeded) return jsonError("Comma expected here");
+					if (top.selection != null) child = top.selection.child(top.list.size());
+				}
 			} else {
-				pos--;
-				if (commaNeeded) return jsonError("Comma expected here");
-				else {
-					list.add(parseObject());
-					commaNeeded = true;
+				if (c == -1) return jsonError("Array not closed");
+				if (top.colonNeeded && c != ':') return jsonError("Colon expected here");
+				if (c == '}') {
+					if (top.key != null) return jsonError("value expected here");
+				} else {
+					if (top.commaNeeded && c != ',') return jsonError("Comma expected here");
+					if (c == ',') {
+						top.commaNeeded = false;
+						continue;
+					}
+					if (c == ':') {
+						top.colonNeeded = false;
+						continue;
+					}
+					if (top.key == null) {
+						parseEntryKey(top, c);
+						continue;
+					}
+					child = top.child;
 				}
 			}
-		}
-		
-		return jsonError("Array not closed");
-	}
-	
-	private Map<String, ?> parseMap() {
-		Map<String, Object> map = new LinkedHashMap<String, Object>();
-		
-		boolean commaNeeded = false;
-		boolean colonNeeded = false;
-		String key = null;
-		while (pos < len) {
-			char c = string.charAt(pos++);
-			if (Character.isWhitespace(c)) continue;
-			if (colonNeeded && c != ':') return jsonError("Colon expected here");
 			
-			if (c == '}') {
-				if (key != null) return jsonError("value expected here");
-				else return map;
+			Object value;
+			if (c == (top.map == null ? ']' : '}')) {
+				value = top.map != null ? top.map : top.list;
+				top.list = null;
+				top.map = null;
+				if (--depth == 0) return value;
+				top = frames[depth - 1];
+			} else if (top.selection == null || (child != null && child.all)) {
+				if (c == '[' || c == '{') {
+					top = push(depth++, c, null);
+					continue;
+				}
+				value = parseScalar(c);
+			} else if (child != null && (c == '[' || c == '{')) {
+				top = push(depth++, c, child);
+				continue;
+			} else {
+				skipValue(c);
+				value = SKIPPED;
 			}
 			
-			if (commaNeeded && c != ',') return jsonError("Comma expected here");
-			
-			if (c == ',') commaNeeded = false;
-			else if (c == ':') colonNeeded = false;
-			else {
-				if (key == null) {
-					if (c != '"') {
-						pos--;
-						key = parseMapKey();
-					} else key = parseString();
-					if (map.containsKey(key))
-						return jsonError("JSON object contains key " + key + " twice");
-					colonNeeded = true;
-				} else {
-					pos--;
-					map.put(key, parseObject());
-					key = null;
-					commaNeeded = true;
-				}
+			if (top.map == null) {
+				if (top.list.size() == maxEntries) return jsonError("More than " + maxEntries + " elements in a list");
+				top.list.add(value == SKIPPED ? NULL : value);
+			} else {
+				if (value != SKIPPED) top.map.put(top.key, value);
+				top.key = null;
 			}
+			top.commaNeeded = true;
 		}
-		
-		return jsonError("Array not closed");
 	}
 	
-	private final String SAFE_MAP_KEY_CHARS =
-		"abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789_-$";
-	
-	private String parseMapKey() {
-		StringBuilder out = new StringBuilder();
-		
-		int state = 0;
-		
-		while (pos < len) {
-			char c = string.charAt(pos++);
-			if ((state == 0 || state == 2) && Character.isWhitespace(c)) continue;
-			if (state == 0) state = 1;
-			if (state == 1 && Character.isWhitespace(c)) {
-				state = 2;
-				continue;
-			}
-			
-			if ((state == 1 || state == 2) && c == ':') {
-				pos--;
-				return out.toString();
-			}
-			
-			if (state == 2) return jsonError("Colon expected after map key.");
-			if (SAFE_MAP_KEY_CHARS.indexOf(c) > -1) out.append(c);
-			else return jsonError("Unexpected symbol in map key: " + c);
+	/**
+	 * @return The frame for a new list or map at {@code depth} (0 for the outermost), whose opening bracket, {@code c}, was just consumed.
+	 */
+	private Frame push(int depth, int c, JSONSelection.Node selection) {
+		if (depth + outerDepth >= maxDepth) jsonError("Nested more than " + maxDepth + " levels deep");
+		if (depth == frames.length) {
+			Frame[] newFrames = new Frame[depth * 2];
+			System.arraycopy(frames, 0, newFrames, 0, depth);
+			frames = newFrames;
 		}
-		
-		return jsonError("Expected colon instead of end-of-stream.");
+		Frame f = frames[depth];
+		if (f == null) f = frames[depth] = new Frame();
+		if (c == '[') f.list = new ArrayList<Object>();
+		else f.map = new LinkedHashMap<String, Object>();
+		f.selection = selection;
+		f.key = null;
+		f.child = null;
+		f.commaNeeded = false;
+		f.colonNeeded = false;
+		return f;
 	}
 	
-	private String parseString() {
-		StringBuilder out = new StringBuilder();
-		
-		while (pos < len) {
-			char c = string.charAt(pos++);
-			if (c == '\\') {
-				if (pos == len) return jsonError("Dangling string escape");
-				char d = string.charAt(pos++);
-				switch (d) {
-				case '"':
-				case '\\':
-				case '/':
-					out.append(d); break;
-				case 'b': out.append('\b'); break;
-				case 'f': out.append('\f'); break;
-				case 'n': out.append('\n'); break;
-				case 'r': out.append('\r'); break;
-				case 't': out.append('\t'); break;
-				case 'u':
-					if (pos + 4 > len) return jsonError("Dangling hex string escape");
-					char g = 0;
-					for (int i = 0; i < 4; i++) {
-						g <<= 4;
-						int hexDigit = readHexDigit(string.charAt(pos++));
-						g |= (hexDigit & 0x0F);
-					}
-					out.append(g); break;
-				default: return jsonError("Unknown json string escape: \\" + d);
-				}
-			} else if (c == '"') {
-				return out.toString();
-			} else out.append(c);
+	/**
+	 * Reads the key of the next entry in the map of {@code f}; the key's first character, {@code first}, was just consumed.
+	 */
+	private void parseEntryKey(Frame f, int first) {
+		if (f.map.size() == maxEntries) jsonError("More than " + maxEntries + " entries in a map");
+		if (f.selection == null) {
+			f.key = parseMapKey(first);
+		} else {
+			CharSequence name = checkStringLength(first == '"' ? parseStringView() : parseMapKeyView(first));
+			f.child = f.selection.child(name);
+			// A skipped entry still needs a key; it tells the parser a value comes next.
+			f.key = f.child == null ? "" : stringCache != null ? stringCache.get(name) : name.toString();
 		}
-		
-		return jsonError("String not closed");
+		if ((f.selection == null || f.child != null) && f.map.containsKey(f.key)) jsonError("JSON object contains key " + f.key + " twice");
+		f.colonNeeded = true;
 	}
 	
-	private static final String HEX_DIGITS = "0123456789ABCDEFabcdef";
-	private int readHexDigit(char c) {
-		int idx = HEX_DIGITS.indexOf(c);
-		if (idx == -1) {
-			jsonError("Not a hex digit: " + c);
-			return -1;
+	private static final boolean[] SAFE_MAP_KEY_CHARS = new boolean[128];
+	
+	static {
+		String safe = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789_-$";
+		for (int i = 0; i < safe.length(); i++) SAFE_MAP_KEY_CHARS[safe.charAt(i)] = true;
+	}
+	
+	static boolean isMapKeyChar(int c) {
+		return c >= 0 && c < 128 && SAFE_MAP_KEY_CHARS[c];
+	}
+	
+	void parseEscape(StringBuilder out) {
+		int d = read();
+		switch (d) {
+		case -1: jsonError("Dangling string escape"); break;
+		case '"':
+		case '\\':
+		case '/':
+			out.append((char) d); break;
+		case 'b': out.append('\b'); break;
+		case 'f': out.append('\f'); break;
+		case 'n': out.append('\n'); break;
+		case 'r': out.append('\r'); break;
+		case 't': out.append('\t'); break;
+		case 'u':
+			char g = 0;
+			for (int i = 0; i < 4; i++) {
+				int h = read();
+				if (h == -1) jsonError("Dangling hex string escape");
+				g <<= 4;
+				g |= readHexDigit(h);
+			}
+			out.append(g); break;
+		default: jsonError("Unknown json string escape: \\" + (char) d);
 		}
-		else if (idx > 15) return idx - 6;
-		else return idx;
+	}
+	
+	private int readHexDigit(int c) {
+		if (c >= '0' && c <= '9') return c - '0';
+		if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+		if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+		return jsonError("Not a hex digit: " + (char) c);
 	}
 }
@@ -0,0 +1,62 @@
+package com.zwitserloot.json;
+
+/**
+ * A number as it was written in the input, for {@link JSONParseOption#RAW_NUMBERS}. It is decoded the way {@code JSON.parse} would have decoded it
+ * the first time its value is asked for; {@code toString()} returns the original text, which is also what {@code JSONWriter} writes.
+ */
+final class JSONRawNumber extends Number {
+	private static final long serialVersionUID = 1L;
+	
+	private final String text;
+	private Number value;
+	
+	/**
+	 * @param text A valid JSON number.
+	 */
+	JSONRawNumber(String text) {
+		this.text = text;
+	}
+	
+	Number value() {
+		Number v = value;
+		if (v == null) {
+			JSONParser parser = new JSONCharParser(text);
+			try {
+				v = value = parser.parseNumber(parser.read());
+			} finally {
+				parser.release();
+			}
+		}
+		return v;
+	}
+	
+	@Override public int intValue() {
+		return value().intValue();
+	}
+	
+	@Override public long longValue() {
+		return value().longValue();
+	}
+	
+	@Override public float floatValue() {
+		return value().floatValue();
+	}
+	
+	@Override public double doubleValue() {
+		return value().doubleValue();
+	}
+	
+	@Override public boolean equals(Object o) {
+		if (o == this) return true;
+		if (!(o instanceof JSONRawNumber)) return false;
+		return value().equals(((JSONRawNumber) o).value());
+	}
+	
+	@Override public int hashCode() {
+		return value().hashCode();
+	}
+	
+	@Override public String toString() {
+		return text;
+	}
+}
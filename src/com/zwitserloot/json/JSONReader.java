@@ -0,0 +1,488 @@
+package com.zwitserloot.json;
+
+import java.io.Closeable;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Reads JSON one token at a time, without building a tree.
+ * 
+ * This reader accepts exactly what {@link JSON#parse(String, JSONParseOption...)} accepts, including unquoted map keys, comments and trailing commas,
+ * but lets you pick out the values you need and {@link #skipValue() skip} the rest without allocating anything for them. For example:
+ * 
+ * <pre>
+ * JSONReader reader = new JSONReader(input);
+ * reader.beginObject();
+ * while (reader.hasNext()) {
+ *     String key = reader.nextName();
+ *     if (key.equals("id")) id = reader.nextLong();
+ *     else if (key.equals("name")) name = reader.nextString();
+ *     else reader.skipValue();
+ * }
+ * reader.endObject();
+ * </pre>
+ * 
+ * Any mismatch between what you ask for and what the input contains results in a {@code JSONException}.
+ * A reader borrows a buffer from {@link JSONRecycler}; call {@link #close()} once you are done with it, also when reading stops early, to give
+ * it back. A reader does not close the stream it reads from.
+ */
+public final class JSONReader implements Closeable {
+	/**
+	 * The kinds of tokens in a JSON document.
+	 */
+	public enum Token {
+		BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT;
+	}
+	
+	private static final int EMPTY_DOCUMENT = 0;
+	private static final int NONEMPTY_DOCUMENT = 1;
+	private static final int ARRAY_EXPECT_VALUE = 2;
+	private static final int ARRAY_EXPECT_COMMA = 3;
+	private static final int OBJECT_EXPECT_NAME = 4;
+	private static final int OBJECT_EXPECT_VALUE = 5;
+	private static final int OBJECT_EXPECT_COMMA = 6;
+	
+	final JSONParser parser;
+	private int[] stack = new int[32];
+	private int depth = 1;
+	private Token peeked;
+	private int peekedChar;
+	private boolean closed;
+	boolean verbatim;
+	
+	/**
+	 * @param in JSON formatted input.
+	 */
+	public JSONReader(CharSequence in) {
+		this(new JSONCharParser(in));
+	}
+	
+	/**
+	 * @param in Source of JSON formatted input, read through a fixed-size buffer.
+	 */
+	public JSONReader(Reader in) {
+		this(new JSONCharParser(in));
+	}
+	
+	/**
+	 * @param in Source of JSON formatted input, read through a fixed-size buffer.
+	 * @param charset The encoding of the bytes in {@code in}.
+	 */
+	public JSONReader(InputStream in, Charset charset) {
+		this(charset.name().equals("UTF-8") ? new JSONUtf8Parser(in) : new JSONCharParser(new InputStreamReader(in, charset)));
+	}
+	
+	/**
+	 * @param bytes Array containing UTF-8 encoded JSON; it is read in place, so do not modify it while reading.
+	 * @param offset Index of the first byte of the input in {@code bytes}.
+	 * @param length Number of bytes of input.
+	 */
+	public JSONReader(byte[] bytes, int offset, int length) {
+		this(new JSONUtf8Parser(bytes, offset, length));
+		if (offset < 0 || length < 0 || offset + length > bytes.length) throw new IndexOutOfBoundsException();
+	}
+	
+	/**
+	 * @param bytes Buffer containing UTF-8 encoded JSON between its position and its limit. The buffer's position is not changed.
+	 */
+	public JSONReader(ByteBuffer bytes) {
+		this(new JSONUtf8Parser(bytes));
+	}
+	
+	JSONReader(JSONParser parser) {
+		this.parser = parser;
+		this.stack[0] = EMPTY_DOCUMENT;
+	}
+	
+	/**
+	 * Returns the kind of the next token without consuming it.
+	 * 
+	 * @return The kind of the next token; {@code END_DOCUMENT} once the top-level value has been read completely.
+	 */
+	public Token peek() {
+		if (closed) throw new IllegalStateException("This reader has been closed");
+		if (peeked == null) peeked = doPeek();
+		return peeked;
+	}
+	
+	/**
+	 * Consumes the next token, whatever it is, and returns its kind.
+	 * 
+	 * Names and values are skipped without being decoded (or, for numbers, validated); use the {@code nextX()} methods to read them instead.
+	 * 
+	 * @return The kind of the token that was consumed.
+	 */
+	public Token nextToken() {
+		Token t = peek();
+		switch (t) {
+		case BEGIN_OBJECT: beginObject(); break;
+		case END_OBJECT: endObject(); break;
+		case BEGIN_ARRAY: beginArray(); break;
+		case END_ARRAY: endArray(); break;
+		case NAME:
+			if (peekedChar == '"') verbatim = parser.skipString();
+			else parser.parseMapKeyView(peekedChar);
+			peeked = null;
+			break;
+		case STRING: verbatim = parser.skipString(); peeked = null; break;
+		case NUMBER: parser.skipNumber(); peeked = null; break;
+		case BOOLEAN: nextBoolean(); break;
+		case NULL: nextNull(); break;
+		case END_DOCUMENT: break;
+		}
+		return t;
+	}
+	
+	/**
+	 * @return {@code true} if the current array or object has another element.
+	 */
+	public boolean hasNext() {
+		Token t = peek();
+		return t != Token.END_OBJECT && t != Token.END_ARRAY && t != Token.END_DOCUMENT;
+	}
+	
+	/**
+	 * Consumes the opening brace of an object.
+	 */
+	public void beginObject() {
+		expect(Token.BEGIN_OBJECT);
+		push(OBJECT_EXPECT_NAME);
+		peeked = null;
+	}
+	
+	/**
+	 * Consumes the closing brace of the current object.
+	 */
+	public void endObject() {
+		expect(Token.END_OBJECT);
+		depth--;
+		peeked = null;
+	}
+	
+	/**
+	 * Consumes the opening bracket of an array.
+	 */
+	public void beginArray() {
+		expect(Token.BEGIN_ARRAY);
+		push(ARRAY_EXPECT_VALUE);
+		peeked = null;
+	}
+	
+	/**
+	 * Consumes the closing bracket of the current array.
+	 */
+	public void endArray() {
+		expect(Token.END_ARRAY);
+		depth--;
+		peeked = null;
+	}
+	
+	/**
+	 * @return The name of the next entry in the current object, quoted or not.
+	 */
+	public String nextName() {
+		expect(Token.NAME);
+		peeked = null;
+		return parser.parseMapKey(peekedChar);
+	}
+	
+	/**
+	 * @return The next value, which must be a string or {@code null}.
+	 */
+	public String nextString() {
+		if (peek() == Token.NULL) {
+			nextNull();
+			return null;
+		}
+		expect(Token.STRING);
+		peeked = null;
+		return parser.parseString();
+	}
+	
+	/**
+	 * Reads the next value as a long. Like {@link JSON#asLong()}, this accepts integral numbers as well as strings containing them,
+	 * which is how {@code JSON} writes longs too large to be represented accurately by a double.
+	 * 
+	 * @return The next value as a long.
+	 */
+	public long nextLong() {
+		Token t = peek();
+		if (t == Token.STRING) {
+			String s = nextString();
+			try {
+				return Long.parseLong(s);
+			} catch (NumberFormatException e) {
+				try {
+					return toLong(Double.parseDouble(s));
+				} catch (NumberFormatException f) {
+					return parser.<Long>jsonError("Not a number: " + s);
+				}
+			}
+		}
+		
+		expect(Token.NUMBER);
+		peeked = null;
+		Number n = parser.parseNumber(peekedChar);
+		if (n instanceof Long) return n.longValue();
+		if (n instanceof BigInteger || n instanceof BigDecimal) return parser.<Long>jsonError("Number out of range for a long: " + n);
+		return toLong(n.doubleValue());
+	}
+	
+	private long toLong(double d) {
+		long v = (long) d;
+		if (v != d) return parser.<Long>jsonError("Not an integral number: " + d);
+		return v;
+	}
+	
+	/**
+	 * Reads the next value as a double; it must be a number, or a string that can be parsed with {@code Double.parseDouble}.
+	 * 
+	 * @return The next value as a double.
+	 */
+	public double nextDouble() {
+		Token t = peek();
+		if (t == Token.STRING) {
+			String s = nextString();
+			try {
+				return Double.parseDouble(s);
+			} catch (NumberFormatException e) {
+				return parser.<Double>jsonError("Not a number: " + s);
+			}
+		}
+		
+		expect(Token.NUMBER);
+		peeked = null;
+		return parser.parseNumber(peekedChar).doubleValue();
+	}
+	
+	/**
+	 * @return The next value, which must be {@code true} or {@code false}.
+	 */
+	public boolean nextBoolean() {
+		expect(Token.BOOLEAN);
+		peeked = null;
+		if (peekedChar == 't' && parser.readLiteral("rue")) return true;
+		if (peekedChar == 'f' && parser.readLiteral("alse")) return false;
+		return parser.<Boolean>jsonError("Invalid character - expected 'true' or 'false'.");
+	}
+	
+	/**
+	 * Consumes the next value, which must be {@code null}.
+	 */
+	public void nextNull() {
+		expect(Token.NULL);
+		peeked = null;
+		if (!parser.readLiteral("ull")) parser.jsonError("Invalid character - expected 'null'.");
+	}
+	
+	/**
+	 * Reads the next value, however deeply nested, into a new {@code JSON} tree.
+	 * 
+	 * @return The next value as a root {@code JSON} object.
+	 */
+	public JSON nextValue() {
+		return new JSON(nextRawValue());
+	}
+	
+	Object nextRawValue() {
+		Token t = peek();
+		if (t == Token.NAME || t == Token.END_OBJECT || t == Token.END_ARRAY || t == Token.END_DOCUMENT) {
+			return parser.jsonError("Expected a value but was " + t);
+		}
+		peeked = null;
+		return parser.parseValue(peekedChar);
+	}
+	
+	/**
+	 * Reads the next value, however deeply nested, and reports its contents to {@code visitor} as it goes.
+	 * 
+	 * Strings are passed as views into the parse buffer; nothing is allocated for them unless the visitor does so.
+	 * Unlike {@link JSON#parse(String, JSONParseOption...)}, duplicate keys are not detected.
+	 * 
+	 * @param visitor Receives the value's contents.
+	 */
+	public void visitValue(JSONVisitor visitor) {
+		Token t = peek();
+		if (t == Token.NAME || t == Token.END_OBJECT || t == Token.END_ARRAY || t == Token.END_DOCUMENT) {
+			parser.jsonError("Expected a value but was " + t);
+		}
+		
+		int count = 0;
+		do {
+			switch (peek()) {
+			case BEGIN_OBJECT:
+				beginObject();
+				visitor.startObject();
+				count++;
+				break;
+			case END_OBJECT:
+				endObject();
+				visitor.endObject();
+				count--;
+				break;
+			case BEGIN_ARRAY:
+				beginArray();
+				visitor.startArray();
+				count++;
+				break;
+			case END_ARRAY:
+				endArray();
+				visitor.endArray();
+				count--;
+				break;
+			case NAME:
+				peeked = null;
+				visitor.key(peekedChar == '"' ? parser.parseStringView() : parser.parseMapKeyView(peekedChar));
+				break;
+			case STRING:
+				peeked = null;
+				visitor.value(parser.parseStringView());
+				break;
+			case NUMBER:
+				peeked = null;
+				switch (parser.readNumber(peekedChar)) {
+				case JSONParser.LONG_NUMBER: visitor.value(parser.numberLong); break;
+				case JSONParser.DOUBLE_NUMBER: visitor.value(parser.numberDouble); break;
+				default:
+					if (parser.numberBig instanceof BigInteger) visitor.value((BigInteger) parser.numberBig);
+					else visitor.value((BigDecimal) parser.numberBig);
+				}
+				break;
+			case BOOLEAN:
+				visitor.value(nextBoolean());
+				break;
+			case NULL:
+				nextNull();
+				visitor.nullValue();
+				break;
+			case END_DOCUMENT:
+				parser.jsonError("Incomplete json object");
+			}
+		} while (count != 0);
+	}
+	
+	/**
+	 * Skips the next value, however deeply nested, without decoding any of it. If the next token is a name, the name and its value are skipped.
+	 */
+	public void skipValue() {
+		Token t = peek();
+		if (t == Token.END_OBJECT || t == Token.END_ARRAY || t == Token.END_DOCUMENT) {
+			parser.jsonError("Expected a value but was " + t);
+		}
+		
+		if (t == Token.NAME) nextToken();
+		
+		int count = 0;
+		do {
+			switch (nextToken()) {
+			case BEGIN_OBJECT:
+			case BEGIN_ARRAY:
+				count++;
+				break;
+			case END_OBJECT:
+			case END_ARRAY:
+				count--;
+				break;
+			default:
+				break;
+			}
+		} while (count != 0);
+	}
+	
+	/**
+	 * Gives this reader's buffer back to {@link JSONRecycler}; the stream it reads from is not closed. Any use of the reader afterwards results
+	 * in an {@code IllegalStateException}; views it handed out to a visitor must not be used either. Closing a closed reader has no effect.
+	 */
+	public void close() {
+		if (closed) return;
+		closed = true;
+		peeked = null;
+		parser.release();
+	}
+	
+	private void expect(Token expected) {
+		Token t = peek();
+		if (t != expected) parser.jsonError("Expected " + expected + " but was " + t);
+	}
+	
+	private void push(int scope) {
+		if (depth == stack.length) {
+			int[] newStack = new int[depth * 2];
+			System.arraycopy(stack, 0, newStack, 0, depth);
+			stack = newStack;
+		}
+		stack[depth++] = scope;
+	}
+	
+	private Token doPeek() {
+		while (true) {
+			int c;
+			switch (stack[depth - 1]) {
+			case EMPTY_DOCUMENT:
+				stack[depth - 1] = NONEMPTY_DOCUMENT;
+				return valueToken(parser.nextSignificant());
+			case NONEMPTY_DOCUMENT:
+				return Token.END_DOCUMENT;
+			case ARRAY_EXPECT_VALUE:
+				c = parser.nextSignificant();
+				if (c == -1) return parser.jsonError("Array not closed");
+				if (c == ']') return Token.END_ARRAY;
+				if (c == ',') return parser.jsonError("Comma not expected here");
+				stack[depth - 1] = ARRAY_EXPECT_COMMA;
+				return valueToken(c);
+			case ARRAY_EXPECT_COMMA:
+				c = parser.nextSignificant();
+				if (c == -1) return parser.jsonError("Array not closed");
+				if (c == ']') return Token.END_ARRAY;
+				if (c != ',') return parser.jsonError("Comma expected here");
+				stack[depth - 1] = ARRAY_EXPECT_VALUE;
+				continue;
+			case OBJECT_EXPECT_NAME:
+				c = parser.nextSignificant();
+				if (c == -1) return parser.jsonError("Object not closed");
+				if (c == '}') return Token.END_OBJECT;
+				// JSON.parse skips stray commas and colons in objects, wherever no value is about to follow.
+				if (c == ',' || c == ':') continue;
+				if (c != '"' && !JSONParser.isMapKeyChar(c)) return parser.jsonError("Unexpected symbol in map key: " + (char) c);
+				stack[depth - 1] = OBJECT_EXPECT_VALUE;
+				peekedChar = c;
+				return Token.NAME;
+			case OBJECT_EXPECT_VALUE:
+				if (parser.nextSignificant() != ':') return parser.jsonError("Colon expected here");
+				do {
+					c = parser.nextSignificant();
+				} while (c == ',' || c == ':');
+				if (c == '}') return parser.jsonError("value expected here");
+				if (c == -1) return parser.jsonError("Object not closed");
+				stack[depth - 1] = OBJECT_EXPECT_COMMA;
+				return valueToken(c);
+			case OBJECT_EXPECT_COMMA:
+				c = parser.nextSignificant();
+				if (c == -1) return parser.jsonError("Object not closed");
+				if (c == '}') return Token.END_OBJECT;
+				if (c != ',') return parser.jsonError("Comma expected here");
+				stack[depth - 1] = OBJECT_EXPECT_NAME;
+				continue;
+			default:
+				throw new IllegalStateException();
+			}
+		}
+	}
+	
+	private Token valueToken(int c) {
+		peekedChar = c;
+		if (c == -1) return parser.jsonError("Incomplete json object");
+		if (c == '"') return Token.STRING;
+		if (c == '[') return Token.BEGIN_ARRAY;
+		if (c == '{') return Token.BEGIN_OBJECT;
+		if (c == 't' || c == 'f') return Token.BOOLEAN;
+		if (c == 'n') return Token.NULL;
+		if (c == '-' || (c >= '0' && c <= '9')) return Token.NUMBER;
+		return parser.jsonError("Invalid character - expected a string, array, object, 'true', 'false', 'null', or number.");
+	}
+}
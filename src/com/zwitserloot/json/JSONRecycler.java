@@ -0,0 +1,106 @@
+package com.zwitserloot.json;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A small pool of scratch objects, such as parse buffers and {@code StringBuilder}s, so that parsing and writing many small documents
+ * does not allocate them anew each time.
+ * 
+ * The pool is shared by all threads, and holds at most a few objects per core: it is a fixed array of slots, taken and filled with a
+ * compare-and-set, so it never blocks, and never grows with the number of threads (virtual threads included). When the pool is empty,
+ * {@link #acquire()} creates a new object; when it is full, {@link #release(Object)} drops the object for the garbage collector.
+ * <p>
+ * The contract: an object from {@code acquire()} belongs to the caller until it is passed to {@code release}, at most once, after which the
+ * caller must not use it, nor hand out anything that still refers to it. {@code release} resets the object, so {@code acquire} always
+ * returns it as good as new, but with the capacity it grew to. Objects that grew past a limit are not kept, so a single huge document
+ * does not pin its buffers in memory for good.
+ */
+abstract class JSONRecycler<T> {
+	private static final int SLOTS = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 4 - 1) << 1;
+	private static final int MAX_RETAINED_CHARS = 256 * 1024;
+	private static final int MAX_RETAINED_REFS = 1024;
+	
+	static final int BUFFER_SIZE = 8192;
+	
+	static final JSONRecycler<char[]> CHAR_BUFFERS = new JSONRecycler<char[]>() {
+		@Override char[] create() {
+			return new char[BUFFER_SIZE];
+		}
+	};
+	
+	static final JSONRecycler<byte[]> BYTE_BUFFERS = new JSONRecycler<byte[]>() {
+		@Override byte[] create() {
+			return new byte[BUFFER_SIZE];
+		}
+	};
+	
+	static final JSONRecycler<StringBuilder> STRING_BUILDERS = new JSONRecycler<StringBuilder>() {
+		@Override StringBuilder create() {
+			return new StringBuilder(256);
+		}
+		
+		@Override boolean reset(StringBuilder sb) {
+			if (sb.capacity() > MAX_RETAINED_CHARS) return false;
+			sb.setLength(0);
+			return true;
+		}
+	};
+	
+	static final JSONRecycler<IdentityHashMap<Object, Object>> IDENTITY_MAPS = new JSONRecycler<IdentityHashMap<Object, Object>>() {
+		@Override IdentityHashMap<Object, Object> create() {
+			return new IdentityHashMap<Object, Object>();
+		}
+		
+		@Override boolean reset(IdentityHashMap<Object, Object> map) {
+			// clear() keeps the table, which grew with the number of entries; don't keep one that was used for a huge document.
+			if (map.size() > MAX_RETAINED_REFS) return false;
+			map.clear();
+			return true;
+		}
+	};
+	
+	static final JSONRecycler<HashMap<String, byte[]>> KEY_CACHES = new JSONRecycler<HashMap<String, byte[]>>() {
+		@Override HashMap<String, byte[]> create() {
+			return new HashMap<String, byte[]>();
+		}
+		
+		@Override boolean reset(HashMap<String, byte[]> map) {
+			map.clear();
+			return true;
+		}
+	};
+	
+	private final AtomicReferenceArray<T> slots = new AtomicReferenceArray<T>(SLOTS);
+	
+	abstract T create();
+	
+	/**
+	 * Prepares {@code t} for reuse.
+	 * 
+	 * @return {@code false} if {@code t} should not be kept.
+	 */
+	boolean reset(T t) {
+		return true;
+	}
+	
+	T acquire() {
+		int start = (int) Thread.currentThread().getId();
+		for (int i = 0; i < SLOTS; i++) {
+			int slot = (start + i) & (SLOTS - 1);
+			T t = slots.get(slot);
+			if (t != null && slots.compareAndSet(slot, t, null)) return t;
+		}
+		return create();
+	}
+	
+	void release(T t) {
+		if (!reset(t)) return;
+		int start = (int) Thread.currentThread().getId();
+		for (int i = 0; i < SLOTS; i++) {
+			int slot = (start + i) & (SLOTS - 1);
+			if (slots.get(slot) == null && slots.compareAndSet(slot, null, t)) return;
+		}
+	}
+}
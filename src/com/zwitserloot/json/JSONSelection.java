@@ -0,0 +1,124 @@
+package com.zwitserloot.json;
+
+import java.util.Arrays;
+
+/**
+ * A set of paths into a document; when passed as an option to {@code JSON.parse}, only the parts of the document on those paths are built,
+ * and everything else is skipped without being decoded.
+ * 
+ * For example, <code>JSON.parse(input, JSONSelection.of("films/*&#47;name", "meta/version"))</code> returns a {@code JSON} object with the same shape as
+ * the full document, but containing only the {@code name} of every film and the {@code version} in {@code meta}. Skipping is a quick scan
+ * that only balances brackets and finds the end of each string, so it costs a fraction of building the tree for it.
+ * <p>
+ * A path is a list of map keys and list indices separated by slashes; {@code *} matches every key or index. The entire value found at the end
+ * of a path is kept, however large; the empty path selects the whole document. Keys cannot contain a slash, and a key that is just {@code *} cannot be
+ * selected by itself. Skipped elements of a list are replaced by {@code null}, so the elements that are kept stay at their index.
+ * A scalar where the selection expects a map or list is skipped.
+ * <p>
+ * The skipped parts of the document are checked less strictly than what is parsed: their brackets must balance, their strings must end,
+ * and they can't contain characters that never occur in JSON, but that is all. Their keys are not checked for duplicates.
+ */
+public final class JSONSelection extends JSONParseOption {
+	private final Node root;
+	private final String[] paths;
+	
+	private JSONSelection(Node root, String[] paths) {
+		this.root = root;
+		this.paths = paths;
+	}
+	
+	/**
+	 * @param paths The paths to keep, such as <code>films/*&#47;director/name</code>.
+	 * @return A selection of exactly those paths.
+	 * @throws IllegalArgumentException If a path contains an empty key (two slashes in a row, or a slash at the start or end).
+	 */
+	public static JSONSelection of(String... paths) {
+		Node root = new Node();
+		for (String path : paths) {
+			Node n = root;
+			if (path.length() > 0) for (String segment : path.split("/", -1)) {
+				if (segment.length() == 0) throw new IllegalArgumentException("Empty key in path: " + path);
+				n = n.add(segment);
+			}
+			n.all = true;
+		}
+		root.spreadWildcards();
+		return new JSONSelection(root, paths.clone());
+	}
+	
+	@Override void applyTo(JSONParser parser) {
+		parser.selection = root;
+	}
+	
+	@Override public String toString() {
+		return "JSONSelection" + Arrays.toString(paths);
+	}
+	
+	/**
+	 * A node in the tree of selected paths. If {@code all} is set, everything below it is selected; otherwise only the children.
+	 */
+	static final class Node {
+		boolean all;
+		private String[] names = new String[0];
+		private int[] indices = new int[0];
+		private Node[] nodes = new Node[0];
+		private Node any;
+		
+		/**
+		 * @return The selection for the value of key {@code name}, or {@code null} if it is not selected.
+		 */
+		Node child(CharSequence name) {
+			int len = name.length();
+			outer:
+			for (int i = 0; i < names.length; i++) {
+				String n = names[i];
+				if (n.length() != len) continue;
+				for (int j = 0; j < len; j++) if (n.charAt(j) != name.charAt(j)) continue outer;
+				return nodes[i];
+			}
+			return any;
+		}
+		
+		/**
+		 * @return The selection for the list element at {@code index}, or {@code null} if it is not selected.
+		 */
+		Node child(int index) {
+			for (int i = 0; i < indices.length; i++) if (indices[i] == index) return nodes[i];
+			return any;
+		}
+		
+		private Node add(String segment) {
+			if (segment.equals("*")) {
+				if (any == null) any = new Node();
+				return any;
+			}
+			for (int i = 0; i < names.length; i++) if (names[i].equals(segment)) return nodes[i];
+			
+			int n = names.length;
+			names = Arrays.copyOf(names, n + 1);
+			indices = Arrays.copyOf(indices, n + 1);
+			nodes = Arrays.copyOf(nodes, n + 1);
+			names[n] = segment;
+			indices[n] = segment.matches("0|[1-9][0-9]{0,8}") ? Integer.parseInt(segment) : -1;
+			return nodes[n] = new Node();
+		}
+		
+		/**
+		 * Adds everything below {@code other} to this node.
+		 */
+		private void merge(Node other) {
+			if (other.all) all = true;
+			for (int i = 0; i < other.names.length; i++) add(other.names[i]).merge(other.nodes[i]);
+			if (other.any != null) add("*").merge(other.any);
+		}
+		
+		/**
+		 * A key that is named explicitly is matched instead of {@code *}, so it must also select whatever {@code *} selects.
+		 */
+		private void spreadWildcards() {
+			if (any != null) for (Node n : nodes) n.merge(any);
+			for (Node n : nodes) n.spreadWildcards();
+			if (any != null) any.spreadWildcards();
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package com.zwitserloot.json;
+
+/**
+ * A bounded cache of strings, used by the parser to hand out the same {@code String} instance for every occurrence of a map key, instead of
+ * allocating a new one each time. Pass it as an option to {@code JSON.parse}: {@code JSON.parse(input, cache)}.
+ * 
+ * Documents that consist of many objects with the same keys, such as event streams and API responses, then hold a single copy of each key, and
+ * a key that is found in the cache costs no allocation at all. Optionally, short string values are cached as well, which pays off for values
+ * that come from a small set, such as statuses and other enum-like strings.
+ * <p>
+ * The cache is an open-addressed table with a fixed number of slots; once the slots near a string's hash are taken, a new string replaces
+ * an old one, so memory use never grows beyond the capacity. A single cache can be reused for many parses, which is where it helps most,
+ * and it may be shared by threads parsing concurrently; the hit and miss counts are then approximate.
+ */
+public final class JSONStringCache extends JSONParseOption {
+	private static final int MAX_PROBES = 4;
+	
+	private final String[] table;
+	private final int maxValueLength;
+	private long hits, misses;
+	
+	/**
+	 * Creates a cache for map keys with room for 1024 strings.
+	 */
+	public JSONStringCache() {
+		this(1024, 0);
+	}
+	
+	/**
+	 * @param capacity The number of strings the cache can hold; rounded up to a power of 2.
+	 * @param maxValueLength String values (not just map keys) of at most this many characters are cached too; {@code 0} to only cache map keys.
+	 */
+	public JSONStringCache(int capacity, int maxValueLength) {
+		if (capacity < 1 || capacity > 1 << 30) throw new IllegalArgumentException("capacity: " + capacity);
+		if (maxValueLength < 0) throw new IllegalArgumentException("maxValueLength: " + maxValueLength);
+		this.table = new String[Math.max(MAX_PROBES, Integer.highestOneBit(capacity - 1) << 1)];
+		this.maxValueLength = maxValueLength;
+	}
+	
+	@Override void applyTo(JSONParser parser) {
+		parser.stringCache = this;
+	}
+	
+	/**
+	 * @return {@code true} if string values of this length are cached; map keys always are.
+	 */
+	boolean cachesValue(int length) {
+		return length <= maxValueLength;
+	}
+	
+	/**
+	 * @return A string with the same contents as {@code chars}, from the cache if it is there; otherwise it is created and added.
+	 */
+	String get(CharSequence chars) {
+		int len = chars.length();
+		int hash = 0;
+		for (int i = 0; i < len; i++) hash = 31 * hash + chars.charAt(i);
+		
+		String[] table = this.table;
+		int mask = table.length - 1;
+		int home = (hash ^ (hash >>> 16)) & mask;
+		for (int probe = 0; probe < MAX_PROBES; probe++) {
+			int slot = (home + probe) & mask;
+			String s = table[slot];
+			if (s == null) {
+				home = slot;
+				break;
+			}
+			if (s.hashCode() == hash && contentEquals(s, chars, len)) {
+				hits++;
+				return s;
+			}
+		}
+		
+		misses++;
+		String s = chars.toString();
+		table[home] = s;
+		return s;
+	}
+	
+	private static boolean contentEquals(String s, CharSequence chars, int len) {
+		if (s.length() != len) return false;
+		for (int i = 0; i < len; i++) if (s.charAt(i) != chars.charAt(i)) return false;
+		return true;
+	}
+	
+	/**
+	 * @return The number of strings that were found in the cache.
+	 */
+	public long hits() {
+		return hits;
+	}
+	
+	/**
+	 * @return The number of strings that were not found in the cache, and had to be created.
+	 */
+	public long misses() {
+		return misses;
+	}
+	
+	/**
+	 * @return The fraction of lookups that were found in the cache, between 0 and 1; 0 if the cache has not been used yet.
+	 */
+	public double hitRate() {
+		long h = hits, total = h + misses;
+		return total == 0 ? 0 : (double) h / total;
+	}
+	
+	@Override public String toString() {
+		return String.format("JSONStringCache[%d slots, %d hits, %d misses, %.1f%% hit rate]", table.length, hits, misses, hitRate() * 100);
+	}
+}
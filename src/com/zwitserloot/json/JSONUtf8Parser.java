@@ -0,0 +1,393 @@
+package com.zwitserloot.json;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Tokenizes UTF-8 encoded bytes without decoding them to characters first. Everything outside of strings is ASCII and handled
+ * byte by byte; strings that are pure ASCII are turned into a {@code String} in one go, and only non-ASCII string contents
+ * are actually decoded.
+ * 
+ * Bytes are read through a fixed-size buffer from a {@code ByteBuffer}, {@code InputStream} or memory mapped file, or straight out of a {@code byte[]}.
+ * 
+ * The contents of strings, which make up most of a typical document, are scanned 8 bytes at a time: each {@code long} read from the buffer
+ * is checked for quotes, backslashes and non-ASCII bytes all at once with a few arithmetic operations ('SIMD within a register').
+ * Indentation is skipped 8 spaces at a time the same way.
+ */
+final class JSONUtf8Parser extends JSONParser {
+	private static final long ONES = 0x0101010101010101L;
+	private static final long LOW7 = 0x7F7F7F7F7F7F7F7FL;
+	private static final long HIGH = 0x8080808080808080L;
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	
+	private final InputStream in;
+	private ByteBuffer source;
+	private final FileChannel channel;
+	private final long chunkSize;
+	private long mapped = 0;
+	private final long mapEnd;
+	private final byte[] buf;
+	private int pos = 0;
+	private int limit = 0;
+	private long offset = 0;
+	private StringBuilder scratch;
+	private boolean released;
+	private final AsciiSlice slice = new AsciiSlice();
+	private final ByteBuffer words;
+	
+	/**
+	 * The array is used as the parse buffer directly; it is not copied, and must not be modified while parsing.
+	 */
+	JSONUtf8Parser(byte[] bytes, int offset, int length) {
+		this.in = null;
+		this.source = null;
+		this.channel = null;
+		this.chunkSize = 0;
+		this.mapEnd = 0;
+		this.buf = bytes;
+		this.pos = offset;
+		this.limit = offset + length;
+		this.offset = -offset;
+		this.words = ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	/**
+	 * Bytes from the buffer's position up to its limit are parsed; the buffer itself (including its position) is not modified.
+	 * Buffers backed by an accessible array are parsed in place, others are copied into the parse buffer a chunk at a time.
+	 */
+	JSONUtf8Parser(ByteBuffer source) {
+		this.in = null;
+		this.channel = null;
+		this.chunkSize = 0;
+		this.mapEnd = 0;
+		if (source.hasArray()) {
+			this.source = null;
+			this.buf = source.array();
+			this.pos = source.arrayOffset() + source.position();
+			this.limit = source.arrayOffset() + source.limit();
+			this.offset = -pos;
+		} else {
+			this.source = source.duplicate();
+			this.buf = JSONRecycler.BYTE_BUFFERS.acquire();
+		}
+		this.words = ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	/**
+	 * The stream is consumed in chunks of a fixed size; it is not closed by the parser.
+	 */
+	JSONUtf8Parser(InputStream in) {
+		this.in = in;
+		this.source = null;
+		this.channel = null;
+		this.chunkSize = 0;
+		this.mapEnd = 0;
+		this.buf = JSONRecycler.BYTE_BUFFERS.acquire();
+		this.words = ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	/**
+	 * The file is memory mapped {@code chunkSize} bytes at a time (a single mapping cannot exceed 2GB), and each mapping is read through
+	 * the parse buffer, so the file's contents never end up on the heap. The channel is not closed by the parser.
+	 */
+	JSONUtf8Parser(FileChannel channel, long chunkSize) {
+		this(channel, 0, Long.MAX_VALUE, chunkSize);
+	}
+	
+	/**
+	 * As {@link #JSONUtf8Parser(FileChannel, long)}, but only the bytes of the file from {@code start} up to {@code end} are parsed;
+	 * {@link #position()} counts from the start of the file.
+	 */
+	JSONUtf8Parser(FileChannel channel, long start, long end, long chunkSize) {
+		this.in = null;
+		this.source = null;
+		this.channel = channel;
+		this.chunkSize = chunkSize;
+		this.mapped = start;
+		this.mapEnd = end;
+		this.offset = start;
+		this.buf = JSONRecycler.BYTE_BUFFERS.acquire();
+		this.words = ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	/**
+	 * Shifts {@link #position()} by {@code start}, for when the input is part of a larger document that starts {@code start} bytes earlier.
+	 */
+	JSONUtf8Parser countingFrom(long start) {
+		offset += start;
+		return this;
+	}
+	
+	/**
+	 * Refills the buffer. Bytes that were already consumed are discarded; a token that straddles the
+	 * end of the buffer must first save what it has so far into {@link #scratch()}.
+	 */
+	private boolean fill() {
+		offset += limit;
+		if (maxDocumentLength != Long.MAX_VALUE) checkDocumentLength(offset);
+		pos = 0;
+		limit = 0;
+		if (channel != null && (source == null || !source.hasRemaining())) mapNextChunk();
+		if (source != null) {
+			int n = Math.min(buf.length, source.remaining());
+			if (n == 0) return false;
+			source.get(buf, 0, n);
+			limit = n;
+			return true;
+		}
+		
+		if (in == null) return false;
+		int r;
+		try {
+			do {
+				r = in.read(buf, 0, buf.length);
+			} while (r == 0);
+		} catch (IOException e) {
+			throw new JSONException("I/O error while reading json input(" + offset + ")", e);
+		}
+		if (r == -1) return false;
+		limit = r;
+		return true;
+	}
+	
+	private void mapNextChunk() {
+		try {
+			long size = Math.min(chunkSize, Math.min(mapEnd, channel.size()) - mapped);
+			if (size <= 0) return;
+			source = channel.map(FileChannel.MapMode.READ_ONLY, mapped, size);
+			mapped += size;
+		} catch (IOException e) {
+			throw new JSONException("I/O error while mapping json input(" + offset + ")", e);
+		}
+	}
+	
+	int peek() {
+		if (pos == limit && !fill()) return -1;
+		return buf[pos] & 0xFF;
+	}
+	
+	int read() {
+		if (pos == limit && !fill()) return -1;
+		return buf[pos++] & 0xFF;
+	}
+	
+	private StringBuilder scratch() {
+		if (scratch == null) scratch = JSONRecycler.STRING_BUILDERS.acquire();
+		else scratch.setLength(0);
+		return scratch;
+	}
+	
+	@Override void release() {
+		if (released) return;
+		released = true;
+		if (in != null || channel != null || source != null) JSONRecycler.BYTE_BUFFERS.release(buf);
+		if (scratch != null) JSONRecycler.STRING_BUILDERS.release(scratch);
+		scratch = null;
+	}
+	
+	int nextSignificant() {
+		while (true) {
+			if (pos == limit && !fill()) return -1;
+			int c = buf[pos++] & 0xFF;
+			if (c <= ' ' && isWhitespace(c)) {
+				if (c == '\n') {
+					while (pos + 8 <= limit && words.getLong(pos) == ' ' * ONES) pos += 8;
+				}
+				continue;
+			}
+			if (c == '#' || (c == '/' && peek() == '/')) {
+				skipLine();
+				continue;
+			}
+			return c;
+		}
+	}
+	
+	/**
+	 * No byte of a multi-byte UTF-8 sequence is ever {@code '\n'}, so comments can be skipped without decoding them.
+	 */
+	private void skipLine() {
+		while (true) {
+			if (pos == limit && !fill()) return;
+			if (buf[pos++] == '\n') return;
+		}
+	}
+	
+	long position() {
+		return offset + pos;
+	}
+	
+	boolean readLiteral(String rest) {
+		int len = rest.length();
+		if (limit - pos >= len) {
+			for (int i = 0; i < len; i++) if (buf[pos + i] != rest.charAt(i)) return false;
+			pos += len;
+			return true;
+		}
+		
+		for (int i = 0; i < len; i++) {
+			if (read() != rest.charAt(i)) return false;
+		}
+		return true;
+	}
+	
+	private void appendAscii(StringBuilder out, int from, int to) {
+		for (int i = from; i < to; i++) out.append((char) buf[i]);
+	}
+	
+	CharSequence parseMapKeyView(int first) {
+		if (!isMapKeyChar(first)) return jsonError("Unexpected symbol in map key: " + (char) first);
+		int start = pos - 1;
+		
+		StringBuilder out = null;
+		while (true) {
+			if (pos == limit) {
+				if (out == null) out = scratch();
+				appendAscii(out, start, pos);
+				if (!fill()) return jsonError("Expected colon instead of end-of-stream.");
+				start = pos;
+			}
+			byte c = buf[pos];
+			if (c == ':' || isWhitespace(c)) {
+				if (out == null) return slice.of(start, pos);
+				appendAscii(out, start, pos);
+				return out;
+			}
+			pos++;
+			if (!isMapKeyChar(c)) return jsonError("Unexpected symbol in map key: " + (char) (c & 0xFF));
+		}
+	}
+	
+	/**
+	 * Finds the first quote, backslash or non-ASCII byte in {@code buf} from {@code from} up to {@code to}, examining 8 bytes at a time.
+	 * 
+	 * @return The index of that byte, or {@code to} if there is none.
+	 */
+	private int scanString(int from, int to) {
+		int i = from;
+		for (; i + 8 <= to; i += 8) {
+			long w = words.getLong(i);
+			long q = w ^ ('"' * ONES);
+			long b = w ^ ('\\' * ONES);
+			// The high bit of a byte in ((x & LOW7) + LOW7) | x is set if that byte of x is not zero; no carries cross into the next byte.
+			long special = (~((((q & LOW7) + LOW7) | q) & (((b & LOW7) + LOW7) | b)) | w) & HIGH;
+			if (special != 0) return i + (Long.numberOfTrailingZeros(special) >>> 3);
+		}
+		for (; i < to; i++) {
+			byte c = buf[i];
+			if (c == '"' || c == '\\' || c < 0) return i;
+		}
+		return to;
+	}
+	
+	boolean skipString() {
+		boolean verbatim = true;
+		while (true) {
+			if (pos == limit && !fill()) return jsonError("String not closed");
+			pos = scanString(pos, limit);
+			if (pos == limit) continue;
+			byte c = buf[pos++];
+			if (c == '"') return verbatim;
+			verbatim = false;
+			if (c == '\\' && read() == -1) jsonError("Dangling string escape");
+		}
+	}
+	
+	/**
+	 * ASCII strings without escapes that fit in the buffer are returned as a view of it;
+	 * only escapes, non-ASCII characters and strings that straddle a buffer refill go through the scratch buffer.
+	 */
+	CharSequence parseStringView() {
+		StringBuilder out = null;
+		int start = pos;
+		
+		while (true) {
+			if (pos == limit) {
+				if (out == null) out = scratch();
+				appendAscii(out, start, pos);
+				if (!fill()) return jsonError("String not closed");
+				start = pos;
+			}
+			pos = scanString(pos, limit);
+			if (pos == limit) continue;
+			byte c = buf[pos++];
+			if (c == '"') {
+				if (out == null) return slice.of(start, pos - 1);
+				appendAscii(out, start, pos - 1);
+				return out;
+			}
+			if (c == '\\' || c < 0) {
+				if (out == null) out = scratch();
+				appendAscii(out, start, pos - 1);
+				if (c == '\\') parseEscape(out);
+				else decodeUtf8(c & 0xFF, out);
+				start = pos;
+			}
+		}
+	}
+	
+	/**
+	 * Decodes the multi-byte sequence that starts with {@code lead}, rejecting overlong encodings, surrogates and anything beyond U+10FFFF.
+	 */
+	private void decodeUtf8(int lead, StringBuilder out) {
+		int cp, len, min;
+		if (lead >= 0xC2 && lead <= 0xDF) {
+			cp = lead & 0x1F;
+			len = 1;
+			min = 0x80;
+		} else if (lead >= 0xE0 && lead <= 0xEF) {
+			cp = lead & 0x0F;
+			len = 2;
+			min = 0x800;
+		} else if (lead >= 0xF0 && lead <= 0xF4) {
+			cp = lead & 0x07;
+			len = 3;
+			min = 0x10000;
+		} else {
+			jsonError("Invalid UTF-8 byte: 0x" + Integer.toHexString(lead));
+			return;
+		}
+		
+		for (int i = 0; i < len; i++) {
+			int c = read();
+			if (c == -1 || (c & 0xC0) != 0x80) jsonError("Truncated UTF-8 sequence");
+			cp = (cp << 6) | (c & 0x3F);
+		}
+		
+		if (cp < min || cp > 0x10FFFF || (cp >= 0xD800 && cp <= 0xDFFF)) jsonError("Invalid UTF-8 sequence");
+		out.appendCodePoint(cp);
+	}
+	
+	/**
+	 * A view of part of the parse buffer, which holds only ASCII there; turning it into a {@code String} is a straight copy.
+	 */
+	private final class AsciiSlice implements CharSequence {
+		private int start, end;
+		
+		AsciiSlice of(int start, int end) {
+			this.start = start;
+			this.end = end;
+			return this;
+		}
+		
+		public int length() {
+			return end - start;
+		}
+		
+		public char charAt(int index) {
+			return (char) buf[start + index];
+		}
+		
+		public CharSequence subSequence(int from, int to) {
+			return new String(buf, start + from, to - from, ISO_8859_1);
+		}
+		
+		@Override public String toString() {
+			return new String(buf, start, end - start, ISO_8859_1);
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package com.zwitserloot.json;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ * Receives the contents of a JSON document as a series of callbacks, as an alternative to building a {@code JSON} tree.
+ * 
+ * Use {@link JSON#parse(CharSequence, JSONVisitor)} or {@link JSONReader#visitValue(JSONVisitor)} to drive a visitor. Inside an object,
+ * each value is preceded by a call to {@link #key(CharSequence)}.
+ * <p>
+ * The {@code CharSequence} passed to {@code key} and {@code value} is a view into the parser's buffers which is reused for every
+ * string; it is only valid for the duration of the call. Call {@code toString()} on it if you need to keep it.
+ */
+public interface JSONVisitor {
+	void startObject();
+	
+	void endObject();
+	
+	void startArray();
+	
+	void endArray();
+	
+	/**
+	 * @param key The name of the next entry in the current object; only valid for the duration of this call.
+	 */
+	void key(CharSequence key);
+	
+	/**
+	 * @param value A string value; only valid for the duration of this call.
+	 */
+	void value(CharSequence value);
+	
+	/**
+	 * Called for numbers written without a fraction or exponent, that fit in a long.
+	 */
+	void value(long value);
+	
+	/**
+	 * Called for numbers written with a fraction or exponent.
+	 */
+	void value(double value);
+	
+	/**
+	 * Called for numbers written without a fraction or exponent, that are too large for a long.
+	 */
+	void value(BigInteger value);
+	
+	/**
+	 * Called for numbers written with a fraction or exponent, that are too large for a double; {@code JSON.parse} keeps these as a
+	 * {@code BigDecimal} too.
+	 */
+	void value(BigDecimal value);
+	
+	void value(boolean value);
+	
+	void nullValue();
+}
@@ -2,21 +2,45 @@ package com.zwitserloot.json;
 
 import static com.zwitserloot.json.JSONParser.*;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
 import java.lang.reflect.Array;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-class JSONWriter {
+/**
+ * Turns maps, lists and basic objects into JSON. The tree is walked here; the output goes through one of two back ends:
+ * <ul>
+ * <li>{@link Chars} writes into a {@code StringBuilder}; or, if there is a target, through it: whenever the builder holds {@link #FLUSH_SIZE}
+ *     characters, they are passed on to the target and the builder is emptied.</li>
+ * <li>{@link Utf8} encodes straight into a {@code byte[]}, which is either passed on to an {@code OutputStream} or {@code ByteBuffer} whenever
+ *     it is full, or grown to hold the entire document. It keeps the encoded form of short map keys, so that keys repeated in every object of
+ *     an array are escaped and encoded only once.</li>
+ * </ul>
+ * Either back end can also write canonical JSON (RFC 8785), for hashing and comparing documents. The memory used for streaming does not
+ * depend on the size of the document. Nothing is ever taken back once written, so separators are written before each element, rather than
+ * after each element and then removed.
+ */
+abstract class JSONWriter {
 	private static final Object MARKER = new Object();
 	private static final Set<Class<? extends Number>> VALID_NUMBER_TYPES;
+	static final int FLUSH_SIZE = JSONRecycler.BUFFER_SIZE;
 	
 	static {
 		HashSet<Class<? extends Number>> set = new HashSet<Class<? extends Number>>();
@@ -28,205 +52,693 @@ class JSONWriter {
 		set.add(Double.class);
 		set.add(BigInteger.class);
 		set.add(BigDecimal.class);
+		set.add(JSONRawNumber.class);
 		VALID_NUMBER_TYPES = Collections.unmodifiableSet(set);
 	}
 	
-	private JSONWriter() {
-		//Utility class
+	/**
+	 * For each ASCII character: 0 if it is written as is, otherwise the character to write after a backslash to escape it ({@code u} for a
+	 * <code>&#92;u</code> escape).
+	 */
+	static final char[] ESCAPES = new char[128];
+	
+	/**
+	 * As {@link #ESCAPES}, but only the characters JSON requires to be escaped, as RFC 8785 prescribes for canonical JSON.
+	 */
+	static final char[] CANONICAL_ESCAPES = new char[128];
+	static final char[] HEX = "0123456789abcdef".toCharArray();
+	
+	static {
+		for (int c = 0; c < 0x20; c++) ESCAPES[c] = 'u';
+		ESCAPES['\n'] = 'n';
+		ESCAPES['\r'] = 'r';
+		ESCAPES['\b'] = 'b';
+		ESCAPES['\f'] = 'f';
+		ESCAPES['\t'] = 't';
+		ESCAPES['"'] = '"';
+		ESCAPES['\\'] = '\\';
+		System.arraycopy(ESCAPES, 0, CANONICAL_ESCAPES, 0, 128);
+		ESCAPES[0x7F] = 'u';
+	}
+	
+	private final IdentityHashMap<Object, Object> refs = JSONRecycler.IDENTITY_MAPS.acquire();
+	final boolean escapeNonAscii;
+	final char[] escapes;
+	private final boolean canonical;
+	
+	/**
+	 * @param canonical If {@code true}, write canonical JSON: minified, keys in order, numbers as ECMAScript writes them, and only the escapes
+	 *     JSON requires; {@code policy} is ignored.
+	 */
+	JSONWriter(JSONEscapePolicy policy, boolean canonical) {
+		this.canonical = canonical;
+		this.escapeNonAscii = !canonical && policy == JSONEscapePolicy.ASCII;
+		this.escapes = canonical ? CANONICAL_ESCAPES : ESCAPES;
+	}
+	
+	/**
+	 * @return {@code true} if {@code s.charAt(i)} is a surrogate that is not part of a pair, and so has to be escaped.
+	 */
+	static boolean isUnpairedSurrogate(String s, int i) {
+		char c = s.charAt(i);
+		if (Character.isHighSurrogate(c)) return i + 1 == s.length() || !Character.isLowSurrogate(s.charAt(i + 1));
+		if (Character.isLowSurrogate(c)) return i == 0 || !Character.isHighSurrogate(s.charAt(i - 1));
+		return false;
+	}
+	
+	/**
+	 * Appends {@code o} as JSON to {@code sb}.
+	 * 
+	 * @param indent {@code Integer.MIN_VALUE} for minified JSON, otherwise the indent level of pretty printed JSON.
+	 * @param policy Which characters to escape in strings.
+	 */
+	static void toJSON(StringBuilder sb, Object o, int indent, JSONEscapePolicy policy) {
+		Chars writer = new Chars(sb, null, policy, false);
+		try {
+			writer.write(o, indent);
+		} catch (IOException e) {
+			throw new IllegalStateException("Writing to a StringBuilder can't fail", e);
+		} finally {
+			writer.release();
+		}
+	}
+	
+	/**
+	 * Writes {@code o} as JSON to {@code target}, a chunk of at most about {@link #FLUSH_SIZE} characters at a time; see {@link #toJSON(StringBuilder, Object, int, JSONEscapePolicy)}.
+	 */
+	static void writeTo(Appendable target, Object o, int indent, JSONEscapePolicy policy) throws IOException {
+		StringBuilder sb = JSONRecycler.STRING_BUILDERS.acquire();
+		Chars writer = new Chars(sb, target, policy, false);
+		try {
+			writer.writeDocument(o, indent);
+		} finally {
+			writer.release();
+			JSONRecycler.STRING_BUILDERS.release(sb);
+		}
+	}
+	
+	/**
+	 * Writes {@code o} as UTF-8 encoded JSON to {@code target}, a chunk of {@link #FLUSH_SIZE} bytes at a time.
+	 */
+	static void writeTo(OutputStream target, Object o, int indent, JSONEscapePolicy policy) throws IOException {
+		Utf8 writer = new Utf8(target, null, policy, false);
+		try {
+			writer.writeDocument(o, indent);
+		} finally {
+			writer.release();
+		}
 	}
 	
-	private static void preIndent(StringBuilder sb, int indent) {
-		for (int i = 0; i < indent; i++) sb.append("  ");
+	/**
+	 * Writes {@code o} as UTF-8 encoded JSON into {@code target}, from its position onwards.
+	 * 
+	 * @throws java.nio.BufferOverflowException If the JSON does not fit in the remaining space of {@code target}.
+	 */
+	static void writeTo(ByteBuffer target, Object o, int indent, JSONEscapePolicy policy) {
+		Utf8 writer = new Utf8(null, target, policy, false);
+		try {
+			writer.writeDocument(o, indent);
+		} catch (IOException e) {
+			throw new IllegalStateException("Writing to a ByteBuffer can't fail", e);
+		} finally {
+			writer.release();
+		}
 	}
 	
-	static void toJSON(StringBuilder sb, String s, int indent) {
-		preIndent(sb, indent);
+	/**
+	 * @return {@code o} as UTF-8 encoded JSON.
+	 */
+	static byte[] toBytes(Object o, int indent, JSONEscapePolicy policy) {
+		Utf8 writer = new Utf8(null, null, policy, false);
+		try {
+			writer.writeDocument(o, indent);
+			return Arrays.copyOf(writer.buf, writer.pos);
+		} catch (IOException e) {
+			throw new IllegalStateException("Writing to a byte array can't fail", e);
+		} finally {
+			writer.release();
+		}
+	}
+	
+	/**
+	 * Appends {@code o} as canonical JSON to {@code sb}; see {@link #JSONWriter(JSONEscapePolicy, boolean)}.
+	 */
+	static void toCanonicalJSON(StringBuilder sb, Object o) {
+		Chars writer = new Chars(sb, null, JSONEscapePolicy.UNICODE, true);
+		try {
+			writer.write(o, Integer.MIN_VALUE);
+		} catch (IOException e) {
+			throw new IllegalStateException("Writing to a StringBuilder can't fail", e);
+		} finally {
+			writer.release();
+		}
+	}
+	
+	/**
+	 * Feeds {@code o} as UTF-8 encoded canonical JSON to {@code digest}, a chunk of {@link #FLUSH_SIZE} bytes at a time.
+	 */
+	static void digestCanonicalJSON(final MessageDigest digest, Object o) {
+		OutputStream out = new OutputStream() {
+			@Override public void write(int b) {
+				digest.update((byte) b);
+			}
+			
+			@Override public void write(byte[] b, int off, int len) {
+				digest.update(b, off, len);
+			}
+		};
+		Utf8 writer = new Utf8(out, null, JSONEscapePolicy.UNICODE, true);
+		try {
+			writer.writeDocument(o, Integer.MIN_VALUE);
+		} catch (IOException e) {
+			throw new IllegalStateException("Updating a MessageDigest can't fail", e);
+		} finally {
+			writer.release();
+		}
+	}
+	
+	/**
+	 * Formats {@code d} as ECMAScript's {@code Number.prototype.toString} does, which is how RFC 8785 writes numbers: the shortest decimal that
+	 * reads back as {@code d}, in plain notation from 1e-6 up to 1e21, and in exponential notation ({@code 1e+21}, {@code 1.5e-7}) outside of that.
+	 */
+	static String canonicalNumber(double d) {
+		if (Double.isNaN(d) || Double.isInfinite(d)) throw new JSONException("Not a JSON number: " + d);
+		if (d == 0) return "0";
+		if (d == (long) d && d < MAXIMUM_PRECISION_DOUBLE && d > -MAXIMUM_PRECISION_DOUBLE) return Long.toString((long) d);
 		
-		if (s == null) {
-			sb.append("null");
-			return;
+		// Double.toString always reads back as d, but is not always as short as it can be, nor the closest of its length, so round the exact value instead.
+		BigDecimal exact = new BigDecimal(d);
+		String shortest = Double.toString(d);
+		int precision = 0;
+		for (int i = 0; i < shortest.length() && shortest.charAt(i) != 'E'; i++) {
+			char c = shortest.charAt(i);
+			if (c >= '1' && c <= '9' || c == '0' && precision > 0) precision++;
+		}
+		BigDecimal digits = exact.round(new MathContext(precision, RoundingMode.HALF_EVEN));
+		while (precision > 1) {
+			BigDecimal shorter = exact.round(new MathContext(precision - 1, RoundingMode.HALF_EVEN));
+			if (shorter.doubleValue() != d) break;
+			digits = shorter;
+			precision--;
 		}
 		
-		sb.append('"');
-		for (int i = 0; i < s.length(); i++) {
-			char c = s.charAt(i);
-			if (c == '\n') sb.append("\\n");
-			else if (c == '\r') sb.append("\\r");
-			else if (c == '\b') sb.append("\\b");
-			else if (c == '\f') sb.append("\\f");
-			else if (c == '\t') sb.append("\\t");
-			else if (c == '"') sb.append("\\\"");
-			else if (c == '\\') sb.append("\\\\");
-			else if (c < 0x20 || c > 126) {
-				sb.append(String.format("\\" + "u%04x", (int)c));
-			} else sb.append(c);
+		digits = digits.stripTrailingZeros();
+		String unscaled = digits.unscaledValue().abs().toString();
+		int k = unscaled.length();
+		int n = k - digits.scale();
+		StringBuilder sb = new StringBuilder(k + 8);
+		if (d < 0) sb.append('-');
+		if (k <= n && n <= 21) {
+			sb.append(unscaled);
+			for (int i = k; i < n; i++) sb.append('0');
+		} else if (0 < n && n <= 21) {
+			sb.append(unscaled, 0, n).append('.').append(unscaled, n, k);
+		} else if (-6 < n && n <= 0) {
+			sb.append("0.");
+			for (int i = n; i < 0; i++) sb.append('0');
+			sb.append(unscaled);
+		} else {
+			sb.append(unscaled.charAt(0));
+			if (k > 1) sb.append('.').append(unscaled, 1, k);
+			sb.append('e').append(n - 1 < 0 ? '-' : '+').append(Math.abs(n - 1));
 		}
-		sb.append('"');
+		return sb.toString();
+	}
+	
+	/**
+	 * Writes {@code o}, followed by a newline if it is a pretty printed map or list (as {@code JSON.prettyPrint} does), and flushes.
+	 */
+	void writeDocument(Object o, int indent) throws IOException {
+		write(o, indent);
+		if (indent != Integer.MIN_VALUE && (o instanceof Map<?, ?> || o instanceof List<?>)) raw('\n');
+		flush();
 	}
 	
-	static void toJSON(StringBuilder sb, Number i, int indent) {
-		preIndent(sb, indent);
+	/**
+	 * Appends an ASCII character.
+	 */
+	abstract void raw(char c) throws IOException;
+	
+	/**
+	 * Appends a string of ASCII characters.
+	 */
+	abstract void raw(String s) throws IOException;
+	
+	abstract void raw(long v) throws IOException;
+	
+	/**
+	 * Appends {@code s} quoted and escaped.
+	 */
+	abstract void string(String s) throws IOException;
+	
+	/**
+	 * Appends a map key; the same as {@link #string(String)}, but back ends may cache the result.
+	 */
+	void key(String s) throws IOException {
+		string(s);
+	}
+	
+	/**
+	 * Called between elements; passes the output on to the target if enough of it has been buffered.
+	 */
+	abstract void flushIfFull() throws IOException;
+	
+	/**
+	 * Passes everything buffered on to the target, if there is one.
+	 */
+	abstract void flush() throws IOException;
+	
+	void release() {
+		JSONRecycler.IDENTITY_MAPS.release(refs);
+	}
+	
+	private void preIndent(int indent) throws IOException {
+		for (int i = 0; i < indent; i++) raw("  ");
+	}
+	
+	private void write(Number i, int indent) throws IOException {
+		if (canonical) {
+			writeCanonical(i);
+			return;
+		}
 		
-		if (i == null) {
-			sb.append("null");
+		preIndent(indent);
+		
+		if (i instanceof JSONRawNumber) {
+			raw(i.toString());
 			return;
 		}
 		
 		if (i instanceof Long) {
-			long v = ((Long) i).longValue();
-			if (v >= MAXIMUM_PRECISION_DOUBLE || v < -MAXIMUM_PRECISION_DOUBLE) {
-				toJSON(sb, String.valueOf(v), indent);
-			} else {
-				sb.append(i);
-			}
+			number(((Long) i).longValue());
 			return;
 		}
 		
 		if (i instanceof Short || i instanceof Byte || i instanceof Integer) {
-			sb.append(i);
+			raw(i.longValue());
 			return;
 		}
 		
-		if (i instanceof Float || i instanceof Double) {
+		if (i instanceof Double) {
+			number(i.doubleValue());
+			return;
+		}
+		
+		if (i instanceof Float) {
 			long v = i.longValue();
-			double d = i.doubleValue();
-			if (v == d) {
-				sb.append(v);
+			if (v == i.doubleValue()) {
+				raw(v);
 			} else {
-				sb.append(i);
+				raw(i.toString());
 			}
 			return;
 		}
 		
-		toJSON(sb, String.valueOf(i), indent);
+		string(String.valueOf(i));
 	}
 	
-	static void toJSON(StringBuilder sb, Character i, int indent) {
-		preIndent(sb, indent);
-		
-		if (i == null) {
-			sb.append("null");
-			return;
+	/**
+	 * Writes {@code v} as a {@code Long} is written: as a string if a double can't hold it exactly, as most JSON readers would lose precision.
+	 */
+	void number(long v) throws IOException {
+		if (v >= MAXIMUM_PRECISION_DOUBLE || v < -MAXIMUM_PRECISION_DOUBLE) {
+			string(String.valueOf(v));
+		} else {
+			raw(v);
 		}
-		
-		toJSON(sb, new String(new char[] {i}), indent);
 	}
 	
-	static void toJSON(StringBuilder sb, Boolean i, int indent) {
-		preIndent(sb, indent);
-		
-		if (i == null) {
-			sb.append("null");
-			return;
+	/**
+	 * Writes {@code d} as a {@code Double} is written: without a fraction if it is integral.
+	 */
+	void number(double d) throws IOException {
+		long v = (long) d;
+		if (v == d) {
+			raw(v);
+		} else {
+			raw(Double.toString(d));
 		}
-		
-		sb.append(i ? "true" : "false");
 	}
 	
-	static void toJSON(StringBuilder sb, Object o, int indent) {
-		toJSON0(sb, o, indent, new IdentityHashMap<Object, Object>());
+	/**
+	 * Writes numbers as {@code JSON.parse(toJSON())} would return them, formatted by {@link #canonicalNumber(double)}, so that canonical JSON
+	 * only depends on the values in a document, not on how it was built.
+	 */
+	private void writeCanonical(Number i) throws IOException {
+		if (i instanceof JSONRawNumber) {
+			JSONParser parser = new JSONCharParser(i.toString());
+			try {
+				write(parser.parseObject(), Integer.MIN_VALUE);
+			} finally {
+				parser.release();
+			}
+		} else if (i instanceof Long) {
+			number(i.longValue());
+		} else if (i instanceof Short || i instanceof Byte || i instanceof Integer) {
+			raw(i.longValue());
+		} else if (i instanceof Float) {
+			raw(canonicalNumber(Double.parseDouble(i.toString())));
+		} else if (i instanceof Double) {
+			raw(canonicalNumber(i.doubleValue()));
+		} else {
+			string(String.valueOf(i));
+		}
 	}
 	
-	private static void toJSON0(StringBuilder sb, Object o, int indent, IdentityHashMap<Object, Object> refs) {
+	void write(Object o, int indent) throws IOException {
 		if (o == JSONParser.NULL) {
-			preIndent(sb, indent);
-			sb.append("null");
+			preIndent(indent);
+			raw("null");
 			return;
 		}
 		
-		if (o instanceof Map<?, ?>) toJSON0(sb, (Map<?, ?>) o, indent, refs);
-		else if (o instanceof Collection<?>) toJSON0(sb, (Collection<?>) o, indent, refs);
-		else if (o instanceof String) toJSON(sb, (String) o, indent);
-		else if (o instanceof Character) toJSON(sb, (Character) o, indent);
-		else if (o instanceof Boolean) toJSON(sb, (Boolean) o, indent);
-		else if (o.getClass().isArray()) {
+		if (o instanceof Map<?, ?>) write((Map<?, ?>) o, indent);
+		else if (o instanceof Collection<?>) write((Collection<?>) o, indent);
+		else if (o instanceof String) {
+			preIndent(indent);
+			string((String) o);
+		} else if (o instanceof Character) {
+			preIndent(indent);
+			string(String.valueOf(o));
+		} else if (o instanceof Boolean) {
+			preIndent(indent);
+			raw(((Boolean) o).booleanValue() ? "true" : "false");
+		} else if (o.getClass().isArray()) {
 			if (refs.put(o, MARKER) != null) throw new JSONException(
 					"Circular references not supported (eg: An array containing itself)");
 			int size = Array.getLength(o);
 			List<Object> list = new ArrayList<Object>();
 			for (int i = 0; i < size; i++) list.add(Array.get(o, i));
-			toJSON0(sb, list, indent, refs);
-		} else if (VALID_NUMBER_TYPES.contains(o.getClass())) toJSON(sb, (Number) o, indent);
+			write(list, indent);
+			refs.remove(o);
+		} else if (VALID_NUMBER_TYPES.contains(o.getClass())) write((Number) o, indent);
 		else throw new JSONException("Only basic objects can be turned into JSON: " + o.getClass());
 	}
 	
-	private static void toJSON0(StringBuilder sb, Map<?, ?> in, int indent, IdentityHashMap<Object, Object> refs) {
-		preIndent(sb, indent);
+	private void write(Map<?, ?> in, int indent) throws IOException {
+		preIndent(indent);
 		
-		if (in == null) {
-			sb.append("null");
+		if (in.isEmpty()) {
+			raw("{}");
 			return;
 		}
 		
 		if (refs.put(in, MARKER) != null) throw new JSONException(
 				"Circular references not supported (eg: A map containing itself)");
 		
-		if (in.isEmpty()) {
-			sb.append("{}");
-			return;
-		}
-		
-		sb.append('{');
-		if (indent != Integer.MIN_VALUE) sb.append('\n');
+		raw('{');
 		int elemIndent = indent == Integer.MIN_VALUE ? Integer.MIN_VALUE : ((indent < 0 ? -indent : indent) + 1);
 		
-		for (Map.Entry<?, ?> e : in.entrySet()) {
+		boolean first = true;
+		for (Map.Entry<?, ?> e : canonical ? sortedEntries(in) : in.entrySet()) {
 			if (!(e.getKey() instanceof String)) throw new JSONException(
 					"Only Strings allowed as keys in maps");
-			toJSON(sb, e.getKey().toString(), elemIndent);
-			sb.append(elemIndent == Integer.MIN_VALUE ? ":" : ": ");
-			toJSON0(sb, e.getValue(), -elemIndent, refs);
-			sb.append(elemIndent == Integer.MIN_VALUE ? "," : ",\n");
+			if (elemIndent == Integer.MIN_VALUE) {
+				if (!first) raw(',');
+			} else {
+				raw(first ? "\n" : ",\n");
+			}
+			first = false;
+			preIndent(elemIndent);
+			key((String) e.getKey());
+			raw(elemIndent == Integer.MIN_VALUE ? ":" : ": ");
+			write(e.getValue(), -elemIndent);
+			flushIfFull();
 		}
 		
-		if (elemIndent == Integer.MIN_VALUE) {
-			sb.setLength(sb.length() - 1);
-			sb.append('}');
-			return;
+		if (elemIndent != Integer.MIN_VALUE) {
+			raw('\n');
+			preIndent(indent < 0 ? -indent : indent);
+		}
+		raw('}');
+		refs.remove(in);
+	}
+	
+	/**
+	 * @return The entries of {@code in}, in the order of their keys as UTF-16 code units (which is {@code String.compareTo}), as RFC 8785 prescribes.
+	 */
+	private static List<Map.Entry<?, ?>> sortedEntries(Map<?, ?> in) {
+		List<Map.Entry<?, ?>> entries = new ArrayList<Map.Entry<?, ?>>(in.entrySet());
+		for (Map.Entry<?, ?> e : entries) if (!(e.getKey() instanceof String)) throw new JSONException(
+				"Only Strings allowed as keys in maps");
+		Collections.sort(entries, new Comparator<Map.Entry<?, ?>>() {
+			public int compare(Map.Entry<?, ?> a, Map.Entry<?, ?> b) {
+				return ((String) a.getKey()).compareTo((String) b.getKey());
+			}
+		});
+		return entries;
+	}
+	
+	/**
+	 * Iterates over {@code in} exactly once, and asks nothing else of it, so that lazy lists ({@link JSONLazyList}) are written straight from their source.
+	 */
+	private void write(Collection<?> in, int indent) throws IOException {
+		preIndent(indent);
+		
+		if (refs.put(in, MARKER) != null) throw new JSONException(
+				"Circular references not supported (eg: A list containing itself)");
+		
+		raw('[');
+		int elemIndent = indent == Integer.MIN_VALUE ? Integer.MIN_VALUE : ((indent < 0 ? -indent : indent) + 1);
+		
+		boolean first = true;
+		for (Object item : in) {
+			if (elemIndent == Integer.MIN_VALUE) {
+				if (!first) raw(',');
+			} else {
+				raw(first ? "\n" : ",\n");
+			}
+			first = false;
+			write(item, elemIndent);
+			flushIfFull();
 		}
 		
-		sb.setLength(sb.length() - 2);
-		sb.append('\n');
-		preIndent(sb, indent < 0 ? -indent : indent);
-		sb.append('}');
+		if (elemIndent != Integer.MIN_VALUE && !first) {
+			raw('\n');
+			preIndent(indent < 0 ? -indent : indent);
+		}
+		raw(']');
 		refs.remove(in);
 	}
 	
-	private static void toJSON0(StringBuilder sb, Collection<?> in, int indent, IdentityHashMap<Object, Object> refs) {
-		preIndent(sb, indent);
+	/**
+	 * Writes characters into a {@code StringBuilder}, and passes them on to the target, if there is one.
+	 */
+	static final class Chars extends JSONWriter {
+		private final StringBuilder sb;
+		private final Appendable target;
+		private char[] chunk;
 		
-		if (in == null) {
-			sb.append("null");
-			return;
+		Chars(StringBuilder sb, Appendable target, JSONEscapePolicy policy, boolean canonical) {
+			super(policy, canonical);
+			this.sb = sb;
+			this.target = target;
 		}
 		
-		if (refs.put(in, MARKER) != null) throw new JSONException(
-				"Circular references not supported (eg: A list containing itself)");
+		@Override void raw(char c) {
+			sb.append(c);
+		}
 		
-		if (in.isEmpty()) {
-			sb.append("[]");
-			return;
+		@Override void raw(String s) {
+			sb.append(s);
 		}
 		
-		sb.append('[');
-		if (indent != Integer.MIN_VALUE) sb.append('\n');
-		int elemIndent = indent == Integer.MIN_VALUE ? Integer.MIN_VALUE : ((indent < 0 ? -indent : indent) + 1);
+		@Override void raw(long v) {
+			sb.append(v);
+		}
 		
-		for (Object item : in) {
-			toJSON0(sb, item, elemIndent, refs);
-			sb.append(elemIndent == Integer.MIN_VALUE ? "," : ",\n");
+		/**
+		 * Appends runs of characters that need no escaping in one go; long strings are passed on to the target every 4K characters.
+		 */
+		@Override void string(String s) throws IOException {
+			sb.append('"');
+			int len = s.length();
+			int start = 0;
+			for (int i = 0; i < len; i++) {
+				char c = s.charAt(i);
+				char e = c < 0x80 ? escapes[c] : (escapeNonAscii || isUnpairedSurrogate(s, i)) ? 'u' : 0;
+				if (e != 0) {
+					sb.append(s, start, i).append('\\');
+					if (e == 'u') sb.append('u').append(HEX[c >> 12]).append(HEX[(c >> 8) & 0xF]).append(HEX[(c >> 4) & 0xF]).append(HEX[c & 0xF]);
+					else sb.append(e);
+					start = i + 1;
+				}
+				if ((i & 0xFFF) == 0xFFF && target != null) {
+					sb.append(s, start, i + 1);
+					start = i + 1;
+					flushIfFull();
+				}
+			}
+			sb.append(s, start, len).append('"');
 		}
 		
-		if (elemIndent == Integer.MIN_VALUE) {
-			sb.setLength(sb.length() - 1);
-			sb.append(']');
-			return;
+		@Override void flushIfFull() throws IOException {
+			if (target != null && sb.length() >= FLUSH_SIZE) flush();
 		}
 		
-		sb.setLength(sb.length() - 2);
-		sb.append('\n');
-		preIndent(sb, indent < 0 ? -indent : indent);
-		sb.append(']');
-		refs.remove(in);
+		@Override void flush() throws IOException {
+			if (target == null) return;
+			if (target instanceof Writer) {
+				// Writer.append(CharSequence) would copy the builder into a new String each time.
+				if (chunk == null) chunk = JSONRecycler.CHAR_BUFFERS.acquire();
+				for (int start = 0; start < sb.length(); start += chunk.length) {
+					int end = Math.min(sb.length(), start + chunk.length);
+					sb.getChars(start, end, chunk, 0);
+					((Writer) target).write(chunk, 0, end - start);
+				}
+			} else {
+				target.append(sb);
+			}
+			sb.setLength(0);
+		}
+		
+		@Override void release() {
+			super.release();
+			if (chunk != null) JSONRecycler.CHAR_BUFFERS.release(chunk);
+			chunk = null;
+		}
+	}
+	
+	/**
+	 * Writes UTF-8 encoded bytes into a {@code byte[]}, which is passed on to the stream or buffer when full, or grown if there is neither.
+	 */
+	static final class Utf8 extends JSONWriter {
+		private static final int MAX_CACHED_KEY_LENGTH = 32;
+		private static final int MAX_CACHED_KEYS = 512;
+		
+		private final OutputStream out;
+		private final ByteBuffer buffer;
+		private final byte[] pooled;
+		private final HashMap<String, byte[]> keys = JSONRecycler.KEY_CACHES.acquire();
+		byte[] buf;
+		int pos;
+		
+		Utf8(OutputStream out, ByteBuffer buffer, JSONEscapePolicy policy, boolean canonical) {
+			super(policy, canonical);
+			this.out = out;
+			this.buffer = buffer;
+			this.pooled = this.buf = JSONRecycler.BYTE_BUFFERS.acquire();
+		}
+		
+		/**
+		 * Makes room for at least {@code n} more bytes in {@code buf}.
+		 */
+		private void makeRoom(int n) throws IOException {
+			flush();
+			if (pos + n > buf.length) buf = Arrays.copyOf(buf, Math.max(pos + n, buf.length * 2));
+		}
+		
+		@Override void raw(char c) throws IOException {
+			if (pos == buf.length) makeRoom(1);
+			buf[pos++] = (byte) c;
+		}
+		
+		@Override void raw(String s) throws IOException {
+			int len = s.length();
+			if (pos + len > buf.length) makeRoom(len);
+			for (int i = 0; i < len; i++) buf[pos++] = (byte) s.charAt(i);
+		}
+		
+		@Override void raw(long v) throws IOException {
+			if (v == Long.MIN_VALUE) {
+				raw(String.valueOf(v));
+				return;
+			}
+			if (pos + 20 > buf.length) makeRoom(20);
+			if (v < 0) {
+				buf[pos++] = '-';
+				v = -v;
+			}
+			int digits = 1;
+			for (long t = v; t >= 10; t /= 10) digits++;
+			pos += digits;
+			for (int i = pos - 1; i >= pos - digits; i--) {
+				buf[i] = (byte) ('0' + v % 10);
+				v /= 10;
+			}
+		}
+		
+		@Override void string(String s) throws IOException {
+			if (pos + 2 > buf.length) makeRoom(2);
+			buf[pos++] = '"';
+			int len = s.length();
+			for (int i = 0; i < len; i++) {
+				if (pos + 12 > buf.length) makeRoom(12);
+				char c = s.charAt(i);
+				if (c < 0x80) {
+					char e = escapes[c];
+					if (e == 0) {
+						buf[pos++] = (byte) c;
+					} else if (e == 'u') {
+						unicodeEscape(c);
+					} else {
+						buf[pos++] = '\\';
+						buf[pos++] = (byte) e;
+					}
+				} else if (escapeNonAscii || isUnpairedSurrogate(s, i)) {
+					unicodeEscape(c);
+				} else if (c < 0x800) {
+					buf[pos++] = (byte) (0xC0 | (c >> 6));
+					buf[pos++] = (byte) (0x80 | (c & 0x3F));
+				} else if (!Character.isHighSurrogate(c)) {
+					buf[pos++] = (byte) (0xE0 | (c >> 12));
+					buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+					buf[pos++] = (byte) (0x80 | (c & 0x3F));
+				} else {
+					int cp = Character.toCodePoint(c, s.charAt(++i));
+					buf[pos++] = (byte) (0xF0 | (cp >> 18));
+					buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+					buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+					buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+				}
+			}
+			buf[pos++] = '"';
+		}
+		
+		private void unicodeEscape(char c) {
+			buf[pos++] = '\\';
+			buf[pos++] = 'u';
+			buf[pos++] = (byte) HEX[c >> 12];
+			buf[pos++] = (byte) HEX[(c >> 8) & 0xF];
+			buf[pos++] = (byte) HEX[(c >> 4) & 0xF];
+			buf[pos++] = (byte) HEX[c & 0xF];
+		}
+		
+		@Override void key(String s) throws IOException {
+			if (s.length() > MAX_CACHED_KEY_LENGTH) {
+				string(s);
+				return;
+			}
+			
+			byte[] encoded = keys.get(s);
+			if (encoded == null) {
+				// Make room up front, so the key is not split by a flush.
+				if (pos + 14 + 6 * MAX_CACHED_KEY_LENGTH > buf.length) makeRoom(14 + 6 * MAX_CACHED_KEY_LENGTH);
+				int start = pos;
+				string(s);
+				if (keys.size() < MAX_CACHED_KEYS) keys.put(s, Arrays.copyOfRange(buf, start, pos));
+				return;
+			}
+			if (pos + encoded.length > buf.length) makeRoom(encoded.length);
+			System.arraycopy(encoded, 0, buf, pos, encoded.length);
+			pos += encoded.length;
+		}
+		
+		@Override void flushIfFull() {
+			// The buffer is passed on whenever it is full.
+		}
+		
+		@Override void flush() throws IOException {
+			if (out != null) out.write(buf, 0, pos);
+			else if (buffer != null) buffer.put(buf, 0, pos);
+			else return;
+			pos = 0;
+		}
+		
+		@Override void release() {
+			super.release();
+			JSONRecycler.KEY_CACHES.release(keys);
+			JSONRecycler.BYTE_BUFFERS.release(pooled);
+		}
 	}
 }
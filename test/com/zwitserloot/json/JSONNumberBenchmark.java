@@ -0,0 +1,128 @@
+package com.zwitserloot.json;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Measures parse throughput of number-dense documents: metrics, coordinates and time series.
+ * 
+ * As a reference, it also measures running {@code Double.parseDouble} on every number of the document, which is roughly what decoding cost
+ * before numbers were decoded straight from the input. This is not a unit test; run it by hand: {@code java com.zwitserloot.json.JSONNumberBenchmark [megabytes]}.
+ */
+public class JSONNumberBenchmark {
+	private static final int ROUNDS = 20;
+	private static final Pattern NUMBER = Pattern.compile("-?[0-9][-+.eE0-9]*");
+	
+	private interface Job {
+		void run(String doc);
+	}
+	
+	public static void main(String[] args) throws Exception {
+		int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		int size = megabytes << 20;
+		String[] names = {"Metrics", "Coordinates", "Time series"};
+		String[] docs = {metrics(size), coordinates(size), timeSeries(size)};
+		
+		for (int i = 0; i < docs.length; i++) {
+			final String doc = docs[i];
+			final byte[] utf8 = doc.getBytes("UTF-8");
+			final List<String> literals = new ArrayList<String>();
+			Matcher m = NUMBER.matcher(doc);
+			while (m.find()) literals.add(m.group());
+			System.out.printf("%s, %.1f MB, %d numbers%n", names[i], doc.length() / 1048576.0, literals.size());
+			measure("  JSON.parse(String)          ", doc, new Job() {
+				public void run(String doc) {
+					JSON.parse(doc);
+				}
+			});
+			measure("  JSON.parse(byte[])          ", doc, new Job() {
+				public void run(String doc) {
+					JSON.parse(utf8, 0, utf8.length);
+				}
+			});
+			measure("  JSON.parse(String, visitor) ", doc, new Job() {
+				public void run(String doc) {
+					JSON.parse(doc, new NullVisitor());
+				}
+			});
+			measure("  Double.parseDouble (ref.)   ", doc, new Job() {
+				public void run(String doc) {
+					for (String literal : literals) Double.parseDouble(literal);
+				}
+			});
+		}
+	}
+	
+	private static void measure(String name, String doc, Job job) {
+		for (int i = 0; i < ROUNDS; i++) job.run(doc);
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < ROUNDS; i++) {
+			long start = System.nanoTime();
+			job.run(doc);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		System.out.printf("%s %7.1f MB/s%n", name, doc.length() / 1.048576 / (best / 1000.0));
+	}
+	
+	private static String metrics(int size) {
+		Random random = new Random(0);
+		StringBuilder sb = new StringBuilder(size + 1024).append('[');
+		for (long ts = 1700000000000L; sb.length() < size; ts += 1000) {
+			sb.append("{\"ts\":").append(ts).append(",\"cpu\":").append(random.nextInt(10000) / 100.0).append(",\"mem\":").append(random.nextInt(1 << 30))
+					.append(",\"load\":[").append(random.nextDouble() * 4).append(',').append(random.nextDouble() * 4).append(',').append(random.nextDouble() * 4).append("]},");
+		}
+		return sb.append("{}]").toString();
+	}
+	
+	private static String coordinates(int size) {
+		Random random = new Random(0);
+		StringBuilder sb = new StringBuilder(size + 1024).append("{\"type\":\"LineString\",\"coordinates\":[");
+		while (sb.length() < size) {
+			sb.append(String.format(Locale.ROOT, "[%.6f,%.6f],", random.nextDouble() * 360 - 180, random.nextDouble() * 180 - 90));
+		}
+		return sb.append("[0,0]]}").toString();
+	}
+	
+	private static String timeSeries(int size) {
+		Random random = new Random(0);
+		StringBuilder sb = new StringBuilder(size + 1024).append('[');
+		double value = 100;
+		for (long ts = 1700000000L; sb.length() < size; ts += 60) {
+			value += random.nextGaussian();
+			sb.append('[').append(ts).append(',').append(value).append(']').append(',');
+		}
+		return sb.append("[0,0]]").toString();
+	}
+	
+	private static final class NullVisitor implements JSONVisitor {
+		public void startObject() {}
+		
+		public void endObject() {}
+		
+		public void startArray() {}
+		
+		public void endArray() {}
+		
+		public void key(CharSequence key) {}
+		
+		public void value(CharSequence value) {}
+		
+		public void value(long value) {}
+		
+		public void value(double value) {}
+		
+		public void value(BigInteger value) {}
+		
+		public void value(BigDecimal value) {}
+		
+		public void value(boolean value) {}
+		
+		public void nullValue() {}
+	}
+}
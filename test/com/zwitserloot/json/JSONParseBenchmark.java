@@ -0,0 +1,81 @@
+package com.zwitserloot.json;
+
+import java.util.Random;
+
+/**
+ * Measures parse throughput of large, flat UTF-8 documents, parsed from the bytes and, for comparison, from the decoded characters.
+ * 
+ * This is not a unit test; run it by hand: {@code java com.zwitserloot.json.JSONParseBenchmark [megabytes]}.
+ */
+public class JSONParseBenchmark {
+	private static final int ROUNDS = 30;
+	
+	private interface Job {
+		void run(byte[] doc);
+	}
+	
+	public static void main(String[] args) throws Exception {
+		int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		byte[] compact = document(megabytes << 20, false);
+		byte[] pretty = document(megabytes << 20, true);
+		
+		for (byte[] doc : new byte[][] {compact, pretty}) {
+			System.out.printf("%s document, %.1f MB%n", doc == compact ? "Compact" : "Pretty printed", doc.length / 1048576.0);
+			final String text = new String(doc, "UTF-8");
+			measure("  parse, from characters    ", doc, new Job() {
+				public void run(byte[] doc) {
+					new JSONCharParser(text).parseObject();
+				}
+			});
+			measure("  parse, from UTF-8         ", doc, new Job() {
+				public void run(byte[] doc) {
+					new JSONUtf8Parser(doc, 0, doc.length).parseObject();
+				}
+			});
+			measure("  skipValue, from characters", doc, new Job() {
+				public void run(byte[] doc) {
+					new JSONReader(text).skipValue();
+				}
+			});
+			measure("  skipValue, from UTF-8     ", doc, new Job() {
+				public void run(byte[] doc) {
+					new JSONReader(doc, 0, doc.length).skipValue();
+				}
+			});
+		}
+	}
+	
+	private static void measure(String name, byte[] doc, Job job) {
+		for (int i = 0; i < ROUNDS; i++) job.run(doc);
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < ROUNDS; i++) {
+			long start = System.nanoTime();
+			job.run(doc);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		System.out.printf("%s %6.2f GB/s%n", name, doc.length / (double) best);
+	}
+	
+	/**
+	 * A top-level array of small records, the way a typical API response or export looks.
+	 */
+	private static byte[] document(int size, boolean pretty) throws Exception {
+		Random random = new Random(0);
+		String nl = pretty ? "\n" : "";
+		String indent = pretty ? "    " : "";
+		String sep = pretty ? ": " : ":";
+		StringBuilder sb = new StringBuilder(size + 1024).append("[").append(nl);
+		for (int id = 0; sb.length() < size; id++) {
+			if (id > 0) sb.append(",").append(nl);
+			sb.append(indent).append("{").append(nl);
+			sb.append(indent).append(indent).append("\"id\"").append(sep).append(id).append(",").append(nl);
+			sb.append(indent).append(indent).append("\"name\"").append(sep).append("\"User number ").append(id).append("\",").append(nl);
+			sb.append(indent).append(indent).append("\"email\"").append(sep).append("\"user").append(id).append("@example.com\",").append(nl);
+			sb.append(indent).append(indent).append("\"active\"").append(sep).append(random.nextBoolean()).append(",").append(nl);
+			sb.append(indent).append(indent).append("\"score\"").append(sep).append(random.nextInt(100000) / 100.0).append(",").append(nl);
+			sb.append(indent).append(indent).append("\"bio\"").append(sep).append("\"Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor.\"").append(nl);
+			sb.append(indent).append("}");
+		}
+		return sb.append(nl).append("]").toString().getBytes("UTF-8");
+	}
+}
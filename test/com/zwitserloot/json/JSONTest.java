@@ -2,12 +2,33 @@ package com.zwitserloot.json;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.junit.Test;
 
@@ -373,4 +394,1243 @@ public class JSONTest{
 		JSON json = JSON.parse("\"foo\\nbar\t\t\u00EB\\\"\"");
 		assertEquals("\"foo\\nbar\\t\\t\\u00eb\\\"\"", json.prettyPrint());
 	}
+	
+	@Test
+	public void testParseFromStreams() throws Exception {
+		StringBuilder sb = new StringBuilder("# header comment\n{\"list\": [");
+		for (int i = 0; i < 5000; i++) sb.append(i == 0 ? "" : ",\n  // item comment\n").append(i);
+		sb.append("], big: \"");
+		for (int i = 0; i < 20000; i++) sb.append((char) ('a' + i % 26));
+		sb.append("\\u00EB\"}");
+		
+		JSON json = JSON.parse(new StringReader(sb.toString()));
+		assertEquals(5000, json.get("list").asList().size());
+		assertEquals(4999, json.get("list").get(4999).asInt());
+		assertEquals(20001, json.get("big").asString().length());
+		assertEquals('\u00EB', json.get("big").asString().charAt(20000));
+		assertEquals(json.asObject(), JSON.parse(sb.toString()).asObject());
+		
+		byte[] utf8 = "{\"name\": \"Zo\u00EB\"}".getBytes("UTF-8");
+		assertEquals("Zo\u00EB", JSON.parse(new ByteArrayInputStream(utf8), Charset.forName("UTF-8")).get("name").asString());
+		
+		try {
+			JSON.parse(new StringReader("[1, 2"));
+			fail("Unterminated array read from a stream was accepted");
+		} catch (JSONException expected) {}
+	}
+	
+	@Test
+	public void testCommentsAndSlices() {
+		String in = "// leading comment\n{a: 1, # trailing comment\n  \"b\": [true, false, null],\r\n\tc: \"plain\", d: \"esc\\\"aped\"}";
+		JSON json = JSON.parse(in);
+		assertEquals(1, json.get("a").asInt());
+		assertEquals(3, json.get("b").asList().size());
+		assertTrue(json.get("b").get(2).isNull());
+		assertEquals("plain", json.get("c").asString());
+		assertEquals("esc\"aped", json.get("d").asString());
+		
+		char[] chars = ("xx" + in + "yy").toCharArray();
+		assertEquals(json.asObject(), JSON.parse(chars, 2, in.length()).asObject());
+		assertEquals(json.asObject(), JSON.parse(new StringBuilder(in)).asObject());
+		
+		try {
+			JSON.parse("[1, / not a comment\n 2]");
+			fail("A single slash was accepted as a comment");
+		} catch (JSONException expected) {}
+		
+		try {
+			JSON.parse("[tru]");
+			fail("A truncated literal was accepted");
+		} catch (JSONException expected) {}
+	}
+	
+	@Test
+	public void testParseUtf8() throws Exception {
+		String in = "{\"ascii\": \"plain\", \"text\": \"Zo\u00EB \u20AC \uD83D\uDE00\", n: [1, -2.5e1, true, null], \"esc\\n\": \"a\\u00EBb\"}";
+		Object expected = JSON.parse(in).asObject();
+		byte[] utf8 = in.getBytes("UTF-8");
+		
+		assertEquals(expected, JSON.parse(utf8, 0, utf8.length).asObject());
+		assertEquals(expected, JSON.parse(ByteBuffer.wrap(utf8)).asObject());
+		ByteBuffer direct = ByteBuffer.allocateDirect(utf8.length);
+		direct.put(utf8).flip();
+		assertEquals(expected, JSON.parse(direct).asObject());
+		assertEquals(0, direct.position());
+		assertEquals(expected, JSON.parse(new ByteArrayInputStream(utf8), Charset.forName("UTF-8")).asObject());
+		
+		byte[] padded = new byte[utf8.length + 4];
+		System.arraycopy(utf8, 0, padded, 2, utf8.length);
+		assertEquals(expected, JSON.parse(padded, 2, utf8.length).asObject());
+		
+		try {
+			JSON.parse(new byte[] {'"', (byte) 0xC0, (byte) 0x80, '"'}, 0, 4);
+			fail("An overlong UTF-8 sequence was accepted");
+		} catch (JSONException expected2) {}
+		
+		try {
+			JSON.parse(new byte[] {'"', (byte) 0xE2, (byte) 0x82, '"'}, 0, 4);
+			fail("A truncated UTF-8 sequence was accepted");
+		} catch (JSONException expected2) {}
+	}
+	
+	@Test
+	public void testParseFile() throws Exception {
+		String in = "# export\n{\"rows\": [{\"id\": 1, \"name\": \"Zo\u00EB\"}, {\"id\": 2, \"name\": \"\u20AC\"}]}";
+		File file = File.createTempFile("json", ".json");
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			try {
+				out.write(in.getBytes("UTF-8"));
+			} finally {
+				out.close();
+			}
+			
+			Object expected = JSON.parse(in).asObject();
+			assertEquals(expected, JSON.parseFile(file.toPath()).asObject());
+			
+			FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+			try {
+				// Chunks that split tokens and multi-byte characters.
+				assertEquals(expected, new JSONUtf8Parser(channel, 7).parseObject());
+			} finally {
+				channel.close();
+			}
+		} finally {
+			file.delete();
+		}
+	}
+	
+	@Test
+	public void testJSONReader() throws Exception {
+		String in = "{id: 12, \"name\": \"foo\", // comment\n tags: [\"a\", {\"deep\": [1, 2, {}]}, null], big: \"1152921504606846977\", ratio: 0.5, ok: true, gone: null,}";
+		JSONReader reader = new JSONReader(in);
+		reader.beginObject();
+		assertEquals("id", reader.nextName());
+		assertEquals(12L, reader.nextLong());
+		assertEquals("name", reader.nextName());
+		assertEquals("foo", reader.nextString());
+		assertEquals(JSONReader.Token.NAME, reader.peek());
+		reader.skipValue();
+		assertEquals("big", reader.nextName());
+		assertEquals(1152921504606846977L, reader.nextLong());
+		assertEquals("ratio", reader.nextName());
+		assertEquals(0.5, reader.nextDouble(), .000001);
+		assertEquals("ok", reader.nextName());
+		assertTrue(reader.nextBoolean());
+		assertEquals("gone", reader.nextName());
+		assertEquals(JSONReader.Token.NULL, reader.peek());
+		assertNull(reader.nextString());
+		assertFalse(reader.hasNext());
+		reader.endObject();
+		assertEquals(JSONReader.Token.END_DOCUMENT, reader.peek());
+		
+		byte[] utf8 = "[[1, \"\u00EB\"], {\"a\": [true]}, 3]".getBytes("UTF-8");
+		reader = new JSONReader(utf8, 0, utf8.length);
+		reader.beginArray();
+		assertEquals("[1,\"\\u00eb\"]", reader.nextValue().toJSON());
+		assertEquals(JSONReader.Token.BEGIN_OBJECT, reader.nextToken());
+		assertEquals(JSONReader.Token.NAME, reader.nextToken());
+		reader.skipValue();
+		assertEquals(JSONReader.Token.END_OBJECT, reader.nextToken());
+		assertEquals(3, reader.nextLong());
+		reader.endArray();
+		
+		try {
+			new JSONReader("[1 2]").skipValue();
+			fail("A missing comma was accepted");
+		} catch (JSONException expected) {}
+		
+		try {
+			reader = new JSONReader("{\"a\": 1.5}");
+			reader.beginObject();
+			reader.nextName();
+			reader.nextLong();
+			fail("1.5 was read as a long");
+		} catch (JSONException expected) {}
+		
+		try {
+			reader = new JSONReader("[\"a\"]");
+			reader.beginObject();
+			fail("An array was read as an object");
+		} catch (JSONException expected) {}
+		
+		for (String lenient : new String[] {"{,a:1}", "{a:1,,}", "{\"a\"::1}", "{a:1,:b:2}"}) {
+			assertEquals(JSON.parse(lenient).toJSON(), new JSONReader(lenient).nextValue().toJSON());
+			reader = new JSONReader(lenient);
+			reader.skipValue();
+			assertEquals(JSONReader.Token.END_DOCUMENT, reader.peek());
+			assertEquals(JSON.parse(lenient).toJSON(), JSON.parseLazy(lenient).toJSON());
+		}
+		reader = new JSONReader("{,a::1,,}");
+		reader.beginObject();
+		assertEquals("a", reader.nextName());
+		assertEquals(1, reader.nextLong());
+		reader.endObject();
+	}
+	
+	private static class RecordingVisitor implements JSONVisitor {
+		final StringBuilder events = new StringBuilder();
+		
+		public void startObject() { events.append('{'); }
+		public void endObject() { events.append('}'); }
+		public void startArray() { events.append('['); }
+		public void endArray() { events.append(']'); }
+		public void key(CharSequence key) { events.append(key).append(':'); }
+		public void value(CharSequence value) { events.append('"').append(value).append("\" "); }
+		public void value(long value) { events.append("L").append(value).append(' '); }
+		public void value(double value) { events.append("D").append(value).append(' '); }
+		public void value(BigInteger value) { events.append("B").append(value).append(' '); }
+		public void value(BigDecimal value) { events.append("BD").append(value).append(' '); }
+		public void value(boolean value) { events.append(value).append(' '); }
+		public void nullValue() { events.append("null "); }
+	}
+	
+	@Test
+	public void testVisitor() throws Exception {
+		String in = "{a: [1, -2.5, 1e2, 123456789012345678901234, 1.5e400], \"b\": {\"c\\n\": \"x\\u00EBy\", d: true}, e: null, f: []}";
+		String expected = "{a:[L1 D-2.5 D100.0 B123456789012345678901234 BD1.5E+400 ]b:{c\n:\"x\u00EBy\" d:true }e:null f:[]}";
+		
+		RecordingVisitor visitor = new RecordingVisitor();
+		JSON.parse(in, visitor);
+		assertEquals(expected, visitor.events.toString());
+		
+		visitor = new RecordingVisitor();
+		byte[] utf8 = in.getBytes("UTF-8");
+		JSON.parse(utf8, 0, utf8.length, visitor);
+		assertEquals(expected, visitor.events.toString());
+		
+		visitor = new RecordingVisitor();
+		JSON.parse(new StringReader("\"top\""), visitor);
+		assertEquals("\"top\" ", visitor.events.toString());
+		
+		try {
+			JSON.parse("{a: [1, 2}", new RecordingVisitor());
+			fail("Mismatched brackets were accepted");
+		} catch (JSONException expected2) {}
+	}
+	
+	@Test
+	public void testParseLazy() throws Exception {
+		StringBuilder big = new StringBuilder("{");
+		for (int i = 0; i < 40; i++) big.append("k").append(i).append(": ").append(i).append(", ");
+		big.append("}");
+		String in = "// lazy\n{\"a\": [1, -2.5, \"x\\u00EBy\", true, null, {}], b: {\"c\\n\": \"\u00E9\", d: 12345678901234567890}, \"big\": " + big + "}";
+		byte[] utf8 = in.getBytes("UTF-8");
+		JSON[] lazies = {JSON.parseLazy(in), JSON.parseLazy(utf8, 0, utf8.length), JSON.parseLazy(in.toCharArray(), 0, in.length())};
+		
+		for (JSON lazy : lazies) {
+			JSON eager = JSON.parse(in);
+			assertEquals(eager.asObject(), lazy.asObject());
+			assertEquals(-2.5, lazy.get("a").get(1).asDouble(), 0);
+			assertEquals("x\u00EBy", lazy.get("a").get(2).asString());
+			assertTrue(lazy.get("a").get(4).isNull());
+			assertEquals("\u00E9", lazy.get("b").get("c\n").asString());
+			assertEquals(37, lazy.get("big").get("k37").asInt());
+			assertFalse(lazy.get("big").get("k40").exists());
+			assertEquals(6, lazy.get("a").asList().size());
+			
+			for (JSON doc : new JSON[] {eager, lazy}) {
+				doc.get("b").get("e").setInt(5);
+				doc.get("a").add().setString("new");
+			}
+			assertEquals(5, lazy.get("b").get("e").asInt());
+			assertEquals("new", lazy.get("a").get(6).asString());
+			assertEquals(eager.toJSON(), lazy.toJSON());
+		}
+		
+		JSON dup = JSON.parseLazy("{\"a\": 1, \"b\": 2, \"\\u0061\": 3, \"a\": 4}");
+		assertEquals(2, dup.keySet().size());
+		assertEquals(1, dup.get("a").asInt());
+		assertEquals("{\"a\":1,\"b\":2}", dup.toJSON());
+		dup.get("c").setInt(5);
+		assertEquals(3, dup.keySet().size());
+		StringBuilder many = new StringBuilder("{");
+		for (int i = 0; i < 40; i++) many.append("\"k").append(i % 20).append("\": ").append(i).append(',');
+		dup = JSON.parseLazy(many.append('}').toString());
+		assertEquals(20, dup.keySet().size());
+		assertEquals(7, dup.get("k7").asInt());
+		assertEquals(19, dup.get("k19").asInt());
+		
+		assertEquals("top", JSON.parseLazy("\"top\"").asString());
+		try {
+			JSON.parseLazy("{a: [1, 2}");
+			fail("Mismatched brackets were accepted");
+		} catch (JSONException expected) {}
+	}
+	
+	@Test
+	public void testWordAtATimeStrings() throws Exception {
+		String[] specials = {"\\\"", "\\\\", "\\n", "\\u00e9", "\u00e9", "\u20ac", "\ud83d\ude00", ""};
+		StringBuilder in = new StringBuilder("[");
+		for (String special : specials) {
+			for (int before = 0; before < 20; before++) {
+				for (int after = 0; after < 10; after++) {
+					in.append('"');
+					for (int i = 0; i < before; i++) in.append((char) ('a' + i));
+					in.append(special);
+					for (int i = 0; i < after; i++) in.append((char) ('A' + i));
+					in.append("\",\n").append("                ".substring(before % 16));
+				}
+			}
+		}
+		String s = in.append("]").toString();
+		byte[] utf8 = s.getBytes("UTF-8");
+		assertEquals(JSON.parse(s).asObject(), JSON.parse(utf8, 0, utf8.length).asObject());
+		assertEquals(JSON.parse(s).asObject(), JSON.parse(new ByteArrayInputStream(utf8), Charset.forName("UTF-8")).asObject());
+		
+		JSONReader reader = new JSONReader(utf8, 0, utf8.length);
+		reader.skipValue();
+		assertEquals(JSONReader.Token.END_DOCUMENT, reader.peek());
+	}
+	
+	@Test
+	public void testNumberDecoding() throws Exception {
+		String[] doubles = {"0.1", "-2.5", "1E5", "1e-5", "0.30000000000000004", "1.7976931348623157e308", "4.9e-324", "2.2250738585072014E-308",
+				"3.14159265358979323846264338327950288", "123456789.123456789e-20", "0.000000000000000000000000000001", "9007199254740993.0", "-0.0"};
+		for (String d : doubles) {
+			Object parsed = JSON.parse("[" + d + "]").get(0).asObject();
+			assertEquals(d, Double.valueOf(Double.parseDouble(d)), parsed);
+		}
+		
+		assertEquals(Long.MAX_VALUE, JSON.parse("9223372036854775807").asLong());
+		assertEquals(Long.MIN_VALUE, JSON.parse("-9223372036854775808").asLong());
+		assertEquals(new BigInteger("92233720368547758070"), JSON.parse("92233720368547758070").asObject());
+		assertEquals(new BigDecimal("1e400"), JSON.parse("1e400").asObject());
+		assertEquals(7.0, JSON.parse("007").asDouble(), 0);
+		
+		for (String bad : new String[] {"-", "1.", "1e", "1e+", ".5", "1.2.3", "1e5e5", "--1"}) {
+			try {
+				JSON.parse(bad);
+				fail("Accepted " + bad);
+			} catch (JSONException expected) {}
+		}
+	}
+	
+	@Test
+	public void testRawNumbers() throws Exception {
+		String in = "{\"id\":12345678901234567890123,\"price\":19.990,\"ratio\":1.5e-3,\"count\":42,\"name\":\"x\"}";
+		JSON json = JSON.parse(in, JSONParseOption.RAW_NUMBERS);
+		assertEquals(in, json.toJSON());
+		
+		json.get("name").setString("y");
+		assertEquals(in.replace("\"x\"", "\"y\""), json.toJSON());
+		
+		assertEquals("19.990", json.get("price").asString());
+		assertEquals(19.99, json.get("price").asDouble(), 0);
+		assertEquals(0.0015, json.get("ratio").asDouble(), 0);
+		assertEquals(42, json.get("count").asInt());
+		assertEquals(42L, json.get("count").asLong());
+		assertEquals("12345678901234567890123", json.get("id").asString());
+		assertEquals(new BigInteger("12345678901234567890123").doubleValue(), json.get("id").asDouble(), 0);
+		assertEquals(JSON.parse("[1.0]", JSONParseOption.RAW_NUMBERS).asObject(), JSON.parse("[1]", JSONParseOption.RAW_NUMBERS).asObject());
+		
+		byte[] utf8 = in.getBytes("UTF-8");
+		assertEquals(in, JSON.parse(utf8, 0, utf8.length, JSONParseOption.RAW_NUMBERS).toJSON());
+		assertEquals(in, JSON.parse(new StringReader(in), JSONParseOption.RAW_NUMBERS).toJSON());
+		
+		for (String bad : new String[] {"[-]", "[1.]", "[1e+]", "[01.2.3]"}) {
+			try {
+				JSON.parse(bad, JSONParseOption.RAW_NUMBERS);
+				fail("Accepted " + bad);
+			} catch (JSONException expected) {}
+		}
+		
+		// Code compiled before options existed links against these exact signatures.
+		JSON.class.getMethod("parse", String.class);
+		JSON.class.getMethod("parse", CharSequence.class);
+		JSON.class.getMethod("parse", char[].class, int.class, int.class);
+		JSON.class.getMethod("parse", java.io.Reader.class);
+		JSON.class.getMethod("parse", java.io.InputStream.class, Charset.class);
+		JSON.class.getMethod("parse", byte[].class, int.class, int.class);
+		JSON.class.getMethod("parse", ByteBuffer.class);
+		JSON.class.getMethod("parseFile", java.nio.file.Path.class);
+	}
+	
+	@Test
+	public void testStringCache() throws Exception {
+		String in = "[{\"id\":1,\"status\":\"active\",note:\"a longer free-form value\"},{\"id\":2,\"status\":\"active\",note:\"a longer free-form value\"}]";
+		JSONStringCache keys = new JSONStringCache();
+		JSON json = JSON.parse(in, keys);
+		assertEquals(JSON.parse(in).toJSON(), json.toJSON());
+		List<JSON> list = json.asList();
+		assertSame(list.get(0).keySet().iterator().next(), list.get(1).keySet().iterator().next());
+		assertNotSame(list.get(0).get("status").asString(), list.get(1).get("status").asString());
+		assertEquals(3, keys.hits());
+		assertEquals(3, keys.misses());
+		assertEquals(0.5, keys.hitRate(), 0);
+		
+		JSON again = JSON.parse(in, keys);
+		assertSame(list.get(0).keySet().iterator().next(), again.get(1).keySet().iterator().next());
+		assertEquals(9, keys.hits());
+		
+		JSONStringCache values = new JSONStringCache(16, 10);
+		byte[] utf8 = in.getBytes("UTF-8");
+		list = JSON.parse(utf8, 0, utf8.length, values, JSONParseOption.RAW_NUMBERS).asList();
+		assertSame(list.get(0).get("status").asString(), list.get(1).get("status").asString());
+		assertNotSame(list.get(0).get("note").asString(), list.get(1).get("note").asString());
+		assertEquals("1", list.get(0).get("id").asString());
+		
+		JSONStringCache tiny = new JSONStringCache(1, 0);
+		StringBuilder sb = new StringBuilder("{");
+		for (int i = 0; i < 100; i++) sb.append("k").append(i).append(":").append(i).append(",");
+		JSON many = JSON.parse(sb.append("}").toString(), tiny);
+		assertEquals(100, many.keySet().size());
+		assertEquals(99, many.get("k99").asInt());
+		assertEquals(100, tiny.misses());
+	}
+	
+	@Test
+	public void testSelection() throws Exception {
+		String in = "{\"films\":[{\"name\":\"Serenity\",\"director\":{\"name\":\"Joss Whedon\",\"age\":45},\"tags\":[\"sci-fi\",{\"x\":[1,2]}]}," +
+				"{\"name\":\"A few good men\",director:{name:\"Rob Reiner\"},\"quote\":\"You can't handle the \\\"truth\\\" ]}\"}]," +
+				"\"meta\":{\"version\":3,\"build\":{\"id\":\"abc\",\"flags\":[true,false,null]}},\"skipped\":-1.5e10}";
+		JSON json = JSON.parse(in, JSONSelection.of("films/*/name", "meta/version"));
+		assertEquals("{\"films\":[{\"name\":\"Serenity\"},{\"name\":\"A few good men\"}],\"meta\":{\"version\":3}}", json.toJSON());
+		
+		byte[] utf8 = in.getBytes("UTF-8");
+		json = JSON.parse(utf8, 0, utf8.length, JSONSelection.of("films/1", "films/*/director/name", "meta/build"));
+		assertEquals("Joss Whedon", json.get("films").get(0).get("director").get("name").asString());
+		assertFalse(json.get("films").get(0).get("director").get("age").exists());
+		assertEquals("You can't handle the \"truth\" ]}", json.get("films").get(1).get("quote").asString());
+		assertEquals(JSON.parse(in).get("meta").get("build").toJSON(), json.get("meta").get("build").toJSON());
+		
+		assertEquals("{\"films\":[null,{\"name\":\"A few good men\"}]}", JSON.parse(in, JSONSelection.of("films/1/name")).toJSON());
+		assertEquals(JSON.parse(in).toJSON(), JSON.parse(in, JSONSelection.of("")).toJSON());
+		assertEquals("{}", JSON.parse(in, JSONSelection.of("films/0/name/nested", "nothing")).get("films").get(0).toJSON());
+		assertEquals("{}", JSON.parse(in, JSONSelection.of()).toJSON());
+		assertEquals("\"top\"", JSON.parse("\"top\"", JSONSelection.of("a")).toJSON());
+		
+		for (String bad : new String[] {"{\"a\":1,\"b\":[1,2}", "{\"a\":1,\"b\":\"unterminated}", "{\"a\":1,\"b\":@}", "{\"a\":1,\"b\":]}", "{\"x\":[1}, \"a\":2}", "{\"x\":{\"y\":1], \"a\":2}"}) {
+			try {
+				JSON.parse(bad, JSONSelection.of("a"));
+				fail("Accepted " + bad);
+			} catch (JSONException expected) {}
+		}
+		
+		StringBuilder deep = new StringBuilder("{\"x\":");
+		for (int i = 0; i < 100; i++) deep.append(i % 3 == 0 ? "{\"k\":" : "[");
+		for (int i = 99; i >= 0; i--) deep.append(i % 3 == 0 ? "}" : "]");
+		assertEquals(2, JSON.parse(deep.append(", \"a\":2}").toString(), JSONSelection.of("a")).get("a").asInt());
+		try {
+			JSON.parse(deep.toString().replace("]]}", "]}]"), JSONSelection.of("a"));
+			fail("Mismatched brackets deep in a skipped value were accepted");
+		} catch (JSONException expected) {}
+		
+		try {
+			JSONSelection.of("a//b");
+			fail();
+		} catch (IllegalArgumentException expected) {}
+	}
+	
+	@Test
+	public void testFeedParser() throws Exception {
+		String doc = "{\"name\":\"Caf\u00e9 \u20ac \\ud83d\\ude00 \\\"q\\\" \\u00e9\\n\", unquoted_key: [1, -2.5e-3, 12345678901234567890, true, false, null, []], // comment\n" +
+				"# another comment\n \"emoji\": \"\ud83d\ude00\", \"nested\": {\"a\": [{\"b\": {}}], \"c\": 9007199254740993}}";
+		String full = JSON.parse(doc).toJSON();
+		byte[] utf8 = (doc + " [1,2,] \"two\" 42").getBytes("UTF-8");
+		
+		Random random = new Random(0);
+		for (int round = 0; round < 50; round++) {
+			JSONFeedParser parser = new JSONFeedParser();
+			int pos = 0;
+			while (pos < utf8.length) {
+				int len = round == 0 ? 1 : Math.min(utf8.length - pos, random.nextInt(20));
+				if (round % 2 == 0) parser.feed(ByteBuffer.wrap(utf8, pos, len));
+				else {
+					ByteBuffer direct = ByteBuffer.allocateDirect(len);
+					direct.put(utf8, pos, len).flip();
+					parser.feed(direct);
+					assertFalse(direct.hasRemaining());
+				}
+				pos += len;
+			}
+			assertTrue(parser.hasNext());
+			assertEquals(full, parser.next().toJSON());
+			assertEquals("[1,2]", parser.next().toJSON());
+			assertEquals("two", parser.next().asString());
+			assertFalse(parser.hasNext());
+			parser.endOfInput();
+			assertEquals(42, parser.next().asInt());
+			assertFalse(parser.hasNext());
+		}
+		
+		for (String bad : new String[] {"{\"a\":1", "[1 2]", "\"abc", "{\"a\":\"\\x\"}", "[tru]", "[1.]", "{\"a\":1,\"a\":2}", "[/]", "{a.b:1}", "[\"\\u12G4\"]"}) {
+			JSONFeedParser parser = new JSONFeedParser();
+			try {
+				byte[] b = bad.getBytes("UTF-8");
+				for (int i = 0; i < b.length; i++) parser.feed(b, i, 1);
+				parser.endOfInput();
+				fail("Accepted " + bad);
+			} catch (JSONException expected) {}
+			try {
+				parser.feed(new byte[1], 0, 1);
+				fail();
+			} catch (IllegalStateException expected) {}
+		}
+		
+		JSONFeedParser parser = new JSONFeedParser();
+		try {
+			parser.feed(new byte[] {'[', '"', (byte) 0xC3, '"'}, 0, 4);
+			fail();
+		} catch (JSONException expected) {}
+		
+		byte[] raw = "{\"k\": [1.50, 1e400, -0]} \"s\"".getBytes("UTF-8");
+		JSONStringCache cache = new JSONStringCache();
+		parser = new JSONFeedParser(JSONParseOption.RAW_NUMBERS, cache);
+		for (int i = 0; i < raw.length; i++) parser.feed(raw, i, 1);
+		parser.endOfInput();
+		JSON first = parser.next();
+		assertEquals("{\"k\":[1.50,1e400,-0]}", first.toJSON());
+		assertEquals("1.50", first.get("k").get(0).asString());
+		assertSame(first.keySet().iterator().next(), JSON.parse("{\"k\": 1}", cache).keySet().iterator().next());
+		
+		JSONParseLimits limits = JSONParseLimits.NONE.withMaxDepth(2).withMaxStringLength(5).withMaxNumberLength(4).withMaxEntries(3).withMaxDocumentLength(40);
+		String[] rejected = {"[[[1]]]", "[\"123456\"]", "{abcdef: 1}", "{\"abc\\u0064ef\": 1}", "[12345]", "[1,2,3,4]", "{a:1,b:2,c:3,d:4}",
+				"{a: \"1234\", b: \"1234\", c: [\"1234\", 1234, 12]}"};
+		for (String bad : rejected) {
+			String message = null;
+			try {
+				JSON.parse(bad, limits);
+				fail("JSON.parse accepted " + bad);
+			} catch (JSONException e) {
+				message = e.getMessage().substring(0, e.getMessage().indexOf('('));
+			}
+			parser = new JSONFeedParser(limits);
+			try {
+				byte[] b = bad.getBytes("UTF-8");
+				for (int i = 0; i < b.length; i++) parser.feed(b, i, 1);
+				parser.endOfInput();
+				fail("Accepted " + bad);
+			} catch (JSONException e) {
+				assertEquals(bad, message, e.getMessage().substring(0, e.getMessage().indexOf('(')));
+			}
+		}
+		parser = new JSONFeedParser(limits);
+		byte[] atLimits = "[[\"12345\"], 1234, {a: 1, b: 2}]".getBytes("UTF-8");
+		parser.feed(atLimits, 0, atLimits.length);
+		parser.endOfInput();
+		assertEquals("[[\"12345\"],1234,{\"a\":1,\"b\":2}]", parser.next().toJSON());
+		
+		parser = new JSONFeedParser(limits);
+		parser.feed("[1234, 1234] [1234] [123".getBytes("UTF-8"), 0, 24);
+		try {
+			parser.feed("4, 1234, 1234, 1234]".getBytes("UTF-8"), 0, 20);
+			fail("Accepted more input than maxDocumentLength");
+		} catch (JSONException expected) {
+			assertEquals("Document longer than 40(40)", expected.getMessage());
+		}
+		
+		parser = new JSONFeedParser(limits);
+		byte[] endless = new byte[1000];
+		Arrays.fill(endless, (byte) '1');
+		endless[0] = '[';
+		endless[1] = '"';
+		try {
+			parser.feed(endless, 0, endless.length);
+			fail("Buffered a string longer than the limit");
+		} catch (JSONException expected) {
+			assertTrue(expected.getMessage(), expected.getMessage().startsWith("String longer than 5 characters"));
+		}
+		parser = new JSONFeedParser(limits);
+		endless[1] = '1';
+		try {
+			parser.feed(endless, 0, endless.length);
+			fail("Buffered a number longer than the limit");
+		} catch (JSONException expected) {
+			assertTrue(expected.getMessage(), expected.getMessage().startsWith("Number longer than 4 characters"));
+		}
+	}
+	
+	@Test
+	public void testParseLines() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		StringBuilder huge = new StringBuilder("{\"huge\":\"");
+		for (int i = 0; i < 100000; i++) huge.append("0123456789");
+		int lines = 30000;
+		for (int i = 0; i < lines; i++) {
+			if (i == 20000) sb.append(huge).append("\"}\n");
+			else if (i % 1000 == 0) sb.append("   \r\n");
+			else sb.append("{\"id\":").append(i).append(",\"name\":\"line \u00E9").append(i).append("\"}").append(i % 2 == 0 ? "\n" : "\r\n");
+		}
+		sb.append("[\"last line, no newline\"]");
+		byte[] utf8 = sb.toString().getBytes("UTF-8");
+		
+		ExecutorService single = Executors.newSingleThreadExecutor();
+		try {
+			for (int run = 0; run < 2; run++) {
+				Iterator<JSON> it = run == 0 ? JSON.parseLines(new ByteArrayInputStream(utf8)) : JSON.parseLines(new ByteArrayInputStream(utf8), single);
+				for (int i = 0; i < lines; i++) {
+					if (i % 1000 == 0 && i != 20000) continue;
+					assertTrue(it.hasNext());
+					JSON json = it.next();
+					if (i == 20000) assertEquals(1000000, json.get("huge").asString().length());
+					else assertEquals("line \u00E9" + i, json.get("name").asString());
+				}
+				assertEquals("last line, no newline", it.next().get(0).asString());
+				assertFalse(it.hasNext());
+			}
+		} finally {
+			single.shutdown();
+		}
+		
+		File file = File.createTempFile("json", ".jsonl");
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			try {
+				out.write("{\"a\":1}\n\n{\"a\":2}\n{\"a\":3,}\n{\"a\":\n".getBytes("UTF-8"));
+			} finally {
+				out.close();
+			}
+			Iterator<JSON> it = JSON.parseLines(file.toPath(), JSONParseOption.RAW_NUMBERS);
+			assertEquals("1", it.next().get("a").asString());
+			assertEquals("2", it.next().get("a").asString());
+			assertEquals("3", it.next().get("a").asString());
+			try {
+				it.hasNext();
+				fail();
+			} catch (JSONException e) {
+				assertTrue(e.getMessage(), e.getMessage().startsWith("Line 5: "));
+			}
+			assertFalse(it.hasNext());
+		} finally {
+			file.delete();
+		}
+		
+		try {
+			JSON.parseLines(new ByteArrayInputStream("1 2\n".getBytes("UTF-8"))).next();
+			fail();
+		} catch (JSONException expected) {}
+		
+		final boolean[] closed = new boolean[1];
+		InputStream tracked = new ByteArrayInputStream(utf8) {
+			@Override public void close() {
+				closed[0] = true;
+			}
+		};
+		JSONLines early = new JSONLines(tracked, true, null, new JSONParseOption[0]);
+		assertEquals(1, early.next().get("id").asInt());
+		early.close();
+		early.close();
+		assertTrue(closed[0]);
+		assertFalse(early.hasNext());
+		JSONLines notOwned = JSON.parseLines(tracked);
+		closed[0] = false;
+		notOwned.close();
+		assertFalse(closed[0]);
+	}
+	
+	@Test
+	public void testParallelArray() throws Exception {
+		StringBuilder sb = new StringBuilder("[\n");
+		Random random = new Random(15);
+		for (int i = 0; i < 2000; i++) {
+			if (i > 0) sb.append(random.nextBoolean() ? "," : " ,\n ");
+			sb.append("{\"id\":").append(i).append(",\"s\":\"");
+			// Strings that look like element boundaries, to make the guesses go wrong.
+			if (random.nextInt(3) == 0) sb.append("\\\"}, {\\\"id\\\": 5},{");
+			sb.append("\u00E9\",\"n\":[").append(random.nextInt(3) == 0 ? "[1],{\"x\":2}" : "").append("]}");
+		}
+		sb.append("\n]\n");
+		byte[] utf8 = sb.toString().getBytes("UTF-8");
+		String expected = JSON.parse(utf8, 0, utf8.length).toJSON();
+		for (int segmentSize : new int[] {20, 97, 1000, 30000, 1 << 20}) {
+			assertEquals(expected, new JSON(JSONParallelArray.parse(utf8, 0, utf8.length, segmentSize, new JSONParseOption[0])).toJSON());
+		}
+		assertEquals(expected, JSON.parseParallel(utf8, 0, utf8.length).toJSON());
+		
+		byte[] numbers = "[1, -2,3.5 ,4e2, 5,\n6,7,8,9,10]".getBytes("UTF-8");
+		assertEquals(JSON.parse(numbers, 0, numbers.length).toJSON(), new JSON(JSONParallelArray.parse(numbers, 0, numbers.length, 3, new JSONParseOption[0])).toJSON());
+		
+		StringBuilder trailing = new StringBuilder("[");
+		for (int i = 0; i < 2000; i++) trailing.append(i == 0 ? "" : ",").append(i);
+		byte[] trailingBytes = trailing.append("] [3]").toString().getBytes("UTF-8");
+		assertEquals(JSON.parse(trailingBytes, 0, trailingBytes.length).toJSON(), new JSON(JSONParallelArray.parse(trailingBytes, 0, trailingBytes.length, 64, new JSONParseOption[0])).toJSON());
+		
+		File file = File.createTempFile("json", ".json");
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			try {
+				out.write(utf8);
+			} finally {
+				out.close();
+			}
+			FileChannel channel = FileChannel.open(file.toPath());
+			try {
+				assertEquals(expected, new JSON(JSONParallelArray.parse(channel, 4096, 500, new JSONParseOption[0])).toJSON());
+			} finally {
+				channel.close();
+			}
+			assertEquals(expected, JSON.parseFileParallel(file.toPath()).toJSON());
+		} finally {
+			file.delete();
+		}
+		
+		byte[] invalid = sb.toString().replace("{\"id\":1500,", "{\"id\":1500 ").getBytes("UTF-8");
+		String message = null;
+		try {
+			JSON.parse(invalid, 0, invalid.length);
+			fail();
+		} catch (JSONException e) {
+			message = e.getMessage();
+		}
+		try {
+			JSONParallelArray.parse(invalid, 0, invalid.length, 100, new JSONParseOption[0]);
+			fail();
+		} catch (JSONException e) {
+			assertEquals(message, e.getMessage());
+		}
+	}
+	
+	@Test
+	public void testStreamArray() throws Exception {
+		StringBuilder sb = new StringBuilder("{\"meta\": {\"page\": 1}, \"data\": {\"results\": [");
+		for (int i = 0; i < 1000; i++) sb.append(i == 0 ? "" : ",").append("{\"id\":").append(i).append(",\"tags\":[\"a\",\"b\"]}");
+		sb.append("], \"count\": 1000}, \"next\": null}");
+		byte[] utf8 = sb.toString().getBytes("UTF-8");
+		
+		JSONArrayStream stream = JSON.streamArray(new ByteArrayInputStream(utf8), "data/results");
+		assertEquals(1, stream.metadata().get("meta").get("page").asInt());
+		assertFalse(stream.metadata().get("next").exists());
+		int count = 0;
+		while (stream.hasNext()) assertEquals(count++, stream.next().get("id").asInt());
+		assertEquals(1000, count);
+		assertEquals("{\"meta\":{\"page\":1},\"data\":{\"results\":[],\"count\":1000},\"next\":null}", stream.metadata().toJSON());
+		
+		stream = JSON.streamArray(new StringReader("[[1], [\"x\", [2, 3], 4], 5]"), "1/1");
+		assertEquals(2, stream.next().asInt());
+		assertEquals(3, stream.next().asInt());
+		assertFalse(stream.hasNext());
+		assertEquals("[[1],[\"x\",[],4],5]", stream.metadata().toJSON());
+		
+		stream = JSON.streamArray(new StringReader("[]"), "");
+		assertFalse(stream.hasNext());
+		
+		try {
+			JSON.streamArray(new StringReader("{\"data\": {\"results\": 5}}"), "data/results");
+			fail();
+		} catch (JSONException expected) {}
+		try {
+			JSON.streamArray(new StringReader("{\"data\": {}}"), "data/results");
+			fail();
+		} catch (JSONException expected) {}
+		try {
+			stream = JSON.streamArray(new StringReader("{\"results\": [1], \"results\": 2}"), "results");
+			stream.next();
+			stream.hasNext();
+			fail();
+		} catch (JSONException expected) {}
+		try {
+			stream = JSON.streamArray(new StringReader("{\"results\": [1, }"), "results");
+			stream.next();
+			stream.next();
+			fail();
+		} catch (JSONException expected) {}
+	}
+	
+	@Test
+	public void testParseLimits() throws Exception {
+		StringBuilder deep = new StringBuilder();
+		for (int i = 0; i < 100000; i++) deep.append("[{\"a\":");
+		deep.append("1");
+		for (int i = 0; i < 100000; i++) deep.append("}]");
+		Object value = new JSONCharParser(deep).parseObject();
+		for (int i = 0; i < 100000; i++) value = ((Map<?, ?>) ((List<?>) value).get(0)).get("a");
+		assertEquals(1.0, value);
+		assertEquals(1, JSON.parse(deep.toString()).get(0).get("a").get(0).get("a").asList().size());
+		
+		JSONParseLimits limits = JSONParseLimits.NONE.withMaxDepth(3).withMaxStringLength(5).withMaxNumberLength(4).withMaxEntries(3).withMaxDocumentLength(40);
+		assertEquals("JSONParseLimits[depth 3, document 40, string 5, number 4, entries 3]", limits.toString());
+		assertEquals("{\"a\":[[\"12345\"]],\"bb\":-123}", JSON.parse("{\"a\": [[\"12345\"]], \"bb\": -123}", limits).toJSON());
+		String[] tooMuch = {
+			"{\"a\": [[[1]]]}", "[\"123456\"]", "{\"123456\": 1}", "[12345]", "[1.5e10]", "[1, 2, 3, 4]", "{\"a\": 1, \"b\": 2, \"c\": 3, \"d\": 4}",
+			"[1,                                       2]",
+		};
+		for (String s : tooMuch) {
+			try {
+				JSON.parse(s, limits);
+				fail(s);
+			} catch (JSONException expected) {}
+			try {
+				JSON.parse(new StringReader(s), limits);
+				fail(s);
+			} catch (JSONException expected) {}
+		}
+		
+		StringBuilder longDocument = new StringBuilder("[1");
+		for (int i = 0; i < 100000; i++) longDocument.append("                ");
+		longDocument.append("]");
+		try {
+			JSON.parse(new StringReader(longDocument.toString()), JSONParseLimits.NONE.withMaxDocumentLength(10000));
+			fail();
+		} catch (JSONException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Document longer than 10000"));
+		}
+		
+		StringBuilder nested = new StringBuilder("[");
+		for (int i = 0; i < 1000; i++) nested.append(i == 0 ? "" : ",").append("[[1]]");
+		byte[] utf8 = nested.append("]").toString().getBytes("UTF-8");
+		JSONParseLimits[] broken = {JSONParseLimits.NONE.withMaxEntries(5), JSONParseLimits.NONE.withMaxDepth(2), JSONParseLimits.NONE.withMaxDepth(0),
+			JSONParseLimits.NONE.withMaxDocumentLength(100)};
+		for (JSONParseLimits limit : broken) {
+			String expected = null;
+			try {
+				JSON.parse(utf8, 0, utf8.length, limit);
+				fail(limit.toString());
+			} catch (JSONException e) {
+				expected = e.getMessage();
+			}
+			try {
+				JSONParallelArray.parse(utf8, 0, utf8.length, 50, new JSONParseOption[] {limit});
+				fail(limit.toString());
+			} catch (JSONException e) {
+				assertEquals(expected, e.getMessage());
+			}
+		}
+		JSONParseLimits enough = JSONParseLimits.NONE.withMaxEntries(1000).withMaxDepth(3);
+		assertEquals(JSON.parse(utf8, 0, utf8.length).toJSON(), new JSON(JSONParallelArray.parse(utf8, 0, utf8.length, 50, new JSONParseOption[] {enough})).toJSON());
+	}
+	
+	@Test
+	public void testRecycler() throws Exception {
+		StringBuilder sb = JSONRecycler.STRING_BUILDERS.acquire();
+		sb.append("dirty");
+		JSONRecycler.STRING_BUILDERS.release(sb);
+		StringBuilder again = JSONRecycler.STRING_BUILDERS.acquire();
+		assertSame(sb, again);
+		assertEquals(0, again.length());
+		again.setLength(1 << 20);
+		JSONRecycler.STRING_BUILDERS.release(again);
+		assertNotSame(again, JSONRecycler.STRING_BUILDERS.acquire());
+		
+		char[][] drained = new char[Runtime.getRuntime().availableProcessors() * 8][];
+		for (int i = 0; i < drained.length; i++) drained[i] = JSONRecycler.CHAR_BUFFERS.acquire();
+		StringBuilder[] drainedBuilders = new StringBuilder[drained.length];
+		for (int i = 0; i < drained.length; i++) drainedBuilders[i] = JSONRecycler.STRING_BUILDERS.acquire();
+		JSONRecycler.CHAR_BUFFERS.release(drained[0]);
+		JSONRecycler.STRING_BUILDERS.release(drainedBuilders[0]);
+		assertEquals(1.5, JSON.parse("[1.5]", JSONParseOption.RAW_NUMBERS).get(0).asDouble(), 0);
+		JSONReader reader = new JSONReader("[\"a\\n\", 2]");
+		reader.beginArray();
+		assertEquals("a\n", reader.nextString());
+		reader.close();
+		reader.close();
+		try {
+			reader.nextLong();
+			fail("IllegalStateException expected");
+		} catch (IllegalStateException expected) {}
+		assertEquals(1, JSON.parseLazy("{\"a\\n\": 1, \"b\": 2}").get("a\n").asInt());
+		try {
+			JSON.parseLines(new ByteArrayInputStream("\"a\\n\" x\n".getBytes("UTF-8")), new Executor() {
+				public void execute(Runnable task) {
+					task.run();
+				}
+			}).next();
+			fail("JSONException expected");
+		} catch (JSONException expected) {}
+		JSONArrayStream stream = JSON.streamArray(new StringReader("{\"a\": [1, 2, 3]}"), "a");
+		assertEquals(1, stream.next().asInt());
+		stream.close();
+		stream.close();
+		assertFalse(stream.hasNext());
+		assertEquals("{\"a\":[]}", stream.metadata().toJSON());
+		stream = JSON.streamArray(new StringReader("[1, }"), "");
+		assertEquals(1, stream.next().asInt());
+		try {
+			stream.next();
+			fail("JSONException expected");
+		} catch (JSONException expected) {}
+		assertFalse(stream.hasNext());
+		try {
+			JSON.streamArray(new StringReader("{\"a\": {\"b\": ]}"), "a/b");
+			fail("JSONException expected");
+		} catch (JSONException expected) {}
+		assertSame(drained[0], JSONRecycler.CHAR_BUFFERS.acquire());
+		assertSame(drainedBuilders[0], JSONRecycler.STRING_BUILDERS.acquire());
+		
+		final String doc = "{\"a\": [1, \"two\\n\", {\"b\": null}], \"c\": \"" + new String(new char[20000]).replace((char) 0, 'x') + "\"}";
+		final String expected = JSON.parse(doc).toJSON();
+		final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				@Override public void run() {
+					for (int i = 0; i < 500; i++) {
+						String out = JSON.parse(new StringReader(doc)).toJSON();
+						if (!out.equals(expected)) failures.add(out);
+						JSON.parse(out).prettyPrint();
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread t : threads) t.join();
+		assertEquals(0, failures.size());
+	}
+	
+	@Test
+	public void testOffHeap() throws Exception {
+		StringBuilder wide = new StringBuilder("{");
+		for (int i = 0; i < 100; i++) wide.append(i == 0 ? "" : ", ").append("\"k").append(i).append("\": ").append(i * 1.5);
+		String doc = "{\"a\": [1, -2, 0.5, 12345678901234567890, 9007199254740993, \"t\\u00E9xt \\uD83D\\uDE00\", true, false, null, [], {}], " +
+				"\"b\": {\"x\": \"y\"}, \"wide\": " + wide.append("}") + ", \"list\": [{\"x\": 1}, {\"x\": 2}]}";
+		byte[] bytes = doc.getBytes("UTF-8");
+		JSONOffHeapDocument offHeap = JSON.parseOffHeap(bytes, 0, bytes.length);
+		JSON json = offHeap.json();
+		assertEquals(JSON.parse(doc).toJSON(), json.toJSON());
+		assertEquals(-2, json.get("a").get(1).asInt());
+		assertEquals(0.5, json.get("a").get(2).asDouble(), 0);
+		assertEquals(new BigInteger("12345678901234567890"), json.get("a").get(3).asObject());
+		assertEquals(9007199254740993L, json.get("a").get(4).asLong());
+		assertEquals("t\u00E9xt \uD83D\uDE00", json.get("a").get(5).asString());
+		assertTrue(json.get("a").get(8).isNull());
+		assertEquals(11, json.get("a").asList().size());
+		assertEquals("y", json.get("b").get("x").asString());
+		assertEquals(148.5, json.get("wide").get("k99").asDouble(), 0);
+		assertEquals(100, json.get("wide").keySet().size());
+		assertFalse(json.get("wide").get("k100").exists());
+		assertEquals(2, json.get("list").get(1).get("x").asInt());
+		
+		JSONOffHeapDocument fromStream = JSON.parseOffHeap(new ByteArrayInputStream(bytes));
+		assertEquals(json.toJSON(), fromStream.json().toJSON());
+		fromStream.close();
+		
+		byte[] huge = "[1e400, -2.5E-400]".getBytes("UTF-8");
+		JSON hugeJson = JSON.parseOffHeap(huge, 0, huge.length).json();
+		assertEquals(JSON.parse("[1e400, -2.5E-400]").toJSON(), hugeJson.toJSON());
+		assertEquals(new BigDecimal("1e400"), hugeJson.get(0).asObject());
+		
+		String lone = "{\"k\\ud800\": \"x\\udc00y\", \"\\u00e9\\ud83d\": [\"\\ude00\"]}";
+		byte[] loneBytes = lone.getBytes("UTF-8");
+		JSON loneJson = JSON.parseOffHeap(loneBytes, 0, loneBytes.length).json();
+		assertEquals(JSON.parse(lone).toJSON(), loneJson.toJSON());
+		assertEquals("x\udc00y", loneJson.get("k\ud800").asString());
+		assertEquals("\ude00", loneJson.get("\u00e9\ud83d").get(0).asString());
+		
+		try {
+			JSON.parseOffHeap(new ByteArrayInputStream("{\"a\": 1, \"b\": 2, \"a\": 3}".getBytes("UTF-8")));
+			fail("duplicate key accepted");
+		} catch (JSONException expected) {
+			assertTrue(expected.getMessage().contains("key a twice"));
+		}
+		
+		JSON b = json.get("b");
+		offHeap.close();
+		offHeap.close();
+		try {
+			b.get("x").asString();
+			fail("closed document readable");
+		} catch (IllegalStateException expected) {
+			// expected
+		}
+	}
+	
+	@Test
+	public void testWriteTo() throws Exception {
+		List<Object> items = new ArrayList<Object>();
+		for (int i = 0; i < 5000; i++) {
+			Map<Object, Object> item = new LinkedHashMap<Object, Object>();
+			item.put("name", "item \u00E9 " + i);
+			item.put("n", (double) i);
+			items.add(item);
+		}
+		List<Object> shared = new ArrayList<Object>(Arrays.<Object>asList(1.0));
+		Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+		map.put("items", items);
+		map.put("long", new String(new char[100000]).replace((char) 0, 'x'));
+		map.put("a", shared);
+		JSON json = new JSON(map);
+		
+		final List<Integer> chunks = new ArrayList<Integer>();
+		final StringBuilder all = new StringBuilder();
+		Appendable out = new Appendable() {
+			public Appendable append(CharSequence csq) {
+				chunks.add(csq.length());
+				all.append(csq);
+				return this;
+			}
+			
+			public Appendable append(CharSequence csq, int start, int end) {
+				return append(csq.subSequence(start, end));
+			}
+			
+			public Appendable append(char c) {
+				return append(String.valueOf(c));
+			}
+		};
+		json.writeTo(out);
+		assertEquals(json.toJSON(), all.toString());
+		assertTrue(chunks.size() > 10);
+		for (int size : chunks) assertTrue("chunk of " + size, size < 3 * 8192);
+		
+		StringWriter pretty = new StringWriter();
+		json.prettyPrintTo(pretty);
+		assertEquals(json.prettyPrint(), pretty.toString());
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		json.get("items").get(3).writeTo(bytes);
+		assertEquals(json.get("items").get(3).toJSON(), new String(bytes.toByteArray(), "UTF-8"));
+		
+		map.put("b", shared);
+		assertEquals("[1]", JSON.parse(json.toJSON()).get("b").toJSON());
+	}
+	
+	@Test
+	public void testUtf8Writer() throws Exception {
+		List<Object> rows = new ArrayList<Object>();
+		for (int i = 0; i < 3000; i++) {
+			Map<Object, Object> row = new LinkedHashMap<Object, Object>();
+			row.put("id", (double) i - 1500);
+			row.put("name\u00E9\n", "r\u00E9sum\u00E9 \"" + i + "\"\t\u0001\uD83D\uDE00");
+			row.put("big", i == 0 ? Long.MIN_VALUE : 12345678901234567L);
+			row.put("ratio", i / 7.0);
+			row.put("flags", Arrays.<Object>asList(true, false, JSONParser.NULL, 'c'));
+			rows.add(row);
+		}
+		JSON json = new JSON(rows);
+		byte[] expected = json.toJSON().getBytes("UTF-8");
+		assertArrayEquals(expected, json.toJSONBytes());
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		json.writeTo(out);
+		assertArrayEquals(expected, out.toByteArray());
+		
+		out.reset();
+		json.prettyPrintTo(out);
+		assertEquals(json.prettyPrint(), new String(out.toByteArray(), "UTF-8"));
+		
+		ByteBuffer buffer = ByteBuffer.allocate(expected.length + 10);
+		buffer.put((byte) 'x');
+		json.writeTo(buffer);
+		assertEquals(expected.length + 1, buffer.position());
+		assertEquals(json.toJSON(), new String(buffer.array(), 1, expected.length, "UTF-8"));
+		
+		try {
+			json.writeTo(ByteBuffer.allocate(100));
+			fail("overflow not detected");
+		} catch (java.nio.BufferOverflowException e) {
+			// expected
+		}
+	}
+	
+	@Test
+	public void testEscapePolicy() throws Exception {
+		String text = "caf\u00E9 \u65E5\u672C \uD83D\uDE00 \"q\" \\ \n\u0001\u007F lone \uD800 end";
+		Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+		map.put("k\u00E9y", text);
+		map.put("list", Arrays.<Object>asList(text, "plain"));
+		JSON json = new JSON(map);
+		
+		String ascii = json.toJSON();
+		assertEquals("\"caf\\u00e9 \\u65e5\\u672c \\ud83d\\ude00 \\\"q\\\" \\\\ \\n\\u0001\\u007f lone \\ud800 end\"", json.get("list").get(0).toJSON());
+		assertEquals(ascii, json.toJSON(JSONEscapePolicy.ASCII));
+		
+		String unicode = json.toJSON(JSONEscapePolicy.UNICODE);
+		assertEquals("\"caf\u00E9 \u65E5\u672C \uD83D\uDE00 \\\"q\\\" \\\\ \\n\\u0001\\u007f lone \\ud800 end\"", json.get("list").get(0).toJSON(JSONEscapePolicy.UNICODE));
+		assertTrue(unicode.length() < ascii.length());
+		assertEquals(JSON.parse(ascii).toJSON(), JSON.parse(unicode).toJSON());
+		assertArrayEquals(unicode.getBytes("UTF-8"), json.toJSONBytes(JSONEscapePolicy.UNICODE));
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		json.prettyPrintTo(out, JSONEscapePolicy.UNICODE);
+		assertEquals(json.prettyPrint(JSONEscapePolicy.UNICODE), new String(out.toByteArray(), "UTF-8"));
+		
+		String big = new String(new char[20000]).replace("\u0000", "\u00E9a\"");
+		StringWriter sw = new StringWriter();
+		new JSON(big).writeTo(sw, JSONEscapePolicy.UNICODE);
+		assertEquals(big, JSON.parse(sw.toString()).asString());
+	}
+	
+	@Test
+	public void testCanonicalJSON() throws Exception {
+		String rfcExample = "{\"numbers\": [333333333.33333329, 1E30, 4.50, 2e-3, 0.000000000000000000000000001], " +
+				"\"string\": \"\\u20ac$\\u000F\\u000aA'\\u0042\\u0022\\u005c\\\\\\\"\\/\", \"literals\": [null, true, false]}";
+		assertEquals("{\"literals\":[null,true,false],\"numbers\":[333333333.3333333,1e+30,4.5,0.002,1e-27],\"string\":\"\u20AC$\\u000f\\nA'B\\\"\\\\\\\\\\\"/\"}",
+				JSON.parse(rfcExample).toCanonicalJSON());
+		
+		double[] numbers = {1e21, 1e-7, 0.000001, 123456789012345680000.0, -0.0, 5e-324, 1.7976931348623157e308, 9007199254740994.0, 0.1, 1.0 / 3, 100, 1e23, -1.5e-9, 1e20};
+		String[] expected = {"1e+21", "1e-7", "0.000001", "123456789012345680000", "0", "5e-324", "1.7976931348623157e+308", "9007199254740994", "0.1", "0.3333333333333333", "100", "1e+23", "-1.5e-9", "100000000000000000000"};
+		for (int i = 0; i < numbers.length; i++) assertEquals(expected[i], JSONWriter.canonicalNumber(numbers[i]));
+		
+		Map<Object, Object> a = new LinkedHashMap<Object, Object>();
+		a.put("b", 1.0);
+		a.put("a", Arrays.<Object>asList(2, 3L, 0.5f, "\u00E9\u007f"));
+		a.put("\u00E9", JSONParser.NULL);
+		a.put("B", true);
+		Map<Object, Object> b = new LinkedHashMap<Object, Object>();
+		b.put("\u00E9", JSONParser.NULL);
+		b.put("a", Arrays.<Object>asList(2.0, 3.0, 0.5, "\u00E9\u007f"));
+		b.put("B", true);
+		b.put("b", 1);
+		String canonical = new JSON(a).toCanonicalJSON();
+		assertEquals("{\"B\":true,\"a\":[2,3,0.5,\"\u00E9\u007f\"],\"b\":1,\"\u00E9\":null}", canonical);
+		assertEquals(canonical, new JSON(b).toCanonicalJSON());
+		assertEquals(canonical, JSON.parse(new JSON(a).toJSON(), JSONParseOption.RAW_NUMBERS).toCanonicalJSON());
+		
+		MessageDigest first = MessageDigest.getInstance("SHA-256");
+		new JSON(a).digestCanonicalJSON(first);
+		MessageDigest second = MessageDigest.getInstance("SHA-256");
+		new JSON(b).digestCanonicalJSON(second);
+		MessageDigest direct = MessageDigest.getInstance("SHA-256");
+		direct.update(canonical.getBytes("UTF-8"));
+		byte[] hash = direct.digest();
+		assertArrayEquals(hash, first.digest());
+		assertArrayEquals(hash, second.digest());
+		
+		try {
+			new JSON(Arrays.<Object>asList(Double.NaN)).toCanonicalJSON();
+			fail("NaN accepted");
+		} catch (JSONException expectedException) {
+			// expected
+		}
+	}
+	
+	@Test
+	public void testLazyList() throws Exception {
+		final int[] iterations = {0};
+		final int[] produced = {0};
+		Iterable<Object> rows = new Iterable<Object>() {
+			public Iterator<Object> iterator() {
+				iterations[0]++;
+				return new Iterator<Object>() {
+					private int i = 0;
+					
+					public boolean hasNext() {
+						return i < 20000;
+					}
+					
+					public Object next() {
+						produced[0]++;
+						JSON row = JSON.newMap();
+						row.get("id").setInt(i);
+						row.get("name").setString("row " + i);
+						i++;
+						return i % 1000 == 0 ? null : row;
+					}
+					
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+		
+		JSON json = JSON.newMap();
+		json.get("header").setString("export");
+		json.get("rows").setLazyList(rows);
+		json.get("empty").setLazyList(Collections.emptyList());
+		assertEquals(0, iterations[0]);
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		json.writeTo(out);
+		assertEquals(1, iterations[0]);
+		assertEquals(20000, produced[0]);
+		JSON parsed = JSON.parse(new String(out.toByteArray(), "UTF-8"));
+		assertEquals(20000, parsed.get("rows").asList().size());
+		assertEquals("row 1", parsed.get("rows").get(1).get("name").asString());
+		assertTrue(parsed.get("rows").get(999).isNull());
+		assertEquals("[]", parsed.get("empty").toJSON());
+		assertTrue(json.prettyPrint().contains("\"empty\": []"));
+		assertEquals(2, iterations[0]);
+		
+		assertEquals(20000, json.get("rows").asList().size());
+		assertEquals(3, iterations[0]);
+		assertEquals(5, json.get("rows").get(5).get("id").asInt());
+		json.get("rows").add().setInt(1);
+		assertEquals(3, iterations[0]);
+		assertEquals(20001, JSON.parse(json.toJSON()).get("rows").asList().size());
+	}
+	
+	@Test
+	public void testGenerator() throws Exception {
+		JSON tree = JSON.newMap();
+		StringWriter chars = new StringWriter();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		JSONGenerator[] gens = {new JSONGenerator(chars), new JSONGenerator(bytes)};
+		for (JSONGenerator gen : gens) {
+			gen.beginObject();
+			gen.name("header");
+			gen.value("caf\u00E9 \"quoted\"\n");
+			gen.name("rows");
+			gen.beginArray();
+			for (int i = 0; i < 2000; i++) {
+				gen.beginObject();
+				gen.name("id");
+				gen.value(i);
+				gen.name("ratio");
+				gen.value(i / 8.0);
+				gen.name("big");
+				gen.value(Long.MAX_VALUE - i);
+				gen.name("even");
+				gen.value(i % 2 == 0);
+				gen.name("none");
+				gen.nullValue();
+				gen.name("tags");
+				gen.beginArray();
+				gen.endArray();
+				gen.endObject();
+			}
+			gen.endArray();
+			gen.name("copied");
+			gen.value(JSON.parse("{\"a\": [1, 2.5, \"x\"]}"));
+			gen.name("missing");
+			gen.value(tree.get("nope"));
+			gen.endObject();
+			gen.close();
+		}
+		
+		tree.get("header").setString("caf\u00E9 \"quoted\"\n");
+		for (int i = 0; i < 2000; i++) {
+			JSON row = tree.get("rows").add();
+			row.get("id").setInt(i);
+			row.get("ratio").setDouble(i / 8.0);
+			row.get("big").setLong(Long.MAX_VALUE - i);
+			row.get("even").setBoolean(i % 2 == 0);
+			row.get("none").setNull();
+			row.get("tags").setEmptyList();
+		}
+		tree.get("copied").setWithJSON(JSON.parse("{\"a\": [1, 2.5, \"x\"]}"));
+		tree.get("missing").setNull();
+		assertEquals(tree.toJSON(), chars.toString());
+		assertEquals(tree.toJSON(), new String(bytes.toByteArray(), "UTF-8"));
+		
+		StringBuilder sb = new StringBuilder();
+		JSONGenerator gen = new JSONGenerator(sb, JSONEscapePolicy.UNICODE);
+		gen.value("caf\u00E9");
+		gen.close();
+		assertEquals("\"caf\u00E9\"", sb.toString());
+		
+		gen = new JSONGenerator(new StringBuilder());
+		gen.beginObject();
+		try {
+			gen.value(1);
+			fail("IllegalStateException expected");
+		} catch (IllegalStateException expected) {}
+		try {
+			gen.endArray();
+			fail("IllegalStateException expected");
+		} catch (IllegalStateException expected) {}
+		gen.name("a");
+		try {
+			gen.endObject();
+			fail("IllegalStateException expected");
+		} catch (IllegalStateException expected) {}
+		try {
+			gen.value(Double.NaN);
+			fail("JSONException expected");
+		} catch (JSONException expected) {}
+		gen.value(1);
+		try {
+			gen.close();
+			fail("IllegalStateException expected");
+		} catch (IllegalStateException expected) {}
+		
+		gen = new JSONGenerator(new StringBuilder());
+		gen.value(true);
+		try {
+			gen.value(false);
+			fail("IllegalStateException expected");
+		} catch (IllegalStateException expected) {}
+		gen.close();
+	}
 }
+